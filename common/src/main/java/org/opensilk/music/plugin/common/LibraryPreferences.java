@@ -22,8 +22,11 @@ import android.content.SharedPreferences;
 
 import org.opensilk.common.dagger.qualifier.ForApplication;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -38,6 +41,20 @@ public class LibraryPreferences {
     public static final String ROOT_FOLDER_NAME = "root_folder_title";
     public static final String SEARCH_FOLDER = "search_folder_identity";
     public static final String SEARCH_FOLDER_NAME = "search_folder_title";
+    public static final String STALE_WHILE_REVALIDATE = "stale_while_revalidate";
+    public static final String SERVER_PAGING = "server_paging";
+    public static final String RECURSIVE_SONGS = "recursive_songs";
+    public static final String OFFLINE_FOLDERS = "offline_folders";
+    public static final String OFFLINE_BUDGET = "offline_budget_mb";
+    public static final String OFFLINE_METERED = "offline_metered";
+    public static final String HEAD_PREFETCH = "head_prefetch";
+    public static final String STREAM_PROXY = "stream_proxy";
+
+    public static final String PREFETCH_NEVER = "never";
+    public static final String PREFETCH_UNMETERED = "unmetered";
+    public static final String PREFETCH_ALWAYS = "always";
+
+    public static final int DEFAULT_OFFLINE_BUDGET_MB = 1024;
 
     final Context appContext;
 
@@ -78,6 +95,95 @@ public class LibraryPreferences {
         obtainPrefs(libraryId).edit().putString(libraryId, folderName).apply();
     }
 
+    /**
+     * Whether cached listings should be served immediately and refreshed in the background
+     */
+    public boolean getStaleWhileRevalidate(String libraryId) {
+        return obtainPrefs(libraryId).getBoolean(STALE_WHILE_REVALIDATE, true);
+    }
+
+    public void setStaleWhileRevalidate(String libraryId, boolean enabled) {
+        obtainPrefs(libraryId).edit().putBoolean(STALE_WHILE_REVALIDATE, enabled).apply();
+    }
+
+    /**
+     * Whether listings should be paged and sorted by the server instead of fetched
+     * whole and sorted locally. Needed for huge folders.
+     */
+    public boolean getServerPaging(String libraryId) {
+        return obtainPrefs(libraryId).getBoolean(SERVER_PAGING, false);
+    }
+
+    public void setServerPaging(String libraryId, boolean enabled) {
+        obtainPrefs(libraryId).edit().putBoolean(SERVER_PAGING, enabled).apply();
+    }
+
+    /**
+     * Whether a folder's songs include those in all its subfolders
+     */
+    public boolean getRecursiveSongs(String libraryId) {
+        return obtainPrefs(libraryId).getBoolean(RECURSIVE_SONGS, false);
+    }
+
+    public void setRecursiveSongs(String libraryId, boolean enabled) {
+        obtainPrefs(libraryId).edit().putBoolean(RECURSIVE_SONGS, enabled).apply();
+    }
+
+    /**
+     * @return identities of the folders the user wants kept on the device
+     */
+    public Set<String> getOfflineFolders(String libraryId) {
+        // the returned set mustn't be modified
+        return new HashSet<>(obtainPrefs(libraryId).getStringSet(OFFLINE_FOLDERS, Collections.<String>emptySet()));
+    }
+
+    public void setOfflineFolders(String libraryId, Set<String> folderIds) {
+        obtainPrefs(libraryId).edit().putStringSet(OFFLINE_FOLDERS, folderIds).apply();
+    }
+
+    /**
+     * @return bytes offline files may take up, stored as megabytes by a list preference
+     */
+    public long getOfflineBudget(String libraryId) {
+        final String mb = obtainPrefs(libraryId).getString(OFFLINE_BUDGET, null);
+        try {
+            return (mb != null ? Long.parseLong(mb) : DEFAULT_OFFLINE_BUDGET_MB) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            return DEFAULT_OFFLINE_BUDGET_MB * 1024L * 1024;
+        }
+    }
+
+    /**
+     * Whether offline folders may be downloaded on metered networks, off by default
+     */
+    public boolean getOfflineMetered(String libraryId) {
+        return obtainPrefs(libraryId).getBoolean(OFFLINE_METERED, false);
+    }
+
+    public void setOfflineMetered(String libraryId, boolean enabled) {
+        obtainPrefs(libraryId).edit().putBoolean(OFFLINE_METERED, enabled).apply();
+    }
+
+    /**
+     * @return on which networks the start of songs about to be played may be fetched,
+     *         one of the PREFETCH_ values. Only heeded with {@link #getStreamProxy}
+     */
+    public String getHeadPrefetch(String libraryId) {
+        return obtainPrefs(libraryId).getString(HEAD_PREFETCH, PREFETCH_UNMETERED);
+    }
+
+    /**
+     * Whether songs play through our local proxy instead of from drive directly, off by default
+     * since its uris die with our process, see the drive plugin's SongUris
+     */
+    public boolean getStreamProxy(String libraryId) {
+        return obtainPrefs(libraryId).getBoolean(STREAM_PROXY, false);
+    }
+
+    public void setStreamProxy(String libraryId, boolean enabled) {
+        obtainPrefs(libraryId).edit().putBoolean(STREAM_PROXY, enabled).apply();
+    }
+
     final Map<String, SharedPreferences> PREFS = new HashMap<>();
 
     SharedPreferences obtainPrefs(String libraryId) {
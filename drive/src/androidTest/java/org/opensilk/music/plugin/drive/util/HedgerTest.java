@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Created by drew on 12/11/14.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config( manifest = Config.NONE)
+public class HedgerTest {
+
+    final Executor newThread = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            new Thread(command).start();
+        }
+    };
+
+    // the calls in here are safe to run twice at once
+    static <T> Hedger.Factory<T> again(final Hedger.Call<T> call) {
+        return new Hedger.Factory<T>() {
+            @Override
+            public Hedger.Call<T> newCall() {
+                return call;
+            }
+        };
+    }
+
+    @Test
+    public void testP95() {
+        Hedger.Latencies l = new Hedger.Latencies();
+        for (int ii=1; ii<Hedger.MIN_SAMPLES; ii++) {
+            l.add(ii);
+        }
+        assertThat(l.p95()).isEqualTo(-1);
+        l.add(Hedger.MIN_SAMPLES);
+        assertThat(l.p95()).isEqualTo(19);
+        // old samples age out
+        for (int ii=0; ii<Hedger.SAMPLES; ii++) {
+            l.add(100);
+        }
+        assertThat(l.p95()).isEqualTo(100);
+    }
+
+    // the clock only moves when a call says it took a while
+    static class TestHedger extends Hedger {
+        volatile long time;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws IOException {
+        final TestHedger h = new TestHedger();
+        Hedger.Call<String> usual = new Hedger.Call<String>() {
+            @Override
+            public String call() throws IOException {
+                h.time += 500;
+                return "usual";
+            }
+        };
+        for (int ii=0; ii<Hedger.MIN_SAMPLES; ii++) {
+            assertThat(h.execute("a", usual, again(usual), newThread)).isEqualTo("usual");
+        }
+        assertThat(h.latenciesFor("a").p95()).isEqualTo(500);
+        // well inside the p95, left alone
+        Hedger.Call<String> quick = new Hedger.Call<String>() {
+            @Override
+            public String call() throws IOException {
+                sleep(20);
+                return "quick";
+            }
+        };
+        assertThat(h.execute("a", quick, again(quick), newThread)).isEqualTo("quick");
+        assertThat(h.hedgeCount()).isEqualTo(0);
+        final CountDownLatch never = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        Hedger.Call<String> slow = new Hedger.Call<String>() {
+            @Override
+            public String call() throws IOException {
+                if (calls.getAndIncrement() == 0) {
+                    try {
+                        never.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return "primary";
+                }
+                return "hedge";
+            }
+        };
+        String result = h.execute("a", slow, again(slow), newThread);
+        assertThat(result).isEqualTo("hedge");
+        assertThat(h.hedgeCount()).isEqualTo(1);
+        assertThat(h.hedgeWinCount()).isEqualTo(1);
+        assertThat(h.requestCount()).isEqualTo(Hedger.MIN_SAMPLES + 2);
+        // the hedge's latency isn't counted, the primary's is once it's done
+        assertThat(h.latenciesFor("a").count).isEqualTo(Hedger.MIN_SAMPLES + 1);
+        never.countDown();
+        h.shutdown();
+    }
+
+    static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Test
+    public void testFailuresAreCounted() {
+        Hedger h = new Hedger();
+        Hedger.Call<String> failing = new Hedger.Call<String>() {
+            @Override
+            public String call() throws IOException {
+                throw new IOException("failed");
+            }
+        };
+        try {
+            h.execute("a", failing, again(failing), newThread);
+        } catch (IOException expected) {
+        }
+        assertThat(h.latenciesFor("a").count).isEqualTo(1);
+    }
+
+}
@@ -29,6 +29,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -119,4 +120,194 @@ public class RequestCacheTest {
         assertThat(result1.token == null);
     }
 
+    static class TestCache extends RequestCache {
+        long time = 0;
+
+        TestCache(long maxBytes, long ttl) {
+            super(null, maxBytes, ttl);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void testExpiry() {
+        TestCache c = new TestCache(RequestCache.DEFAULT_MAX_BYTES, 1000);
+        c.put(key1, list1);
+        c.time = 999;
+        assertThat(c.get(key1, 0, 20, result1)).isTrue();
+        c.time = 1000;
+        assertThat(c.get(key1, 0, 20, result1)).isFalse();
+        assertThat(c.size()).isEqualTo(0);
+        assertThat(c.hitCount()).isEqualTo(1);
+        assertThat(c.missCount()).isEqualTo(1);
+        assertThat(c.evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        long entrySize = RequestCache.sizeOf(key1, RequestCache.wrap(list1));
+        TestCache c = new TestCache(entrySize * 2, RequestCache.DEFAULT_TTL);
+        c.put("a", list1);
+        c.put("b", list1);
+        // touch a so b is the eldest
+        assertThat(c.get("a", 0, 1, result1)).isTrue();
+        c.put("c", list1);
+        assertThat(c.evictionCount()).isEqualTo(1);
+        assertThat(c.get("b", 0, 1, result1)).isFalse();
+        assertThat(c.get("a", 0, 1, result1)).isTrue();
+        assertThat(c.get("c", 0, 1, result1)).isTrue();
+        assertThat(c.size()).isLessThanOrEqualTo(c.maxSize());
+    }
+
+    @Test
+    public void testKeepsOversizedNewest() {
+        TestCache c = new TestCache(1, RequestCache.DEFAULT_TTL);
+        c.put("a", list1);
+        c.put("b", list1);
+        assertThat(c.get("a", 0, 1, result1)).isFalse();
+        assertThat(c.get("b", 0, 1, result1)).isTrue();
+    }
+
+    @Test
+    public void testExtendKeepsValidators() {
+        TestCache c = new TestCache(RequestCache.DEFAULT_MAX_BYTES, 1000);
+        ListingValidators.Builder b = new ListingValidators.Builder();
+        b.add(null, "\"etag1\"");
+        b.add("page2", "\"etag2\"");
+        c.putItems("acct/browse/root", Collections.singletonList(item("a", false)), b.build());
+        c.time = 999;
+        assertThat(c.extend("acct/browse/root")).isTrue();
+        c.time = 1500;
+        assertThat(c.get("acct/browse/root", 0, 20, result1)).isTrue();
+        ListingValidators v = c.getValidators("acct/browse/root");
+        assertThat(v.isComplete()).isTrue();
+        assertThat(v.pageTokens).containsExactly(null, "page2");
+        assertThat(v.etags).containsExactly("\"etag1\"", "\"etag2\"");
+        assertThat(c.extend("acct/browse/other")).isFalse();
+    }
+
+    @Test
+    public void testPagingKeepsSnapshot() {
+        TestCache c = new TestCache(RequestCache.DEFAULT_MAX_BYTES, 1000);
+        c.put(key1, list1);
+        assertThat(c.get(key1, 0, 20, result1)).isTrue();
+        long snapshot = result1.token.getLong("snapshot");
+        // nothing pinned till they come back
+        assertThat(c.LEASES).isEmpty();
+        assertThat(c.getLeased(key1, snapshot, 20, 20, null, result1)).isTrue();
+        assertThat(c.LEASES).hasSize(1);
+        // listing replaced then evicted while the client reads page two
+        c.put(key1, list1.subList(0, 5));
+        c.time = 1000;
+        assertThat(c.get(key1, 40, 20, result1)).isFalse();
+        assertThat(c.getLeased(key1, snapshot, 20, 20, null, result1)).isTrue();
+        assertThat(result1.list).hasSize(20);
+        assertThat(result1.list.get(0).getInt("num")).isEqualTo(20);
+        assertThat(result1.token.getLong("snapshot")).isEqualTo(snapshot);
+        // last page lets it go
+        assertThat(c.getLeased(key1, snapshot, 40, 20, null, result1)).isTrue();
+        assertThat(result1.token).isNull();
+        assertThat(c.getLeased(key1, snapshot, 40, 20, null, result1)).isFalse();
+        // replaced before they came back, nothing to serve them from
+        c.put(key1, list1);
+        assertThat(c.get(key1, 0, 20, result1)).isTrue();
+        snapshot = result1.token.getLong("snapshot");
+        c.put(key1, list1);
+        assertThat(c.getLeased(key1, snapshot, 20, 20, null, result1)).isFalse();
+        // and idling past the lease lets it go too
+        assertThat(c.get(key1, 0, 20, result1)).isTrue();
+        snapshot = result1.token.getLong("snapshot");
+        assertThat(c.getLeased(key1, snapshot, 20, 20, null, result1)).isTrue();
+        c.put(key1, list1.subList(0, 5));
+        c.time += RequestCache.LEASE_TTL;
+        assertThat(c.getLeased(key1, snapshot, 40, 20, null, result1)).isFalse();
+    }
+
+    static class SyncDisk extends ListingDiskCache {
+        SyncDisk(java.io.File dir) {
+            super(dir, ListingDiskCache.DEFAULT_MAX_BYTES);
+        }
+
+        @Override
+        void execute(Runnable r) {
+            r.run();
+        }
+    }
+
+    // a new process, nothing in memory
+    static RequestCache restart(java.io.File dir) {
+        return new RequestCache(new SyncDisk(dir), RequestCache.DEFAULT_MAX_BYTES, RequestCache.DEFAULT_TTL);
+    }
+
+    @Test
+    public void testInvalidationReachesDisk() {
+        java.io.File dir = new java.io.File(System.getProperty("java.io.tmpdir"), "listings-" + System.nanoTime());
+        RequestCache c = restart(dir);
+        c.putItems("acct/browse/a", Collections.singletonList(item("x", false)));
+        c.putItems("acct/search/q", Collections.singletonList(item("x", false)));
+        c.putItems("other/browse/a", Collections.singletonList(item("x", false)));
+        restart(dir).invalidate("acct/search/");
+        c = restart(dir);
+        assertThat(c.peek("acct/search/q")).isNull();
+        assertThat(c.peek("acct/browse/a")).isNotNull();
+        // a change to a listing that's in memory but was read from disk
+        c.removeItem("acct/", "y");
+        c = restart(dir);
+        assertThat(c.peek("acct/browse/a")).isNull();
+        assertThat(c.peek("other/browse/a")).isNotNull();
+        // written after the change, so it's good
+        c.putItems("acct/browse/a", Collections.singletonList(item("x", false)));
+        assertThat(restart(dir).peek("acct/browse/a")).isNotNull();
+    }
+
+    static RequestCache.Item item(String id, boolean folder) {
+        Bundle b = new Bundle();
+        b.putString("id", id);
+        return new RequestCache.Item(id, id, folder, b);
+    }
+
+    @Test
+    public void testPatchItems() {
+        List<RequestCache.Item> items = new ArrayList<>();
+        items.add(item("b", true));
+        items.add(item("a", false));
+        items.add(item("c", false));
+        cache.putItems("acct/browse/root", items);
+        // new folder sorts before songs
+        cache.insertItem("acct/browse/root", item("z", true));
+        // rename replaces the old row
+        cache.insertItem("acct/browse/root", item("c", false));
+        cache.insertItem("acct/browse/root", item("b1", false));
+        // not cached, ignored
+        cache.insertItem("acct/browse/other", item("x", false));
+        cache.removeItem("acct/", "a");
+        cache.get("acct/browse/root", 0, 20, result1);
+        assertThat(result1.list).hasSize(4);
+        assertThat(result1.list.get(0).getString("id")).isEqualTo("b");
+        assertThat(result1.list.get(1).getString("id")).isEqualTo("z");
+        assertThat(result1.list.get(2).getString("id")).isEqualTo("b1");
+        assertThat(result1.list.get(3).getString("id")).isEqualTo("c");
+        assertThat(cache.get("acct/browse/other", 0, 20, result1)).isFalse();
+    }
+
+    @Test
+    public void testListingSharesRepeatedStrings() {
+        StringPool pool = new StringPool();
+        List<RequestCache.Item> items = new ArrayList<>();
+        // distinct instances, as they come off the wire
+        items.add(RequestCache.Item.folder("a", "a", new String("root"), new String("2014-11-27")));
+        items.add(RequestCache.Item.folder("b", "b", new String("root"), new String("2014-11-27")));
+        Listing listing = Listing.of(items, pool);
+        assertThat(listing.size()).isEqualTo(2);
+        assertThat(listing.parents[0]).isSameAs(listing.parents[1]);
+        assertThat(listing.dates[0]).isSameAs(listing.dates[1]);
+        assertThat(listing.bundles).isNull();
+        assertThat(listing.indexOf("b")).isEqualTo(1);
+        assertThat(listing.item(1).parentIdentity).isEqualTo("root");
+    }
+
 }
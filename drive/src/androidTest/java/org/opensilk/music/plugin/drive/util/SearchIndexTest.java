@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Created by drew on 11/29/14.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config( manifest = Config.NONE)
+public class SearchIndexTest {
+
+    SearchIndex.Snapshot snapshot;
+    SearchIndex.Engine engine;
+
+    @Before
+    public void setUp() {
+        List<RequestCache.Item> items = new ArrayList<>();
+        items.add(RequestCache.Item.song("1", "Bohemian Rhapsody.mp3", "audio/mpeg", "u1"));
+        items.add(RequestCache.Item.song("2", "Don't Stop Me Now.mp3", "audio/mpeg", "u2"));
+        items.add(RequestCache.Item.song("3", "100% Pure Love.ogg", "application/ogg", "u3"));
+        items.add(RequestCache.Item.folder("4", "Queen", "root", "2014-11-29"));
+        items.add(RequestCache.Item.song("5", "Somebody To Love.mp3", "audio/mpeg", "u5"));
+        snapshot = SearchIndex.Snapshot.build(items);
+        engine = new SearchIndex.Engine();
+    }
+
+    List<String> titles(int[] result) {
+        List<String> titles = new ArrayList<>();
+        for (int pos : result) {
+            titles.add(snapshot.items[pos].name);
+        }
+        return titles;
+    }
+
+    @Test
+    public void testFoldersFirst() {
+        assertThat(snapshot.items[0].name).isEqualTo("Queen");
+    }
+
+    @Test
+    public void testSearch() {
+        assertThat(titles(engine.search(snapshot, "love"))).containsExactly("100% Pure Love.ogg", "Somebody To Love.mp3");
+        assertThat(titles(engine.search(snapshot, "ue"))).containsExactly("Queen");
+        assertThat(engine.search(snapshot, "zzz")).isEmpty();
+    }
+
+    @Test
+    public void testNarrowsLastResult() {
+        assertThat(engine.search(snapshot, "o")).hasSize(4);
+        assertThat(titles(engine.search(snapshot, "so"))).containsExactly("Bohemian Rhapsody.mp3", "Somebody To Love.mp3");
+        assertThat(titles(engine.search(snapshot, "some"))).containsExactly("Somebody To Love.mp3");
+        // not an extension, searched from scratch
+        assertThat(titles(engine.search(snapshot, "queen"))).containsExactly("Queen");
+    }
+
+    @Test
+    public void testSpecialCharacters() {
+        assertThat(titles(engine.search(snapshot, "don't"))).containsExactly("Don't Stop Me Now.mp3");
+        assertThat(titles(engine.search(snapshot, "100%"))).containsExactly("100% Pure Love.ogg");
+        assertThat(engine.search(snapshot, "_")).isEmpty();
+    }
+
+    @Test
+    public void testEscapeQuery() {
+        assertThat(Helpers.escapeQuery("don't \\ stop")).isEqualTo("don\\'t \\\\ stop");
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Created by drew on 12/12/14.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config( manifest = Config.NONE)
+public class TagExtractorTest {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    // Serves ranges from memory, counting them like the real thing
+    static class FakeReader extends RangeReader {
+        final byte[] file;
+
+        FakeReader(byte[] file) {
+            super(null, null, file.length);
+            this.file = file;
+        }
+
+        @Override
+        byte[] fetch(long offset, int len) throws IOException {
+            requests++;
+            bytesFetched += len;
+            return Arrays.copyOfRange(file, (int) offset, (int) offset + len);
+        }
+    }
+
+    static class Bytes {
+        byte[] data = new byte[0];
+
+        Bytes put(byte[] b) {
+            final byte[] grown = Arrays.copyOf(data, data.length + b.length);
+            System.arraycopy(b, 0, grown, data.length, b.length);
+            data = grown;
+            return this;
+        }
+
+        Bytes put(int... b) {
+            final byte[] d = new byte[b.length];
+            for (int ii=0; ii<b.length; ii++) {
+                d[ii] = (byte) b[ii];
+            }
+            return put(d);
+        }
+
+        Bytes put(String s) {
+            return put(s.getBytes(ISO_8859_1));
+        }
+
+        Bytes be32(long v) {
+            return put((int) (v >> 24), (int) (v >> 16), (int) (v >> 8), (int) v);
+        }
+
+        Bytes le32(long v) {
+            return put((int) v, (int) (v >> 8), (int) (v >> 16), (int) (v >> 24));
+        }
+
+        Bytes syncsafe(int v) {
+            return put((v >> 21) & 0x7f, (v >> 14) & 0x7f, (v >> 7) & 0x7f, v & 0x7f);
+        }
+
+        Bytes zeros(int n) {
+            return put(new byte[n]);
+        }
+
+        byte[] build() {
+            return data;
+        }
+    }
+
+    static byte[] id3Frame(int version, String id, byte[] body) {
+        final Bytes b = new Bytes().put(id);
+        if (version == 4) {
+            b.syncsafe(body.length);
+        } else {
+            b.be32(body.length);
+        }
+        return b.put(0, 0).put(body).build();
+    }
+
+    static byte[] id3Text(int version, String id, int encoding, byte[] text) {
+        return id3Frame(version, id, new Bytes().put(encoding).put(text).build());
+    }
+
+    static byte[] id3Tag(int version, byte[] frames, int padding, int audio) {
+        return new Bytes().put("ID3").put(version, 0, 0).syncsafe(frames.length + padding)
+                .put(frames).zeros(padding).zeros(audio).build();
+    }
+
+    static byte[] vorbisComment(String... comments) {
+        final Bytes b = new Bytes().le32(4).put("test").le32(comments.length);
+        for (String c : comments) {
+            final byte[] d = c.getBytes(UTF_8);
+            b.le32(d.length).put(d);
+        }
+        return b.build();
+    }
+
+    static byte[] oggPage(int type, long granule, int seq, byte[] packet) {
+        return new Bytes().put("OggS").put(0, type).le32(granule).le32(granule >> 32)
+                .le32(1).le32(seq).le32(0).put(1, packet.length).put(packet).build();
+    }
+
+    static byte[] box(String type, byte[]... children) {
+        final Bytes payload = new Bytes();
+        for (byte[] child : children) {
+            payload.put(child);
+        }
+        final byte[] p = payload.build();
+        return new Bytes().be32(8 + p.length).put(type).put(p).build();
+    }
+
+    @Test
+    public void testId3v24() throws IOException {
+        final byte[] frames = new Bytes()
+                .put(id3Text(4, "TIT2", 3, "Bohemian Rhapsody".getBytes(UTF_8)))
+                .put(id3Text(4, "TPE1", 0, "Queen".getBytes(ISO_8859_1)))
+                .put(id3Text(4, "TRCK", 0, "11/12".getBytes(ISO_8859_1)))
+                .put(id3Text(4, "TLEN", 0, "354000".getBytes(ISO_8859_1)))
+                .build();
+        final FakeReader r = new FakeReader(id3Tag(4, frames, 20, 100));
+        final TrackTags tags = TagExtractor.extract(r);
+        assertThat(tags.title).isEqualTo("Bohemian Rhapsody");
+        assertThat(tags.artist).isEqualTo("Queen");
+        assertThat(tags.track).isEqualTo(11);
+        assertThat(tags.durationMs).isEqualTo(354000);
+        // the header, then exactly the declared tag
+        assertThat(r.requests()).isEqualTo(2);
+        assertThat(r.bytesFetched()).isEqualTo(TagExtractor.HEAD + frames.length + 20);
+    }
+
+    @Test
+    public void testId3v23SkipsPictures() throws IOException {
+        final byte[] frames = new Bytes()
+                .put(id3Frame(3, "APIC", new byte[70000]))
+                .put(id3Text(3, "TIT2", 1, "Somebody To Love".getBytes(UTF_16)))
+                .put(id3Text(3, "TALB", 0, "A Day at the Races".getBytes(ISO_8859_1)))
+                .build();
+        final FakeReader r = new FakeReader(id3Tag(3, frames, 0, 16));
+        final TrackTags tags = TagExtractor.extract(r);
+        assertThat(tags.title).isEqualTo("Somebody To Love");
+        assertThat(tags.album).isEqualTo("A Day at the Races");
+        assertThat(r.bytesFetched()).isLessThan(1024);
+    }
+
+    @Test
+    public void testFlac() throws IOException {
+        final byte[] comment = vorbisComment("TITLE=Innuendo", "artist=Queen", "TRACKNUMBER=7");
+        final byte[] file = new Bytes().put("fLaC")
+                // STREAMINFO, 44.1kHz stereo 16 bit, 441000 samples
+                .put(0, 0, 0, 34).zeros(10).put(0x0a, 0xc4, 0x42, 0xf0).be32(441000).zeros(16)
+                // a picture we must not fetch
+                .put(6).put(0, 0xc3, 0x50).zeros(50000)
+                .put(0x84).put(0, 0, comment.length).put(comment)
+                .build();
+        final FakeReader r = new FakeReader(file);
+        final TrackTags tags = TagExtractor.extract(r);
+        assertThat(tags.title).isEqualTo("Innuendo");
+        assertThat(tags.artist).isEqualTo("Queen");
+        assertThat(tags.track).isEqualTo(7);
+        assertThat(tags.durationMs).isEqualTo(10000);
+        // STREAMINFO came with the first read, then each block header and the comment
+        assertThat(r.requests()).isEqualTo(4);
+        assertThat(r.bytesFetched()).isEqualTo(TagExtractor.HEAD + 4 + 4 + comment.length);
+    }
+
+    @Test
+    public void testOggVorbis() throws IOException {
+        final byte[] id = new Bytes().put(1).put("vorbis").le32(0).put(2).le32(44100).zeros(14).build();
+        final byte[] comment = new Bytes().put(3).put("vorbis")
+                .put(vorbisComment("TITLE=Mustapha", "ALBUM=Jazz")).put(1).build();
+        final byte[] file = new Bytes()
+                .put(oggPage(2, 0, 0, id))
+                .put(oggPage(0, 0, 1, comment))
+                .put(oggPage(4, 5 * 44100, 2, new byte[10]))
+                .build();
+        final TrackTags tags = TagExtractor.extract(new FakeReader(file));
+        assertThat(tags.title).isEqualTo("Mustapha");
+        assertThat(tags.album).isEqualTo("Jazz");
+        assertThat(tags.durationMs).isEqualTo(5000);
+    }
+
+    @Test
+    public void testMp4() throws IOException {
+        final byte[] mvhd = new Bytes().zeros(12).be32(1000).be32(3000).zeros(12).build();
+        final byte[] nam = box("\u00a9nam", box("data", new Bytes().be32(1).be32(0).put("Bicycle Race").build()));
+        final byte[] trkn = box("trkn", box("data", new Bytes().be32(0).be32(0).put(0, 0, 0, 5, 0, 13, 0, 0).build()));
+        final byte[] meta = box("meta", new Bytes().be32(0).build(), box("ilst", nam, trkn));
+        final byte[] file = new Bytes()
+                .put(box("ftyp", new Bytes().put("M4A ").be32(0).put("M4A ").build()))
+                .put(box("mdat", new byte[100000]))
+                .put(box("moov", box("mvhd", mvhd), box("udta", meta)))
+                .build();
+        final FakeReader r = new FakeReader(file);
+        final TrackTags tags = TagExtractor.extract(r);
+        assertThat(tags.title).isEqualTo("Bicycle Race");
+        assertThat(tags.track).isEqualTo(5);
+        assertThat(tags.durationMs).isEqualTo(3000);
+        // only box headers and the values we want, never the audio
+        assertThat(r.bytesFetched()).isLessThan(1024);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.opensilk.common.dagger.DaggerInjector;
+import org.opensilk.music.plugin.drive.util.ArtworkCache;
+import org.opensilk.music.plugin.drive.util.ArtworkFetcher;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import timber.log.Timber;
+
+/**
+ * Serves song artwork at content://AUTHORITY/account/fileId, optionally with
+ * ?size=pixels. Pictures are fetched on the first request and are always one
+ * of the downsampled sizes kept by the {@link ArtworkCache}.
+ *
+ * Created by drew on 12/4/14.
+ */
+public class ArtworkProvider extends ContentProvider {
+
+    // Debug builds have their own, so they install beside release
+    public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".artwork";
+
+    @Inject ArtworkFetcher mFetcher;
+
+    boolean injected;
+
+    @Override
+    public boolean onCreate() {
+        // We're created before the application, so inject on first use
+        return true;
+    }
+
+    synchronized void ensureInjected() {
+        if (!injected) {
+            ((DaggerInjector) getContext().getApplicationContext()).inject(this);
+            injected = true;
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Read only " + uri);
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2) {
+            throw new FileNotFoundException("Bad uri " + uri);
+        }
+        int size = ArtworkCache.SIZES[0];
+        final String sizeParam = uri.getQueryParameter("size");
+        if (sizeParam != null) {
+            try {
+                size = Integer.parseInt(sizeParam);
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException("Bad size " + uri);
+            }
+        }
+        ensureInjected();
+        final File f;
+        try {
+            f = mFetcher.fetch(segments.get(0), segments.get(1), size);
+        } catch (IOException e) {
+            Timber.w(e, "openFile(%s)", uri);
+            throw new FileNotFoundException(e.getMessage());
+        }
+        if (f == null) {
+            throw new FileNotFoundException("No artwork for " + uri);
+        }
+        return ParcelFileDescriptor.open(f, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "image/jpeg";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+}
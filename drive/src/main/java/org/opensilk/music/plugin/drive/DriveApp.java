@@ -43,6 +43,7 @@ public class DriveApp extends DaggerApplication {
                     LibraryChooserActivity.class,
                     SettingsActivity.SettingsFragment.class,
                     DriveLibraryService.class,
+                    ArtworkProvider.class,
             },
             library = true
     )
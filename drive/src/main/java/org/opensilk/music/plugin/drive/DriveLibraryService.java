@@ -19,12 +19,15 @@ package org.opensilk.music.plugin.drive;
 
 import android.content.ComponentName;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
@@ -40,24 +43,37 @@ import org.opensilk.music.plugin.drive.ui.LibraryChooserActivity;
 import org.opensilk.music.plugin.drive.ui.SettingsActivity;
 import org.opensilk.music.plugin.drive.util.RequestCache;
 import org.opensilk.music.plugin.drive.util.DriveHelper;
+import org.opensilk.music.plugin.drive.util.Federation;
+import org.opensilk.music.plugin.drive.util.HeadCache;
+import org.opensilk.music.plugin.drive.util.Hedger;
 import org.opensilk.music.plugin.drive.util.Helpers;
+import org.opensilk.music.plugin.drive.util.LibraryIndex;
+import org.opensilk.music.plugin.drive.util.ListingValidators;
+import org.opensilk.music.plugin.drive.util.Prefetcher;
+import org.opensilk.music.plugin.drive.util.PriorityExecutor;
+import org.opensilk.music.plugin.drive.util.SearchIndex;
+import org.opensilk.music.plugin.drive.util.SongUris;
+import org.opensilk.music.plugin.drive.util.SyncEngine;
+import org.opensilk.music.plugin.drive.util.TagStore;
+import org.opensilk.music.plugin.drive.util.TrackTags;
+import org.opensilk.music.plugin.drive.util.TreeLister;
 import org.opensilk.common.dagger.DaggerInjector;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 
 import rx.Observable;
 import rx.Subscriber;
-import rx.schedulers.Schedulers;
 import timber.log.Timber;
 
-import static android.os.AsyncTask.THREAD_POOL_EXECUTOR;
-
 import static org.opensilk.music.api.exception.ParcelableException.NETWORK;
 import static org.opensilk.music.api.exception.ParcelableException.AUTH_FAILURE;
 
@@ -75,23 +91,40 @@ public class DriveLibraryService extends RemoteLibraryService {
             +AUDIO_MIME_WILDCARD+"' or mimeType='"+AUDIO_OGG_MIMETYPE+"')";
     public static final String SONG_QUERY = " (mimeType contains '"+AUDIO_MIME_WILDCARD+"' or mimeType='"
             +AUDIO_OGG_MIMETYPE+"')";
+    public static final String SERVER_ORDER = "folder,title";
+
+    static final int NO_PREFETCH = -1;
 
     @Inject DriveHelper mDriveHelper;
     @Inject LibraryPreferences mLibraryPrefs;
     @Inject RequestCache mCache;
-
-    final List<FileSubscriber> activeSubscribers = Collections.synchronizedList(new ArrayList<FileSubscriber>(4));
+    @Inject SyncEngine mSyncEngine;
+    @Inject Prefetcher mPrefetcher;
+    @Inject LibraryIndex mIndex;
+    @Inject SearchIndex mSearchIndex;
+    @Inject TagStore mTagStore;
+    @Inject HeadCache mHeadCache;
+    @Inject TreeLister mTreeLister;
+    @Inject Federation mFederation;
+    @Inject Hedger mHedger;
+    @Inject SongUris mSongUris;
+
+    // Single flight, one running fetch per cache key that later requests attach to
+    final ConcurrentHashMap<String, FileSubscriber> inflight = new ConcurrentHashMap<>();
 
     @Override
     public void onCreate() {
         super.onCreate();
         ((DaggerInjector) getApplication()).inject(this);
+        mCache.warmUp();
+        mDriveHelper.prewarm();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         mDriveHelper.destroy();
+        mHedger.shutdown();
     }
 
     /*
@@ -111,52 +144,279 @@ public class DriveLibraryService extends RemoteLibraryService {
 
     @Override
     protected void browseFolders(String libraryIdentity, String folderIdentity, final int maxResults, Bundle paginationBundle, final Result callback) {
+        if (Federation.isFederated(libraryIdentity)) {
+            // No folders across accounts, just their songs
+            mFederation.listSongs(maxResults, paginationBundle, callback);
+            return;
+        }
         final DriveHelper.Session session = mDriveHelper.getSession(libraryIdentity);
-        final String folder = getFolder(libraryIdentity, folderIdentity);
-        final int startpos = (paginationBundle != null) ? paginationBundle.getInt("startpos") : 0;
-        final String q = folder + BASE_QUERY + " and" + FOLDER_SONG_QUERY;
-        final String cacheKey = "browse" + folder;
-
-        if (requestInflight(cacheKey, callback)) return;
-
-        if (mCache.get(cacheKey, startpos, maxResults, callback)) return;
-
-        final FileSubscriber subscriber = new FileSubscriber(session, maxResults, false, cacheKey, callback);
-        activeSubscribers.add(subscriber);
-        getFiles(session, q).subscribeOn(Schedulers.io()).subscribe(subscriber);
+        final String folderId = getFolderId(libraryIdentity, folderIdentity);
+        final String q = browseQuery(folderId);
+        final String cacheKey = Helpers.browseCacheKey(libraryIdentity, folderId);
+        listFolder(libraryIdentity, session, q, cacheKey, maxResults, paginationBundle, false, callback);
     }
 
     @Override
     protected void listSongsInFolder(String libraryIdentity, String folderIdentity, int maxResults, Bundle paginationBundle, Result callback) {
+        if (Federation.isFederated(libraryIdentity)) {
+            mFederation.listSongs(maxResults, paginationBundle, callback);
+            return;
+        }
+        final DriveHelper.Session session = mDriveHelper.getSession(libraryIdentity);
+        final String folderId = getFolderId(libraryIdentity, folderIdentity);
+        final int startpos = paginationBundle != null ? paginationBundle.getInt("startpos") : 0;
+        final String pageToken = paginationBundle != null ? paginationBundle.getString("token") : null;
+        if (pageToken == null && mLibraryPrefs.getRecursiveSongs(libraryIdentity)) {
+            // Everything under the folder, walked a few folders at a time
+            final String cacheKey = Helpers.treeCacheKey(libraryIdentity, folderId);
+            if (!getLeased(cacheKey, session, maxResults, paginationBundle, callback)) {
+                mTreeLister.list(session, libraryIdentity, folderId, startpos, maxResults, callback);
+            }
+            return;
+        }
+        final String q = songsQuery(folderId);
+        final String cacheKey = Helpers.songsCacheKey(libraryIdentity, folderId);
+        listFolder(libraryIdentity, session, q, cacheKey, maxResults, paginationBundle, true, callback);
+        // These are about to be shown, one of them is likely to be played
+        mHeadCache.prefetch(session, libraryIdentity, folderId, startpos);
+    }
+
+    @Override
+    protected void search(String libraryIdentity, String query, int maxResults, Bundle paginationBundle, Result callback) {
+        if (Federation.isFederated(libraryIdentity)) {
+            mFederation.search(query, maxResults, paginationBundle, callback);
+            return;
+        }
         final DriveHelper.Session session = mDriveHelper.getSession(libraryIdentity);
-        final String folder = getFolder(libraryIdentity, folderIdentity);
         final int startpos = (paginationBundle != null) ? paginationBundle.getInt("startpos") : 0;
-        final String q = folder + BASE_QUERY + " and" + SONG_QUERY;
-        final String cacheKey = "listSongs" + folder;
+        final String q = "title contains '"+Helpers.escapeQuery(query)+"' and trashed=false and" + FOLDER_SONG_QUERY;
+        final String cacheKey = Helpers.searchCacheKey(libraryIdentity, query);
+
+        mSyncEngine.requestSync(libraryIdentity);
 
-        if (requestInflight(cacheKey, callback)) return;
+        if (getLeased(cacheKey, session, maxResults, paginationBundle, callback)) return;
 
-        if (mCache.get(cacheKey, startpos, maxResults, callback)) return;
+        // One more than asked so we know if there is another page
+        final List<RequestCache.Item> local = mSearchIndex.search(libraryIdentity, query, startpos, maxResults + 1);
+        if (local != null) {
+            serveIndexed(session, local, startpos, maxResults, callback);
+            return;
+        }
+
+        if (requestInflight(cacheKey, session, PriorityExecutor.SEARCH, startpos, maxResults, callback)) return;
+
+        if (mCache.get(cacheKey, startpos, maxResults, session, callback)) return;
 
-        final FileSubscriber subscriber = new FileSubscriber(session, maxResults, true, cacheKey, callback);
-        activeSubscribers.add(subscriber);
-        getFiles(session, q).subscribeOn(Schedulers.io()).subscribe(subscriber);
+        startOrJoin(new FileSubscriber(session, libraryIdentity, false, cacheKey, NO_PREFETCH, true),
+                q, PriorityExecutor.SEARCH, startpos, maxResults, callback);
     }
 
-    @Override
-    protected void search(String libraryIdentity, String query, int maxResults, Bundle paginationBundle, Result callback) {
-        final DriveHelper.Session session = mDriveHelper.getSession(libraryIdentity);
+    void listFolder(String libraryIdentity, DriveHelper.Session session, String q, String cacheKey,
+                    int maxResults, Bundle paginationBundle, boolean songsOnly, Result callback) {
+        final String pageToken = (paginationBundle != null) ? paginationBundle.getString("token") : null;
+        if (pageToken != null || mLibraryPrefs.getServerPaging(libraryIdentity)) {
+            // Let drive do the sorting and hand out its pages as is
+            session.getExecutor().submit(new ListFilesRunner(session, mSongUris, maxResults, q, pageToken, songsOnly, callback),
+                    PriorityExecutor.INTERACTIVE);
+            return;
+        }
+
         final int startpos = (paginationBundle != null) ? paginationBundle.getInt("startpos") : 0;
-        //TODO sanitize query
-        final String q = "title contains '"+query+"' and trashed=false and" + FOLDER_SONG_QUERY;
+        mSyncEngine.requestSync(libraryIdentity);
+
+        if (getLeased(cacheKey, session, maxResults, paginationBundle, callback)) return;
+
+        if (mLibraryPrefs.getStaleWhileRevalidate(libraryIdentity)) {
+            // Answer from whatever we have, then refresh it behind the clients back
+            if (mCache.get(cacheKey, startpos, maxResults, true, session, callback)) {
+                if (startpos == 0 && mCache.needsRevalidation(cacheKey)) {
+                    revalidate(libraryIdentity, session, q, songsOnly, cacheKey);
+                }
+                return;
+            }
+        }
+
+        if (requestInflight(cacheKey, session, PriorityExecutor.INTERACTIVE, startpos, maxResults, callback)) return;
+
+        if (mCache.get(cacheKey, startpos, maxResults, session, callback)) return;
+
+        startOrJoin(new FileSubscriber(session, libraryIdentity, songsOnly, cacheKey,
+                songsOnly ? NO_PREFETCH : 0, true), q, PriorityExecutor.INTERACTIVE, startpos, maxResults, callback);
+    }
+
+    /*
+     * Serves later pages from the snapshot the client started paging through,
+     * so offsets stay put however the listing changes meanwhile
+     */
+    boolean getLeased(String cacheKey, DriveHelper.Session session, int maxResults,
+                      Bundle paginationBundle, Result callback) {
+        if (paginationBundle == null || !paginationBundle.containsKey("snapshot")) {
+            return false;
+        }
+        return mCache.getLeased(cacheKey, paginationBundle.getLong("snapshot"),
+                paginationBundle.getInt("startpos"), maxResults, session, callback);
+    }
+
+    /*
+     * Starts the fetch with callback as its first listener, unless someone
+     * beat us to it in which case we attach to theirs.
+     */
+    void startOrJoin(FileSubscriber subscriber, String q, int priority, int startpos, int maxResults, Result callback) {
+        final String cacheKey = subscriber.cacheKey;
+        final DriveHelper.Session session = subscriber.driveSession;
+        while (inflight.putIfAbsent(cacheKey, subscriber) != null) {
+            if (requestInflight(cacheKey, session, priority, startpos, maxResults, callback)) return;
+            if (mCache.get(cacheKey, startpos, maxResults, session, callback)) return;
+        }
+        subscriber.addListener(callback, startpos, maxResults);
+        fetch(subscriber, q, priority);
+    }
+
+    void fetch(FileSubscriber subscriber, String q, int priority) {
+        subscriber.schedule(q, priority);
+    }
 
-        if (requestInflight(q, callback)) return;
+    /*
+     * Refetches the listing without any listeners, the result replaces the
+     * cached listing in one go when it completes. If we have the etags of
+     * every page we ask drive first, an unchanged listing just gets its
+     * lifetime extended.
+     */
+    void revalidate(String libraryIdentity, final DriveHelper.Session session, final String q,
+                    boolean songsOnly, final String cacheKey) {
+        final FileSubscriber subscriber = new FileSubscriber(session, libraryIdentity, songsOnly, cacheKey, NO_PREFETCH, false);
+        if (inflight.putIfAbsent(cacheKey, subscriber) != null) return;
+        Timber.d("revalidate(%s)", cacheKey);
+        final ListingValidators validators = mCache.getValidators(cacheKey);
+        if (validators == null || !validators.isComplete()) {
+            fetch(subscriber, q, PriorityExecutor.BULK);
+            return;
+        }
+        session.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!notModified(session, q, validators) || !mCache.extend(cacheKey)) {
+                    fetch(subscriber, q, PriorityExecutor.BULK);
+                    return;
+                }
+                Timber.d("revalidate(%s) not modified", cacheKey);
+                // Anyone who joined while we were asking can have the cached listing
+                for (Listener listener : subscriber.finish()) {
+                    if (!mCache.get(cacheKey, listener.startpos, listener.maxResults, session, listener.callback)) {
+                        try {
+                            listener.callback.onError(new ParcelableException(NETWORK,
+                                    new IOException("Listing evicted")));
+                        } catch (RemoteException ignored) {}
+                    }
+                }
+            }
+        }, PriorityExecutor.BULK);
+    }
 
-        if (mCache.get(q, startpos, maxResults, callback)) return;
+    /*
+     * Replays each page with If-None-Match
+     * @return true if drive said every page is unchanged
+     */
+    static boolean notModified(DriveHelper.Session session, String q, ListingValidators validators) {
+        for (int ii=0; ii<validators.etags.size(); ii++) {
+            try {
+                Drive.Files.List req = listRequest(session, q, validators.pageTokens.get(ii));
+                req.getRequestHeaders().setIfNoneMatch(validators.etags.get(ii));
+                session.execute(req);
+                // Got a body, something changed
+                return false;
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                    Timber.w("notModified() %d", e.getStatusCode());
+                    return false;
+                }
+            } catch (IOException e) {
+                Timber.w(e, "notModified()");
+                return false;
+            }
+        }
+        return true;
+    }
 
-        final FileSubscriber subscriber = new FileSubscriber(session, maxResults, false, q, callback);
-        activeSubscribers.add(subscriber);
-        getFiles(session, q).subscribeOn(Schedulers.io()).subscribe(subscriber);
+    /*
+     * Queues background listings of the first few child folders, users nearly
+     * always drill down into one of them. Only ever called with sorted items.
+     */
+    void prefetchChildren(String libraryIdentity, DriveHelper.Session session,
+                          List<RequestCache.Item> items, int depth) {
+        if (depth >= Prefetcher.MAX_DEPTH) return;
+        int queued = 0;
+        for (RequestCache.Item item : items) {
+            if (!item.folder || queued >= Prefetcher.MAX_CHILDREN) break;
+            final String cacheKey = Helpers.browseCacheKey(libraryIdentity, item.identity);
+            if (mCache.contains(cacheKey)) continue;
+            final FileSubscriber subscriber = new FileSubscriber(session, libraryIdentity, false, cacheKey, depth + 1, false);
+            if (inflight.putIfAbsent(cacheKey, subscriber) != null) continue;
+            // only spent on listings we actually make
+            if (!mPrefetcher.tryAcquire(libraryIdentity)) {
+                inflight.remove(cacheKey, subscriber);
+                return;
+            }
+            Timber.d("prefetch(%s)", cacheKey);
+            fetch(subscriber, browseQuery(item.identity), PriorityExecutor.BULK);
+            queued++;
+        }
+    }
+
+    /*
+     * Hands out a page read from the index, items holds one extra row if there are more
+     */
+    void serveIndexed(DriveHelper.Session session, List<RequestCache.Item> items, int startpos,
+                      int maxResults, Result callback) {
+        final int count = Math.min(items.size(), maxResults);
+        String authToken = null;
+        for (int ii=0; ii<count && authToken == null; ii++) {
+            if (!items.get(ii).folder) {
+                try {
+                    authToken = session.getAuthToken();
+                } catch (IOException|GoogleAuthException e) {
+                    // Still worth listing, they just won't play till we're back online
+                    Timber.w(e, "serveIndexed() no token");
+                    break;
+                }
+            }
+        }
+        final String accountName = session.getCredential().getSelectedAccountName();
+        final Map<String, TrackTags> tags = tagsFor(session, items.subList(0, count));
+        final List<Bundle> bundles = new ArrayList<>(count);
+        for (int ii=0; ii<count; ii++) {
+            final RequestCache.Item item = items.get(ii);
+            bundles.add(item.toBundle(mSongUris, accountName, authToken, tags.get(item.identity)));
+        }
+        Bundle token = null;
+        if (items.size() > maxResults) {
+            token = new Bundle(1);
+            token.putInt("startpos", startpos + maxResults);
+        }
+        try {
+            callback.onNext(bundles, token);
+        } catch (RemoteException ignored) {}
+    }
+
+    public static String browseQuery(String folderId) {
+        return "'" + folderId + "'" + BASE_QUERY + " and" + FOLDER_SONG_QUERY;
+    }
+
+    static String songsQuery(String folderId) {
+        return "'" + folderId + "'" + BASE_QUERY + " and" + SONG_QUERY;
+    }
+
+    /*
+     * Whatever tags we've read for the songs in items
+     */
+    Map<String, TrackTags> tagsFor(DriveHelper.Session session, List<RequestCache.Item> items) {
+        final List<String> ids = new ArrayList<>(items.size());
+        for (RequestCache.Item item : items) {
+            if (!item.folder) {
+                ids.add(item.identity);
+            }
+        }
+        return mTagStore.get(session.getCredential().getSelectedAccountName(), ids);
     }
 
     static Bundle dematerializeFile(File f, String authToken) {
@@ -176,7 +436,7 @@ public class DriveLibraryService extends RemoteLibraryService {
             public void call(Subscriber<? super Bundle> subscriber) {
                 try {
                     Timber.d("q=" + q);
-                    final String authToken = session.getCredential().getToken();
+                    final String authToken = session.getAuthToken();
                     String pageToken = null;
                     do {
                         Drive.Files.List req = session.getDrive().files().list()
@@ -208,62 +468,79 @@ public class DriveLibraryService extends RemoteLibraryService {
         });
     }
 
-    String getFolder(String libraryIdentity, String folderIdentity) {
+    String getFolderId(String libraryIdentity, String folderIdentity) {
         if (TextUtils.isEmpty(folderIdentity)) {
             String root = mLibraryPrefs.getRootFolder(libraryIdentity);
             if (!TextUtils.isEmpty(root)) {
                 // use preferred root
-                return "'"+root+"'";
+                return root;
             } else {
                 // use real root
-                return "'"+DEFAULT_ROOT_FOLDER+"'";
+                return DEFAULT_ROOT_FOLDER;
             }
         } else {
-            return "'"+folderIdentity+"'";
+            return folderIdentity;
         }
     }
 
-    boolean requestInflight(String cacheKey, Result callback) {
-        synchronized (activeSubscribers) {
-            for (FileSubscriber s : activeSubscribers) {
-                if (s.cacheKey.equals(cacheKey)) {
-                    s.addListener(callback);
-                    return true;
-                }
+    /**
+     * @param priority the caller would have fetched at, a speculative fetch they
+     *                 join is brought up to it
+     */
+    boolean requestInflight(String cacheKey, DriveHelper.Session session, int priority,
+                            int startpos, int maxResults, Result callback) {
+        FileSubscriber s;
+        while ((s = inflight.get(cacheKey)) != null) {
+            if (s.addListener(callback, startpos, maxResults)) {
+                s.promote(priority);
+                return true;
+            }
+            // It finished while we were looking, its listing is in the cache now
+            inflight.remove(cacheKey, s);
+            if (mCache.get(cacheKey, startpos, maxResults, session, callback)) {
+                return true;
             }
-            return false;
         }
+        return false;
     }
 
     // Drive api wont let us sort so we fetch everything at once
     // sort it ourselves and cache the result so pagination works
-    // as Orpheus expects it to
+    // as Orpheus expects it to, validators collects the etag of each page
     Observable<Observable<File>> getFiles(final DriveHelper.Session driveSession,
-                                          final String query) {
+                                          final String query,
+                                          final ListingValidators.Builder validators) {
         return Observable.create(new Observable.OnSubscribe<Observable<File>>() {
             @Override
             public void call(Subscriber<? super Observable<File>> subscriber) {
                 if (subscriber.isUnsubscribed()) return; //In case of auth fail;
-                subscriber.onNext(getPage(subscriber, driveSession, query, null));
+                subscriber.onNext(getPage(subscriber, driveSession, query, null, validators));
             }
         });
     }
 
+    public static Drive.Files.List listRequest(DriveHelper.Session driveSession, String query,
+                                               String paginationToken) throws IOException {
+        Drive.Files.List req = driveSession.getDrive().files().list()
+                .setQ(query)
+                .setFields(Helpers.FIELDS)
+                .setMaxResults(500); //More the better
+        if (!TextUtils.isEmpty(paginationToken)) req.setPageToken(paginationToken);
+        return req;
+    }
+
     Observable<File> getPage(final Subscriber<? super Observable<File>> outerSubscriber,
                              final DriveHelper.Session driveSession,
                              final String query,
-                             final String paginationToken) {
+                             final String paginationToken,
+                             final ListingValidators.Builder validators) {
         return Observable.create(new Observable.OnSubscribe<File>() {
             @Override
             public void call(Subscriber<? super File> subscriber) {
                 try {
                     Timber.d("q=" + query);
-                    Drive.Files.List req = driveSession.getDrive().files().list()
-                            .setQ(query)
-                            .setFields(Helpers.FIELDS)
-                            .setMaxResults(500); //More the better
-                    if (!TextUtils.isEmpty(paginationToken)) req.setPageToken(paginationToken);
-                    FileList resp = req.execute();
+                    FileList resp = driveSession.execute(listRequest(driveSession, query, paginationToken));
+                    validators.add(paginationToken, resp.getEtag());
                     List<File> files = resp.getItems();
                     for (File f : files) {
                         if (subscriber.isUnsubscribed()) return;
@@ -274,8 +551,8 @@ public class DriveLibraryService extends RemoteLibraryService {
                     if (!TextUtils.isEmpty(resp.getNextPageToken())) {
                         if (!outerSubscriber.isUnsubscribed())
                             outerSubscriber.onNext(
-                                    getPage(outerSubscriber, driveSession, query, resp.getNextPageToken()
-                            ));
+                                    getPage(outerSubscriber, driveSession, query, resp.getNextPageToken(),
+                                            validators));
                     } else {
                         if (!outerSubscriber.isUnsubscribed()) outerSubscriber.onCompleted();
                     }
@@ -286,36 +563,184 @@ public class DriveLibraryService extends RemoteLibraryService {
         });
     }
 
+    class Listener implements IBinder.DeathRecipient {
+        final FileSubscriber subscriber;
+        final Result callback;
+        final int startpos;
+        final int maxResults;
+        // guarded by subscriber.callbacks
+        boolean dead;
+
+        Listener(FileSubscriber subscriber, Result callback, int startpos, int maxResults) {
+            this.subscriber = subscriber;
+            this.callback = callback;
+            this.startpos = startpos;
+            this.maxResults = maxResults;
+        }
+
+        @Override
+        public void binderDied() {
+            subscriber.detach(this);
+        }
+    }
+
     class FileSubscriber extends Subscriber<Observable<File>> {
 
         final DriveHelper.Session driveSession;
-        final int maxResults;
+        final String libraryIdentity;
         final boolean songsOnly;
         final String cacheKey;
+        final int prefetchDepth;
+        final boolean cancelWhenOrphaned;
 
-        final List<Result> callbacks = new ArrayList<>(2);
-        final List<Folder> folders = new ArrayList<>(100);
-        final List<Song> songs = new ArrayList<>(100);
-        final List<Bundle> bundlesCache = new ArrayList<>(100);
-        final List<Bundle> bundlesResult = new ArrayList<>(30);
+        // guarded by itself
+        final List<Listener> callbacks = new ArrayList<>(2);
+        boolean done;
 
-        String authToken = null;
+        final List<RequestCache.Item> items = new ArrayList<>(100);
+        final ListingValidators.Builder validators = new ListingValidators.Builder();
 
+        String authToken = null;
+        long snapshot;
+
+        // guarded by callbacks, query is set once we're scheduled and priority
+        // is the most urgent we've been queued at or asked for before that
+        String query;
+        int priority = Integer.MAX_VALUE;
+        final AtomicBoolean started = new AtomicBoolean();
+
+        /**
+         * @param cancelWhenOrphaned stop fetching once every listener is gone, background
+         *                           fetches that started without one keep going
+         */
         FileSubscriber(DriveHelper.Session driveSession,
-                       int maxResults,
+                       String libraryIdentity,
                        boolean songsOnly,
                        String cacheKey,
-                       Result callback) {
+                       int prefetchDepth,
+                       boolean cancelWhenOrphaned) {
             this.driveSession = driveSession;
-            this.maxResults = maxResults;
+            this.libraryIdentity = libraryIdentity;
             this.songsOnly = songsOnly;
             this.cacheKey = cacheKey;
-            addListener(callback);
+            this.prefetchDepth = prefetchDepth;
+            this.cancelWhenOrphaned = cancelWhenOrphaned;
+        }
+
+        /**
+         * @return false if we've already delivered, the caller should check the cache
+         */
+        boolean addListener(Result result, int startpos, int maxResults) {
+            final Listener listener = new Listener(this, result, startpos, maxResults);
+            final IBinder binder = result.asBinder();
+            // Linked before finish() can see it, so it never unlinks what isn't linked
+            try {
+                binder.linkToDeath(listener, 0);
+            } catch (RemoteException e) {
+                // Already dead, nobody to answer
+                detach(listener);
+                return true;
+            }
+            synchronized (callbacks) {
+                if (!done) {
+                    // it may have died since we linked it
+                    if (!listener.dead) {
+                        callbacks.add(listener);
+                    }
+                    return true;
+                }
+            }
+            unlink(listener);
+            return false;
+        }
+
+        void unlink(Listener listener) {
+            try {
+                listener.callback.asBinder().unlinkToDeath(listener, 0);
+            } catch (NoSuchElementException ignored) {
+                // it died and took the link with it
+            }
+        }
+
+        void detach(Listener listener) {
+            synchronized (callbacks) {
+                listener.dead = true;
+                // whether it made it in or not, we may be orphaned now
+                callbacks.remove(listener);
+                if (done || !callbacks.isEmpty() || !cancelWhenOrphaned) {
+                    return;
+                }
+                done = true;
+            }
+            Timber.d("detach() nobody left waiting for %s, cancelling", cacheKey);
+            unsubscribe();
+            inflight.remove(cacheKey, this);
+        }
+
+        /*
+         * Marks us done and hands back the listeners that still need an answer
+         */
+        List<Listener> finish() {
+            final List<Listener> listeners;
+            synchronized (callbacks) {
+                if (done) {
+                    return Collections.emptyList();
+                }
+                done = true;
+                listeners = new ArrayList<>(callbacks);
+                callbacks.clear();
+            }
+            inflight.remove(cacheKey, this);
+            for (Listener listener : listeners) {
+                unlink(listener);
+            }
+            return listeners;
         }
 
-        void addListener(Result result) {
+        /*
+         * Queues the fetch, whichever of the times we're queued runs first does the work
+         */
+        void schedule(String q, int priority) {
             synchronized (callbacks) {
-                callbacks.add(result);
+                query = q;
+                priority = Math.min(priority, this.priority);
+                this.priority = priority;
+            }
+            queue(q, priority);
+        }
+
+        void queue(final String q, int priority) {
+            driveSession.getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (isUnsubscribed() || !started.compareAndSet(false, true)) {
+                        return;
+                    }
+                    getFiles(driveSession, q, validators).subscribe(FileSubscriber.this);
+                }
+            }, priority);
+        }
+
+        /*
+         * Someone is waiting on us at priority now, if we're still queued
+         * behind work they'd overtake we're queued again at theirs
+         */
+        void promote(int priority) {
+            final String q;
+            synchronized (callbacks) {
+                if (priority >= this.priority) {
+                    return;
+                }
+                this.priority = priority;
+                if (query == null) {
+                    // not queued yet, when we are it's at this
+                    return;
+                }
+                q = query;
+            }
+            if (!started.get()) {
+                Timber.d("promote(%s) to %d", cacheKey, priority);
+                queue(q, priority);
             }
         }
 
@@ -323,7 +748,7 @@ public class DriveLibraryService extends RemoteLibraryService {
         public void onStart() {
             super.onStart();
             try {
-                authToken = driveSession.getCredential().getToken();
+                authToken = driveSession.getAuthToken();
             } catch (Exception e) {
                 unsubscribe();
                 onError(e);
@@ -333,93 +758,70 @@ public class DriveLibraryService extends RemoteLibraryService {
         @Override
         public void onCompleted() {
             Timber.v("onCompleted(outer)");
-            if (!songsOnly && !folders.isEmpty()) {
-                // Sort
-                Collections.sort(folders, new Comparator<Folder>() {
-                    @Override
-                    public int compare(Folder lhs, Folder rhs) {
-                        return lhs.name.compareTo(rhs.name);
-                    }
-                });
-                for (Folder folder : folders) {
-                    // transform
-                    Bundle b = folder.toBundle();
-                    bundlesCache.add(b);
-                    // populate initial results
-                    if (bundlesResult.size() < maxResults) {
-                        bundlesResult.add(b);
-                    }
-                }
+            Collections.sort(items, RequestCache.ITEM_ORDER);
+
+            // cache, before we're done so late listeners find it
+            snapshot = mCache.putItems(cacheKey, items, validators.build());
+
+            // iterate the listeners, usually there is only one
+            // but requests for the same listing made while we
+            // were fetching are attached to us
+            for (Listener listener : finish()) {
+                deliver(listener);
             }
 
-            if (!songs.isEmpty()) {
-                // sort
-                Collections.sort(songs, new Comparator<Song>() {
-                    @Override
-                    public int compare(Song lhs, Song rhs) {
-                        return lhs.name.compareTo(rhs.name);
-                    }
-                });
-                for (Song song : songs) {
-                    // transform
-                    Bundle b = song.toBundle();
-                    bundlesCache.add(b);
-                    // populate initial results
-                    if (bundlesResult.size() < maxResults) {
-                        bundlesResult.add(b);
-                    }
-                }
+            if (prefetchDepth != NO_PREFETCH) {
+                prefetchChildren(libraryIdentity, driveSession, items, prefetchDepth);
             }
+        }
 
-            // cache
-            mCache.put(cacheKey, bundlesCache);
+        void deliver(Listener listener) {
+            // populate results, startpos is only non zero if our cache entry
+            // was evicted while the client was paging through it
+            final int start = Math.min(listener.startpos, items.size());
+            final int end = Math.min(start + listener.maxResults, items.size());
+            final List<RequestCache.Item> page = items.subList(start, end);
+            final Map<String, TrackTags> tags = tagsFor(driveSession, page);
+            final List<Bundle> bundlesResult = new ArrayList<>(end - start);
+            for (RequestCache.Item item : page) {
+                bundlesResult.add(item.toBundle(mSongUris, libraryIdentity, authToken, tags.get(item.identity)));
+            }
 
             // if cache is larger than initial results add page token
             Bundle token = null;
-            if (bundlesResult.size() < bundlesCache.size()) {
-                token = new Bundle(1);
+            if (end < items.size()) {
+                token = new Bundle(2);
                 Timber.d("onCompleted() maxresults=%d, resultsize=%d, cacheSize=%d",
-                        maxResults, bundlesResult.size(), bundlesCache.size());
-                token.putInt("startpos", bundlesResult.size());
-            }
-
-            // iterate the listeners, really we should only
-            // have one, but the api doesnt yet allow canceling
-            // so we could end up with multiple even though
-            // only the last will be valid
-            synchronized (callbacks) {
-                for (Result callback : callbacks) {
-                    try {
-                        callback.onNext(bundlesResult, token);
-                    } catch (RemoteException ignored) {}
-                }
+                        listener.maxResults, bundlesResult.size(), items.size());
+                token.putInt("startpos", end);
+                // pinned once they come back for it
+                token.putLong("snapshot", snapshot);
             }
 
-            // remove ourselves so no additional callbacks will be added
-            activeSubscribers.remove(this);
+            try {
+                listener.callback.onNext(bundlesResult, token);
+            } catch (RemoteException ignored) {}
         }
 
         @Override
         public void onError(Throwable e) {
             Timber.e(e, "onError(inner)");
-            synchronized (callbacks) {
-                for (Result callback : callbacks) {
-                    if (e instanceof GoogleAuthException) {
-                        try {
-                            callback.onError(new ParcelableException(AUTH_FAILURE,e));
-                        } catch (RemoteException ignored) { }
-                    } else if (e instanceof IOException) {
-                        try {
-                            callback.onError(new ParcelableException(NETWORK,e));
-                        } catch (RemoteException ignored) { }
-                    } else {
-                        try {
-                            callback.onError(new ParcelableException(e));
-                        } catch (RemoteException ignored) { }
-                    }
+            for (Listener listener : finish()) {
+                final Result callback = listener.callback;
+                if (e instanceof GoogleAuthException) {
+                    try {
+                        callback.onError(new ParcelableException(AUTH_FAILURE,e));
+                    } catch (RemoteException ignored) { }
+                } else if (e instanceof IOException) {
+                    try {
+                        callback.onError(new ParcelableException(NETWORK,e));
+                    } catch (RemoteException ignored) { }
+                } else {
+                    try {
+                        callback.onError(new ParcelableException(e));
+                    } catch (RemoteException ignored) { }
                 }
             }
-            activeSubscribers.remove(this);
         }
 
         @Override
@@ -437,22 +839,14 @@ public class DriveLibraryService extends RemoteLibraryService {
 
                 @Override
                 public void onNext(File file) {
-                    final String mime = file.getMimeType();
-                    if (TextUtils.equals(FOLDER_MIMETYPE, mime)) {
-                        try {
-                            folders.add(Helpers.buildFolder(file));
-                        } catch (Exception e) {
-                            unsubscribe();
-                            onError(e);
-                        }
-                    } else if (mime.contains("audio")
-                            || TextUtils.equals(mime, "application/ogg")) { //TODO more mimes?
-                        try {
-                            songs.add(Helpers.buildSong(file, authToken));
-                        } catch (Exception e) {
-                            unsubscribe();
-                            onError(e);
+                    try {
+                        RequestCache.Item item = Helpers.buildItem(file);
+                        if (item != null && !(songsOnly && item.folder)) {
+                            items.add(item);
                         }
+                    } catch (Exception e) {
+                        unsubscribe();
+                        onError(e);
                     }
                 }
             }));
@@ -460,19 +854,21 @@ public class DriveLibraryService extends RemoteLibraryService {
     }
 
     /**
-     *
+     * Lists a single page, ordered by drive, folders first then by title.
      */
     static class ListFilesRunner implements Runnable {
         private final DriveHelper.Session driveSession;
+        private final SongUris songUris;
         private final int maxResults;
         private final String query;
         private final String paginationToken;
         private final boolean songsOnly;
         private final Result callback;
 
-        ListFilesRunner(DriveHelper.Session driveSession, int maxResults, String query,
+        ListFilesRunner(DriveHelper.Session driveSession, SongUris songUris, int maxResults, String query,
                         String paginationToken, boolean songsOnly, Result callback) {
             this.driveSession = driveSession;
+            this.songUris = songUris;
             this.maxResults = maxResults;
             this.query = query;
             this.paginationToken = paginationToken;
@@ -488,14 +884,17 @@ public class DriveLibraryService extends RemoteLibraryService {
                         .setQ(query)
                         .setFields(Helpers.FIELDS)
                         .setMaxResults(maxResults);
+                // not exposed by our version of the client library
+                req.set("orderBy", SERVER_ORDER);
                 if (!TextUtils.isEmpty(paginationToken)) {
                     req.setPageToken(paginationToken);
                 }
-                FileList resp = req.execute();
+                FileList resp = driveSession.execute(req);
                 List<File> files = resp.getItems();
                 List<Folder> folders = new ArrayList<>();
                 List<Song> songs = new ArrayList<>();
-                final String authToken = driveSession.getCredential().getToken();
+                final String authToken = driveSession.getAuthToken();
+                final String accountName = driveSession.getCredential().getSelectedAccountName();
                 for (File f : files) {
                     final String mime = f.getMimeType();
                     if (TextUtils.equals(FOLDER_MIMETYPE, mime)) {
@@ -504,7 +903,7 @@ public class DriveLibraryService extends RemoteLibraryService {
                             folders.add(folder);
                         }
                     } else if (mime.contains("audio") || TextUtils.equals(mime, "application/ogg")) {
-                        Song song = Helpers.buildSong(f, authToken);
+                        Song song = songUris.buildSong(accountName, f, authToken);
                         songs.add(song);
                     }
                 }
@@ -550,7 +949,11 @@ public class DriveLibraryService extends RemoteLibraryService {
         }
     }
 
-    protected void querySongs(String libraryIdentity, final int maxResults, Bundle paginationBundle, final Result callback) throws RemoteException {
+    protected void querySongs(final String libraryIdentity, final int maxResults, Bundle paginationBundle, final Result callback) throws RemoteException {
+        if (Federation.isFederated(libraryIdentity)) {
+            mFederation.listSongs(maxResults, paginationBundle, callback);
+            return;
+        }
         final DriveHelper.Session session = mDriveHelper.getSession(libraryIdentity);
         final String paginationToken;
         if (paginationBundle != null) {
@@ -558,6 +961,13 @@ public class DriveLibraryService extends RemoteLibraryService {
         } else {
             paginationToken = null;
         }
+        mSyncEngine.requestSync(libraryIdentity);
+        if (paginationToken == null && mIndex.isReady(libraryIdentity)) {
+            final int startpos = (paginationBundle != null) ? paginationBundle.getInt("startpos") : 0;
+            final List<RequestCache.Item> items = mIndex.songs(libraryIdentity, startpos, maxResults + 1);
+            serveIndexed(session, items, startpos, maxResults, callback);
+            return;
+        }
         Runnable r = new Runnable() {
             @Override
             public void run() {
@@ -569,14 +979,14 @@ public class DriveLibraryService extends RemoteLibraryService {
                     if (!TextUtils.isEmpty(paginationToken)) {
                         req.setPageToken(paginationToken);
                     }
-                    FileList resp = req.execute();
+                    FileList resp = session.execute(req);
                     List<File> files = resp.getItems();
                     List<Bundle> songs = new ArrayList<>();
-                    final String authToken = session.getCredential().getToken();
+                    final String authToken = session.getAuthToken();
                     for (File f : files) {
                         final String mime = f.getMimeType();
                         if (mime.contains("audio") || TextUtils.equals(mime, "application/ogg")) {
-                            Song song = Helpers.buildSong(f, authToken);
+                            Song song = mSongUris.buildSong(libraryIdentity, f, authToken);
                             songs.add(song.toBundle());
                         }
                     }
@@ -602,7 +1012,7 @@ public class DriveLibraryService extends RemoteLibraryService {
                 }
             }
         };
-        THREAD_POOL_EXECUTOR.execute(r);
+        session.getExecutor().submit(r, PriorityExecutor.BULK);
     }
 
 }
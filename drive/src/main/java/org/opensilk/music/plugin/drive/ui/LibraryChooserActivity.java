@@ -19,9 +19,11 @@ package org.opensilk.music.plugin.drive.ui;
 
 import android.accounts.AccountManager;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.os.Bundle;
@@ -35,6 +37,7 @@ import org.opensilk.music.api.meta.LibraryInfo;
 import org.opensilk.music.plugin.drive.R;
 import org.opensilk.music.plugin.drive.util.AuthTest;
 import org.opensilk.music.plugin.drive.util.DriveHelper;
+import org.opensilk.music.plugin.drive.util.Federation;
 
 import javax.inject.Inject;
 
@@ -75,9 +78,12 @@ public class LibraryChooserActivity extends Activity {
         setResult(RESULT_CANCELED);
 
         if (savedInstanceState == null) {
-            Intent i = AccountManager.newChooseAccountIntent(
-                    null, null, new String[]{"com.google"}, true, null, null, null, null);
-            startActivityForResult(i, REQUEST_ACCOUNT_PICKER);
+            if (mDriveHelper.getAccounts().size() > 1) {
+                // Enough accounts to be worth offering them all together
+                ChooseFragment.newInstance().show(getFragmentManager(), "choose");
+            } else {
+                pickAccount();
+            }
         }
 
     }
@@ -113,6 +119,22 @@ public class LibraryChooserActivity extends Activity {
         }
     }
 
+    void pickAccount() {
+        Intent i = AccountManager.newChooseAccountIntent(
+                null, null, new String[]{"com.google"}, true, null, null, null, null);
+        startActivityForResult(i, REQUEST_ACCOUNT_PICKER);
+    }
+
+    void finishFederated() {
+        final String name = getString(R.string.library_federated);
+        LibraryInfo libraryInfo = new LibraryInfo(Federation.LIBRARY_IDENTITY, name, null, null);
+        Intent i = new Intent()
+                .putExtra(OrpheusApi.EXTRA_LIBRARY_ID, Federation.LIBRARY_IDENTITY)
+                .putExtra(OrpheusApi.EXTRA_LIBRARY_INFO, libraryInfo);
+        setResult(RESULT_OK, i);
+        finish();
+    }
+
     private void startTest() {
         // show progress
         ProgressFragment.newInstance().show(getFragmentManager(), "progress");
@@ -146,11 +168,42 @@ public class LibraryChooserActivity extends Activity {
         finish();
     }
 
-    private void finishFailure() {
+    void finishFailure() {
         setResult(RESULT_CANCELED);
         finish();
     }
 
+    public static class ChooseFragment extends DialogFragment {
+
+        public static ChooseFragment newInstance() {
+            return new ChooseFragment();
+        }
+
+        @Override
+        public Dialog onCreateDialog(Bundle savedInstanceState) {
+            return new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.choose_library)
+                    .setItems(R.array.choose_library_entries, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            final LibraryChooserActivity activity = (LibraryChooserActivity) getActivity();
+                            if (which == 0) {
+                                activity.finishFederated();
+                            } else {
+                                activity.pickAccount();
+                            }
+                        }
+                    })
+                    .create();
+        }
+
+        @Override
+        public void onCancel(DialogInterface dialog) {
+            super.onCancel(dialog);
+            ((LibraryChooserActivity) getActivity()).finishFailure();
+        }
+    }
+
     public static class ProgressFragment extends DialogFragment {
 
         public static ProgressFragment newInstance() {
@@ -30,14 +30,25 @@ import android.widget.Toast;
 import org.opensilk.common.dagger.DaggerInjector;
 import org.opensilk.music.plugin.common.AbsSettingsActivity;
 import org.opensilk.music.plugin.common.FolderPickerActivity;
+import org.opensilk.music.plugin.common.LibraryPreferences;
 import org.opensilk.music.plugin.common.PluginUtil;
 import org.opensilk.music.plugin.drive.DriveLibraryService;
 import org.opensilk.music.plugin.drive.R;
+import org.opensilk.music.plugin.drive.util.DriveHelper;
+import org.opensilk.music.plugin.drive.util.Federation;
+import org.opensilk.music.plugin.drive.util.OfflineCache;
+import org.opensilk.music.plugin.drive.util.PriorityExecutor;
 import org.opensilk.music.plugin.drive.util.RequestCache;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import javax.inject.Inject;
 
 import static org.opensilk.music.plugin.common.LibraryPreferences.ROOT_FOLDER;
+import static org.opensilk.music.plugin.common.LibraryPreferences.OFFLINE_BUDGET;
+import static org.opensilk.music.plugin.common.LibraryPreferences.OFFLINE_FOLDERS;
+import static org.opensilk.music.plugin.common.LibraryPreferences.OFFLINE_METERED;
 import static org.opensilk.music.plugin.common.LibraryPreferences.ROOT_FOLDER_NAME;
 
 /**
@@ -50,10 +61,15 @@ public class SettingsActivity extends AbsSettingsActivity {
         return SettingsFragment.newInstance(libraryId);
     }
 
-    public static class SettingsFragment extends PreferenceFragment implements Preference.OnPreferenceClickListener {
+    public static class SettingsFragment extends PreferenceFragment implements
+            Preference.OnPreferenceClickListener, Preference.OnPreferenceChangeListener {
 
         public static final String CLEAR_CACHE = "clear_cache";
         public static final String LICENSES = "licenses";
+        public static final String OFFLINE_CLEAR = "offline_clear";
+
+        static final int PICK_ROOT = 0;
+        static final int PICK_OFFLINE = 1;
 
         public static SettingsFragment newInstance(String libraryId) {
             SettingsFragment f = new SettingsFragment();
@@ -64,6 +80,9 @@ public class SettingsActivity extends AbsSettingsActivity {
         }
 
         @Inject RequestCache mCache;
+        @Inject LibraryPreferences mLibraryPrefs;
+        @Inject DriveHelper mDriveHelper;
+        @Inject OfflineCache mOfflineCache;
 
         private String mLibraryId;
 
@@ -76,6 +95,13 @@ public class SettingsActivity extends AbsSettingsActivity {
             mLibraryId = getArguments().getString("__id");
             // Change preferences file per Orpheus api guidelines
             getPreferenceManager().setSharedPreferencesName(PluginUtil.posixSafe(mLibraryId));
+            if (Federation.isFederated(mLibraryId)) {
+                // Nothing to set for all accounts at once
+                addPreferencesFromResource(R.xml.settings_federated);
+                findPreference(CLEAR_CACHE).setOnPreferenceClickListener(this);
+                findPreference(LICENSES).setOnPreferenceClickListener(this);
+                return;
+            }
             addPreferencesFromResource(R.xml.settings);
 
             // default browse folder
@@ -85,6 +111,13 @@ public class SettingsActivity extends AbsSettingsActivity {
                 findPreference(ROOT_FOLDER).setSummary(rootFolderTitle);
             }
 
+            // offline folders
+            findPreference(OFFLINE_FOLDERS).setOnPreferenceClickListener(this);
+            findPreference(OFFLINE_BUDGET).setOnPreferenceChangeListener(this);
+            findPreference(OFFLINE_METERED).setOnPreferenceChangeListener(this);
+            findPreference(OFFLINE_CLEAR).setOnPreferenceClickListener(this);
+            updateOfflineSummary();
+
             // clear cache
             findPreference(CLEAR_CACHE).setOnPreferenceClickListener(this);
 
@@ -94,7 +127,18 @@ public class SettingsActivity extends AbsSettingsActivity {
 
         @Override
         public void onActivityResult(int requestCode, int resultCode, Intent data) {
-            if (requestCode == 0) {
+            if (requestCode == PICK_OFFLINE) {
+                if (resultCode == Activity.RESULT_OK) {
+                    String pickedFolder = data.getStringExtra(FolderPickerActivity.PICKED_FOLDER_IDENTITY);
+                    if (!TextUtils.isEmpty(pickedFolder)) {
+                        Set<String> folders = mLibraryPrefs.getOfflineFolders(mLibraryId);
+                        folders.add(pickedFolder);
+                        mLibraryPrefs.setOfflineFolders(mLibraryId, folders);
+                        updateOfflineSummary();
+                        syncOffline(false);
+                    }
+                }
+            } else if (requestCode == PICK_ROOT) {
                 if (resultCode == Activity.RESULT_OK) {
                     String pickedFolder = data.getStringExtra(FolderPickerActivity.PICKED_FOLDER_IDENTITY);
                     String pickedFolderTitle = data.getStringExtra(FolderPickerActivity.PICKED_FOLDER_TITLE);
@@ -119,7 +163,20 @@ public class SettingsActivity extends AbsSettingsActivity {
                         .putExtra(FolderPickerActivity.STARTING_FOLDER, DriveLibraryService.DEFAULT_ROOT_FOLDER);
                 getPreferenceManager().getSharedPreferences().edit().remove(ROOT_FOLDER).remove(ROOT_FOLDER_NAME).apply();
                 findPreference(ROOT_FOLDER).setSummary(null);
-                startActivityForResult(i, 0);
+                startActivityForResult(i, PICK_ROOT);
+                return true;
+            } else if (findPreference(OFFLINE_FOLDERS) == preference) {
+                Intent i = getActivity().getIntent()
+                        .setClass(getActivity(), FolderPickerActivity.class)
+                        .putExtra(FolderPickerActivity.SERVICE_COMPONENT, new ComponentName(getActivity(), DriveLibraryService.class))
+                        .putExtra(FolderPickerActivity.STARTING_FOLDER, DriveLibraryService.DEFAULT_ROOT_FOLDER);
+                startActivityForResult(i, PICK_OFFLINE);
+                return true;
+            } else if (findPreference(OFFLINE_CLEAR) == preference) {
+                mLibraryPrefs.setOfflineFolders(mLibraryId, new HashSet<String>());
+                updateOfflineSummary();
+                syncOffline(true);
+                Toast.makeText(getActivity(), R.string.msg_offline_cleared, Toast.LENGTH_SHORT).show();
                 return true;
             } else if (findPreference(CLEAR_CACHE) == preference) {
                 mCache.clear();
@@ -131,6 +188,45 @@ public class SettingsActivity extends AbsSettingsActivity {
             }
             return false;
         }
+
+        @Override
+        public boolean onPreferenceChange(Preference preference, Object newValue) {
+            if (findPreference(OFFLINE_BUDGET) == preference || findPreference(OFFLINE_METERED) == preference) {
+                // the new value is saved after we return
+                getView().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        syncOffline(false);
+                    }
+                });
+            }
+            return true;
+        }
+
+        void updateOfflineSummary() {
+            final int count = mLibraryPrefs.getOfflineFolders(mLibraryId).size();
+            findPreference(OFFLINE_FOLDERS).setSummary(count == 0
+                    ? getString(R.string.settings_offline_none)
+                    : getResources().getQuantityString(R.plurals.settings_offline_count, count, count));
+        }
+
+        /*
+         * Downloads or evicts to match the new settings, clear deletes everything first
+         */
+        void syncOffline(final boolean clear) {
+            final DriveHelper.Session session = mDriveHelper.getSession(mLibraryId);
+            final String libraryId = mLibraryId;
+            session.getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (clear) {
+                        mOfflineCache.clear(libraryId);
+                    } else {
+                        mOfflineCache.sync(session, libraryId);
+                    }
+                }
+            }, PriorityExecutor.INTERACTIVE);
+        }
     }
 
 }
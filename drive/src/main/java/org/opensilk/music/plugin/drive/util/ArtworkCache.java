@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Disk cache of downsampled cover art. Each picture is stored once per size in
+ * {@link #SIZES}, so nothing larger than a thumbnail is ever handed out.
+ * Songs that share their folder's art only get an alias to it, and songs
+ * without any get a marker so we don't go looking again for a while.
+ *
+ * Reads touch the file, the directory is kept under a byte cap by deleting
+ * the least recently used.
+ *
+ * Created by drew on 12/4/14.
+ */
+@Singleton
+public class ArtworkCache {
+
+    // Longest side in pixels, list rows and the now playing screen
+    public static final int[] SIZES = { 192, 600 };
+    public static final long DEFAULT_MAX_BYTES = 24 * 1024 * 1024;
+    // How long we believe a song has no artwork
+    public static final long MISSING_TTL = 24 * 60 * 60 * 1000;
+
+    static final int QUALITY = 85;
+
+    final File dir;
+    final long maxBytes;
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Inject
+    public ArtworkCache(@ForApplication Context context) {
+        this(new File(context.getCacheDir(), "artwork"), DEFAULT_MAX_BYTES);
+    }
+
+    ArtworkCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the smallest fixed size at least as big as size, or the largest
+     */
+    public static int bucket(int size) {
+        for (int s : SIZES) {
+            if (s >= size) {
+                return s;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    /**
+     * @return the cached picture, following aliases, or null
+     */
+    public File get(String accountName, String id, int size) {
+        final String key = key(accountName, id);
+        final String target = readAlias(key);
+        final File f = new File(dir, (target != null ? target : key) + "-" + bucket(size) + ".jpg");
+        if (!f.exists() || f.length() == 0) {
+            return null;
+        }
+        touch(f);
+        return f;
+    }
+
+    /**
+     * @return true if we recently looked and found nothing
+     */
+    public boolean isMissing(String accountName, String id) {
+        final File f = new File(dir, key(accountName, id) + ".none");
+        return f.exists() && now() - f.lastModified() < MISSING_TTL;
+    }
+
+    public void putMissing(String accountName, String id) {
+        writeFile(new File(dir, key(accountName, id) + ".none"), new byte[0]);
+    }
+
+    /**
+     * Points id at the artwork already stored for target
+     */
+    public void putAlias(String accountName, String id, String target) {
+        try {
+            writeFile(new File(dir, key(accountName, id) + ".alias"),
+                    key(accountName, target).getBytes("UTF-8"));
+        } catch (IOException e) {
+            Timber.w(e, "putAlias()");
+        }
+    }
+
+    /**
+     * Decodes the picture and stores it at every size
+     *
+     * @return false if it couldn't be decoded
+     */
+    public boolean put(String accountName, String id, byte[] encoded) {
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(encoded, 0, encoded.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return false;
+        }
+        final String key = key(accountName, id);
+        for (int size : SIZES) {
+            final Bitmap bitmap = decodeScaled(encoded, bounds.outWidth, bounds.outHeight, size);
+            if (bitmap == null) {
+                return false;
+            }
+            final File f = new File(dir, key + "-" + size + ".jpg");
+            final File tmp = new File(dir, key + "-" + size + ".tmp");
+            try {
+                ensureDir();
+                final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+                try {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("Unable to rename " + tmp);
+                }
+            } catch (IOException e) {
+                Timber.w(e, "put(%s)", id);
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return false;
+            } finally {
+                bitmap.recycle();
+            }
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimToSize();
+            }
+        });
+        return true;
+    }
+
+    /*
+     * Subsamples while decoding so we never hold the full size bitmap
+     */
+    static Bitmap decodeScaled(byte[] encoded, int width, int height, int size) {
+        final int longest = Math.max(width, height);
+        int sample = 1;
+        while (longest / (sample * 2) >= size) {
+            sample *= 2;
+        }
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        final Bitmap decoded = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, opts);
+        if (decoded == null) {
+            return null;
+        }
+        final int dl = Math.max(decoded.getWidth(), decoded.getHeight());
+        if (dl <= size) {
+            return decoded;
+        }
+        final float scale = (float) size / dl;
+        final Bitmap scaled = Bitmap.createScaledBitmap(decoded,
+                Math.max(1, Math.round(decoded.getWidth() * scale)),
+                Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        return scaled;
+    }
+
+    String readAlias(String key) {
+        final File f = new File(dir, key + ".alias");
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            final InputStream in = new FileInputStream(f);
+            try {
+                final byte[] b = new byte[(int) f.length()];
+                int read = 0;
+                while (read < b.length) {
+                    int n = in.read(b, read, b.length - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+                touch(f);
+                return new String(b, 0, read, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void writeFile(File f, byte[] data) {
+        try {
+            ensureDir();
+            final OutputStream out = new FileOutputStream(f);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Timber.w(e, "writeFile(%s)", f.getName());
+        }
+    }
+
+    void ensureDir() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+    }
+
+    void touch(File f) {
+        //noinspection ResultOfMethodCallIgnored
+        f.setLastModified(now());
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    static String key(String accountName, String id) {
+        return ListingDiskCache.sha1(accountName + "/" + id);
+    }
+
+    /*
+     * Deletes the least recently used till we're under the cap
+     */
+    void trimToSize() {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // newest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+            if (total > maxBytes) {
+                Timber.d("trimToSize() deleting %s", f.getName());
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+}
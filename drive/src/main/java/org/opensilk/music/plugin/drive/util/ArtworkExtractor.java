@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import java.io.IOException;
+
+import static org.opensilk.music.plugin.drive.util.TagExtractor.HEAD;
+import static org.opensilk.music.plugin.drive.util.TagExtractor.MAX_BOXES;
+import static org.opensilk.music.plugin.drive.util.TagExtractor.findBox;
+import static org.opensilk.music.plugin.drive.util.TagExtractor.int32;
+import static org.opensilk.music.plugin.drive.util.TagExtractor.matches;
+import static org.opensilk.music.plugin.drive.util.TagExtractor.syncsafe;
+
+/**
+ * Finds the cover picture embedded in an audio file, walking the same headers
+ * as {@link TagExtractor} but keeping only the image. Files without one cost
+ * no more than reading their tags.
+ *
+ * Created by drew on 12/4/14.
+ */
+public class ArtworkExtractor {
+
+    // Anything bigger isn't a cover worth pulling over the network
+    public static final int MAX_PICTURE = 4 * 1024 * 1024;
+
+    // ID3 and FLAC picture type for the front cover
+    static final int FRONT_COVER = 3;
+
+    /**
+     * @return the encoded image, or null if there isn't one
+     */
+    public static byte[] extract(RangeReader r) throws IOException {
+        if (r.length() < 12) {
+            return null;
+        }
+        r.prefetch(0, HEAD);
+        final byte[] magic = r.read(0, 12);
+        if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+            return readId3(r);
+        } else if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C') {
+            return readFlac(r);
+        } else if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p') {
+            return readMp4(r);
+        }
+        return null;
+    }
+
+    /*
+     * ID3v2 APIC and PIC frames, the front cover wins over whatever came first
+     */
+
+    static byte[] readId3(RangeReader r) throws IOException {
+        final byte[] h = r.read(0, 10);
+        final int version = h[3];
+        final int flags = h[5] & 0xff;
+        final long tagEnd = 10 + syncsafe(h, 6);
+        // The picture is most of the tag, take all of it at once
+        if (tagEnd <= MAX_PICTURE) {
+            r.prefetch(10, (int) (tagEnd - 10));
+        }
+        long pos = 10;
+        if ((flags & 0x40) != 0 && version >= 3) {
+            final byte[] ext = r.read(pos, 4);
+            pos += version == 4 ? syncsafe(ext, 0) : 4 + int32(ext, 0);
+        }
+        final int headerLen = version == 2 ? 6 : 10;
+        byte[] found = null;
+        for (int ii=0; ii<MAX_BOXES && pos + headerLen <= tagEnd; ii++) {
+            final byte[] fh = r.read(pos, headerLen);
+            if (fh[0] == 0) {
+                break; // padding
+            }
+            final boolean picture;
+            final long size;
+            if (version == 2) {
+                picture = matches(fh, 0, "PIC");
+                size = ((fh[3] & 0xff) << 16) | ((fh[4] & 0xff) << 8) | (fh[5] & 0xff);
+            } else {
+                picture = matches(fh, 0, "APIC");
+                size = version == 4 ? syncsafe(fh, 4) : int32(fh, 4);
+            }
+            pos += headerLen;
+            if (size <= 0 || pos + size > tagEnd) {
+                break;
+            }
+            if (picture && size <= MAX_PICTURE) {
+                final byte[] frame = r.read(pos, (int) size);
+                final int type = id3PictureType(frame, version);
+                if (type >= 0 && (found == null || type == FRONT_COVER)) {
+                    found = id3PictureData(frame, version);
+                    if (type == FRONT_COVER) {
+                        break;
+                    }
+                }
+            }
+            pos += size;
+        }
+        return found;
+    }
+
+    // offset of the picture type byte, after the encoding and mime or format
+    static int id3TypeOffset(byte[] frame, int version) {
+        if (version == 2) {
+            return 4;
+        }
+        int ii = 1;
+        while (ii < frame.length && frame[ii] != 0) {
+            ii++;
+        }
+        return ii + 1;
+    }
+
+    static int id3PictureType(byte[] frame, int version) {
+        final int off = id3TypeOffset(frame, version);
+        return off < frame.length ? frame[off] & 0xff : -1;
+    }
+
+    static byte[] id3PictureData(byte[] frame, int version) {
+        final boolean wide = frame[0] == 1 || frame[0] == 2;
+        int pos = id3TypeOffset(frame, version) + 1;
+        // skip the description
+        if (wide) {
+            while (pos + 1 < frame.length && (frame[pos] != 0 || frame[pos+1] != 0)) {
+                pos += 2;
+            }
+            pos += 2;
+        } else {
+            while (pos < frame.length && frame[pos] != 0) {
+                pos++;
+            }
+            pos += 1;
+        }
+        if (pos >= frame.length) {
+            return null;
+        }
+        final byte[] data = new byte[frame.length - pos];
+        System.arraycopy(frame, pos, data, 0, data.length);
+        return data;
+    }
+
+    /*
+     * FLAC PICTURE blocks
+     */
+
+    static byte[] readFlac(RangeReader r) throws IOException {
+        long pos = 4;
+        byte[] found = null;
+        for (int ii=0; ii<MAX_BOXES; ii++) {
+            final byte[] h = r.read(pos, 4);
+            final boolean last = (h[0] & 0x80) != 0;
+            final int type = h[0] & 0x7f;
+            final int len = ((h[1] & 0xff) << 16) | ((h[2] & 0xff) << 8) | (h[3] & 0xff);
+            pos += 4;
+            if (type == 6 && len >= 32 && len <= MAX_PICTURE) {
+                // type, mime and description lengths are all we need before the data
+                final byte[] head = r.read(pos, 8);
+                final long picType = int32(head, 0);
+                if (found == null || picType == FRONT_COVER) {
+                    final long mimeLen = int32(head, 4);
+                    final long descOff = pos + 8 + mimeLen;
+                    final long descLen = int32(r.read(descOff, 4), 0);
+                    // width, height, depth and colors follow the description
+                    final long lenOff = descOff + 4 + descLen + 16;
+                    final long dataLen = int32(r.read(lenOff, 4), 0);
+                    if (lenOff + 4 + dataLen <= pos + len) {
+                        found = r.read(lenOff + 4, (int) dataLen);
+                        if (picType == FRONT_COVER) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (last) {
+                break;
+            }
+            pos += len;
+        }
+        return found;
+    }
+
+    /*
+     * MP4 covr atom
+     */
+
+    static byte[] readMp4(RangeReader r) throws IOException {
+        final long[] moov = findBox(r, 0, r.length(), "moov");
+        final long[] udta = moov != null ? findBox(r, moov[0], moov[1], "udta") : null;
+        final long[] meta = udta != null ? findBox(r, udta[0], udta[1], "meta") : null;
+        final long[] ilst = meta != null ? findBox(r, meta[0] + 4, meta[1], "ilst") : null;
+        final long[] covr = ilst != null ? findBox(r, ilst[0], ilst[1], "covr") : null;
+        final long[] data = covr != null ? findBox(r, covr[0], covr[1], "data") : null;
+        if (data == null || data[1] - data[0] <= 8 || data[1] - data[0] > MAX_PICTURE) {
+            return null;
+        }
+        // type and locale, then the image
+        return r.read(data[0] + 8, (int) (data[1] - data[0] - 8));
+    }
+
+}
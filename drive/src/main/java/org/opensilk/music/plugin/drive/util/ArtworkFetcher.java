@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Finds the cover for a song, looking inside the file first and then for an
+ * image like folder.jpg next to it. Everything is read with ranged requests
+ * and stored downsampled in the {@link ArtworkCache}.
+ *
+ * Created by drew on 12/4/14.
+ */
+@Singleton
+public class ArtworkFetcher {
+
+    // In order of preference, matched against the title without extension
+    static final String[] FOLDER_IMAGES = { "folder", "cover", "front", "albumart" };
+
+    final DriveHelper driveHelper;
+    final LibraryIndex index;
+    final ArtworkCache cache;
+    final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    @Inject
+    public ArtworkFetcher(DriveHelper driveHelper, LibraryIndex index, ArtworkCache cache) {
+        this.driveHelper = driveHelper;
+        this.index = index;
+        this.cache = cache;
+    }
+
+    /**
+     * Blocks while the artwork is fetched, if we don't have it already
+     *
+     * @return the picture at the fixed size nearest size, null if the song has none
+     */
+    public java.io.File fetch(String accountName, String id, int size) throws IOException {
+        java.io.File f = cache.get(accountName, id, size);
+        if (f != null || cache.isMissing(accountName, id)) {
+            return f;
+        }
+        // Rows scrolling into view ask for the same song more than once
+        final String key = accountName + "/" + id;
+        final Object lock = new Object();
+        final Object existing = locks.putIfAbsent(key, lock);
+        synchronized (existing != null ? existing : lock) {
+            try {
+                f = cache.get(accountName, id, size);
+                if (f != null || cache.isMissing(accountName, id)) {
+                    return f;
+                }
+                fetchSync(driveHelper.getSession(accountName), accountName, id);
+                return cache.get(accountName, id, size);
+            } finally {
+                locks.remove(key, lock);
+            }
+        }
+    }
+
+    void fetchSync(DriveHelper.Session session, String accountName, String id) throws IOException {
+        File song = index.file(accountName, id);
+        if (song == null) {
+            song = session.execute(session.getDrive().files().get(id).setFields(Helpers.ARTWORK_FIELDS));
+        }
+        final HttpRequestFactory factory = session.getDrive().getRequestFactory();
+        if (song.getDownloadUrl() != null && song.getFileSize() != null) {
+            byte[] embedded = null;
+            try {
+                embedded = ArtworkExtractor.extract(new RangeReader(factory, song.getDownloadUrl(), song.getFileSize()));
+            } catch (EOFException|RuntimeException e) {
+                Timber.w("fetchSync() unreadable %s: %s", id, e);
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() >= 500 || e.getStatusCode() == 429) {
+                    throw e;
+                }
+                Timber.w("fetchSync() %s: %s", id, e.getStatusMessage());
+            }
+            if (embedded != null && cache.put(accountName, id, embedded)) {
+                return;
+            }
+        }
+        if (song.getParents() != null) {
+            for (ParentReference parent : song.getParents()) {
+                if (fetchFolderImage(session, accountName, parent.getId())) {
+                    cache.putAlias(accountName, id, parent.getId());
+                    return;
+                }
+            }
+        }
+        cache.putMissing(accountName, id);
+    }
+
+    /**
+     * @return true if the folder has an image we could store, under its own id
+     */
+    boolean fetchFolderImage(DriveHelper.Session session, String accountName, String folderId) throws IOException {
+        if (cache.get(accountName, folderId, ArtworkCache.SIZES[0]) != null) {
+            return true;
+        } else if (cache.isMissing(accountName, folderId)) {
+            return false;
+        }
+        final FileList resp = session.execute(session.getDrive().files().list()
+                .setQ("'" + Helpers.escapeQuery(folderId) + "' in parents and trashed=false"
+                        + " and mimeType contains 'image/'")
+                .setFields(Helpers.IMAGE_FIELDS)
+                .setMaxResults(100));
+        final File image = pickFolderImage(resp);
+        if (image != null && image.getFileSize() != null && image.getFileSize() <= ArtworkExtractor.MAX_PICTURE) {
+            final RangeReader reader = new RangeReader(session.getDrive().getRequestFactory(),
+                    image.getDownloadUrl(), image.getFileSize());
+            if (cache.put(accountName, folderId, reader.read(0, (int) image.getFileSize().longValue()))) {
+                return true;
+            }
+        }
+        cache.putMissing(accountName, folderId);
+        return false;
+    }
+
+    static File pickFolderImage(FileList resp) {
+        if (resp.getItems() == null) {
+            return null;
+        }
+        File best = null;
+        int bestRank = FOLDER_IMAGES.length;
+        for (File f : resp.getItems()) {
+            if (f.getTitle() == null || f.getDownloadUrl() == null) {
+                continue;
+            }
+            String name = f.getTitle().toLowerCase(Locale.US);
+            final int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            for (int ii=0; ii<bestRank; ii++) {
+                if (name.equals(FOLDER_IMAGES[ii])) {
+                    best = f;
+                    bestRank = ii;
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+}
@@ -17,9 +17,14 @@
 
 package org.opensilk.music.plugin.drive.util;
 
+import com.google.android.gms.auth.GoogleAuthException;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
 import com.google.api.services.drive.Drive;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Created by drew on 6/15/14.
  */
@@ -27,7 +32,28 @@ public interface DriveHelper {
     interface Session {
         Drive getDrive();
         GoogleAccountCredential getCredential();
+        /**
+         * @return access token for the account, usually fetched ahead of time
+         */
+        String getAuthToken() throws IOException, GoogleAuthException;
+        /**
+         * Executes the request, possibly batched with others made at the same time.
+         * Rate limited per account, failures drive asks us to retry are retried.
+         */
+        <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException;
+        /**
+         * Threads all work for this account runs on, by priority
+         */
+        PriorityExecutor getExecutor();
     }
     Session getSession(String accountName);
+    /**
+     * Opens sessions for the accounts we've seen before, fetching their tokens in the background
+     */
+    void prewarm();
+    /**
+     * @return every account we've opened a session for, sorted
+     */
+    List<String> getAccounts();
     void destroy();
 }
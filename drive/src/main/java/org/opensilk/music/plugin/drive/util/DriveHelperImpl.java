@@ -17,10 +17,17 @@
 
 package org.opensilk.music.plugin.drive.util;
 
+import android.accounts.Account;
+import android.accounts.AccountManager;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
 
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
 import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
@@ -28,27 +35,52 @@ import com.google.api.services.drive.DriveScopes;
 import org.opensilk.music.plugin.drive.BuildConfig;
 import org.opensilk.common.dagger.qualifier.ForApplication;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import timber.log.Timber;
+
 /**
  * Created by drew on 6/15/14.
  */
 @Singleton
 public class DriveHelperImpl implements DriveHelper {
 
-    static class Holder implements Session {
+    // Access tokens are good for an hour, we get a new one well before that
+    static final long TOKEN_REFRESH_AFTER = 40 * 60 * 1000;
+    static final long TOKEN_MAX_AGE = 50 * 60 * 1000;
+
+    static final String PREFS_NAME = "drive_sessions";
+    static final String PREF_ACCOUNTS = "accounts";
+
+    class Holder implements Session {
 
         final GoogleAccountCredential credential;
         final Drive drive;
+        final RequestExecutor executor;
+        final PriorityExecutor workQueue;
 
-        Holder(GoogleAccountCredential credential, Drive drive) {
+        volatile String authToken;
+        volatile long tokenFetched;
+        volatile long tokenUsed;
+
+        Holder(GoogleAccountCredential credential, Drive drive, RequestExecutor executor,
+               PriorityExecutor workQueue) {
             this.credential = credential;
             this.drive = drive;
+            this.executor = executor;
+            this.workQueue = workQueue;
         }
 
         @Override
@@ -60,27 +92,140 @@ public class DriveHelperImpl implements DriveHelper {
         public GoogleAccountCredential getCredential() {
             return credential;
         }
+
+        @Override
+        public String getAuthToken() throws IOException, GoogleAuthException {
+            final long now = SystemClock.elapsedRealtime();
+            tokenUsed = now;
+            final String token = authToken;
+            if (token != null && now - tokenFetched < TOKEN_MAX_AGE) {
+                return token;
+            }
+            return refreshToken(false);
+        }
+
+        @Override
+        public <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+            return executor.execute(request);
+        }
+
+        @Override
+        public PriorityExecutor getExecutor() {
+            return workQueue;
+        }
+
+        /**
+         * @param force get a new token even if ours is still fresh
+         */
+        synchronized String refreshToken(boolean force) throws IOException, GoogleAuthException {
+            final long now = SystemClock.elapsedRealtime();
+            if (!force && authToken != null && now - tokenFetched < TOKEN_MAX_AGE) {
+                // someone beat us to it
+                return authToken;
+            }
+            if (authToken != null) {
+                // Play services hands back the cached token till we tell it to forget it
+                GoogleAuthUtil.clearToken(context, authToken);
+            }
+            authToken = credential.getToken();
+            tokenFetched = now;
+            scheduleRefresh(this);
+            return authToken;
+        }
     }
 
     private static final String APP_NAME = BuildConfig.APPLICATION_ID+"/"+BuildConfig.VERSION_NAME;
-    private final Map<String, Holder> SESSIONS = new HashMap<>();
+    private final ConcurrentHashMap<String, Holder> SESSIONS = new ConcurrentHashMap<>();
+    // Times the batchers and refreshes tokens, made again if we're used after destroy
+    private ScheduledExecutorService scheduler;
 
     private final Context context;
+    private final Hedger hedger;
 
     @Inject
-    public DriveHelperImpl(@ForApplication Context context) {
+    public DriveHelperImpl(@ForApplication Context context, Hedger hedger) {
         this.context = context;
+        this.hedger = hedger;
     }
 
     @Override
     public Session getSession(String accountName) {
-        if (SESSIONS.containsKey(accountName)) return SESSIONS.get(accountName);
-        return createSession(accountName);
+        Holder holder = SESSIONS.get(accountName);
+        if (holder != null) return holder;
+        holder = createSession(accountName);
+        Holder prev = SESSIONS.putIfAbsent(accountName, holder);
+        if (prev != null) {
+            // Lost the race, ours never ran anything
+            return prev;
+        }
+        rememberAccount(accountName);
+        prewarmToken(holder);
+        return holder;
+    }
+
+    @Override
+    public void prewarm() {
+        for (String accountName : pruneAccounts()) {
+            getSession(accountName);
+        }
+    }
+
+    @Override
+    public List<String> getAccounts() {
+        final List<String> accounts = new ArrayList<>(pruneAccounts());
+        Collections.sort(accounts);
+        return accounts;
     }
 
     @Override
     public void destroy() {
+        for (Holder holder : SESSIONS.values()) {
+            holder.workQueue.shutdown();
+        }
         SESSIONS.clear();
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newScheduledThreadPool(2);
+        }
+        return scheduler;
+    }
+
+    /*
+     * Forgets accounts removed from the device, and drops their sessions
+     *
+     * @return the remembered accounts still on the device
+     */
+    private Set<String> pruneAccounts() {
+        final SharedPreferences prefs = getPrefs();
+        final Set<String> remembered = prefs.getStringSet(PREF_ACCOUNTS, Collections.<String>emptySet());
+        final Set<String> onDevice = new HashSet<>();
+        for (Account account : AccountManager.get(context).getAccountsByType(GoogleAuthUtil.GOOGLE_ACCOUNT_TYPE)) {
+            onDevice.add(account.name);
+        }
+        final Set<String> kept = new HashSet<>(remembered);
+        kept.retainAll(onDevice);
+        if (kept.size() == remembered.size()) {
+            return kept;
+        }
+        prefs.edit().putStringSet(PREF_ACCOUNTS, kept).apply();
+        for (String accountName : remembered) {
+            if (!kept.contains(accountName)) {
+                Timber.d("pruneAccounts() %s is gone", accountName);
+                final Holder holder = SESSIONS.remove(accountName);
+                if (holder != null) {
+                    holder.workQueue.shutdown();
+                }
+            }
+        }
+        return kept;
     }
 
     private Holder createSession(String accountName) {
@@ -88,9 +233,70 @@ public class DriveHelperImpl implements DriveHelper {
                 Collections.singleton(DriveScopes.DRIVE_READONLY)).setSelectedAccountName(accountName);
         final Drive drive = new Drive.Builder(AndroidHttp.newCompatibleTransport(),
                 GsonFactory.getDefaultInstance(), credential).setApplicationName(APP_NAME).build();
-        final Holder holder = new Holder(credential, drive);
-        SESSIONS.put(accountName, holder);
-        return holder;
+        final PriorityExecutor workQueue = new PriorityExecutor("Drive-" + SESSIONS.size());
+        final RequestExecutor executor = new RequestExecutor(new RequestBatcher(drive, getScheduler()), new RateLimiter(),
+                hedger, accountName, workQueue.executor(PriorityExecutor.INTERACTIVE));
+        return new Holder(credential, drive, executor, workQueue);
+    }
+
+    /*
+     * Fetches the token in the background so the first request doesn't wait on it
+     */
+    private void prewarmToken(final Holder holder) {
+        getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    holder.refreshToken(false);
+                } catch (IOException|GoogleAuthException e) {
+                    Timber.w(e, "prewarmToken(%s)", holder.credential.getSelectedAccountName());
+                }
+            }
+        });
+    }
+
+    /*
+     * Replaces the token before it expires, as long as someone is still using it
+     */
+    void scheduleRefresh(final Holder holder) {
+        final long fetched = holder.tokenFetched;
+        if (SESSIONS.get(holder.credential.getSelectedAccountName()) != holder) {
+            // destroyed or pruned
+            return;
+        }
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (holder.tokenFetched != fetched || SESSIONS.get(holder.credential.getSelectedAccountName()) != holder) {
+                    // refreshed some other way, or we were destroyed
+                    return;
+                }
+                if (holder.tokenUsed < fetched) {
+                    // Nobody asked for it, let it lapse, the next user will fetch one
+                    return;
+                }
+                try {
+                    holder.refreshToken(true);
+                } catch (IOException|GoogleAuthException e) {
+                    Timber.w(e, "refreshToken(%s)", holder.credential.getSelectedAccountName());
+                }
+            }
+        }, TOKEN_REFRESH_AFTER, TimeUnit.MILLISECONDS);
+    }
+
+    private void rememberAccount(String accountName) {
+        final SharedPreferences prefs = getPrefs();
+        final Set<String> accounts = prefs.getStringSet(PREF_ACCOUNTS, Collections.<String>emptySet());
+        if (!accounts.contains(accountName)) {
+            // Never modify the set we're handed
+            final Set<String> updated = new HashSet<>(accounts);
+            updated.add(accountName);
+            prefs.edit().putStringSet(PREF_ACCOUNTS, updated).apply();
+        }
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
 }
@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import org.opensilk.music.api.callback.Result;
+import org.opensilk.music.api.exception.ParcelableException;
+import org.opensilk.music.plugin.drive.DriveLibraryService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+import static org.opensilk.music.api.exception.ParcelableException.NETWORK;
+
+/**
+ * The library made of every account we know. Searches and song listings go to
+ * each account at once, on its own executor, and pages are handed out as soon
+ * as any account has answered. Later answers are merged into what hasn't been
+ * handed out yet, copies of a file already seen in another account are dropped.
+ *
+ * Only songs are listed, folder identities mean nothing outside their account.
+ *
+ * Each account's answer is a feed already in order, pages are a merge of the
+ * feeds. Indexed song listings are read from the index a batch at a time, so
+ * a query only holds the next few songs of each account, never whole libraries.
+ *
+ * Created by drew on 12/10/14.
+ */
+@Singleton
+public class Federation {
+
+    // Library identity of the federation, never a valid account name
+    public static final String LIBRARY_IDENTITY = "all_accounts";
+    // Search hits taken from each account, listings page through everything
+    public static final int MAX_PER_ACCOUNT = 500;
+    // Songs asked for at once from accounts that aren't indexed yet
+    static final int REMOTE_PAGE = 1000;
+    // Songs read from an account's index at once when listing
+    static final int FEED_BATCH = 200;
+    // How long a client can sit on a page before the merged results are let go
+    public static final long QUERY_TTL = 10 * 60 * 1000;
+    public static final int MAX_QUERIES = 8;
+
+    public static final String SEARCH_FIELDS = "nextPageToken,items(id,mimeType,parents,title,downloadUrl,"
+            + "modifiedDate,fileSize,md5Checksum)";
+
+    final DriveHelper driveHelper;
+    final LibraryIndex index;
+    final SearchIndex searchIndex;
+    final SyncEngine syncEngine;
+    final TagStore tags;
+    final SongUris songUris;
+
+    // guarded by itself, access ordered so the idlest query goes first
+    final LinkedHashMap<Long, Query> queries = new LinkedHashMap<Long, Query>(MAX_QUERIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Query> eldest) {
+            return size() > MAX_QUERIES;
+        }
+    };
+    // Seeded from the clock so tokens from a previous process don't match
+    long nextId = System.currentTimeMillis();
+
+    @Inject
+    public Federation(DriveHelper driveHelper, LibraryIndex index, SearchIndex searchIndex,
+                      SyncEngine syncEngine, TagStore tags, SongUris songUris) {
+        this.driveHelper = driveHelper;
+        this.index = index;
+        this.searchIndex = searchIndex;
+        this.syncEngine = syncEngine;
+        this.tags = tags;
+        this.songUris = songUris;
+    }
+
+    public static boolean isFederated(String libraryIdentity) {
+        return LIBRARY_IDENTITY.equals(libraryIdentity);
+    }
+
+    public void search(final String query, int maxResults, Bundle paginationBundle, Result callback) {
+        if (resume(maxResults, paginationBundle, callback)) {
+            return;
+        }
+        final String folded = query.toLowerCase(Locale.US);
+        final Query q = start(new Comparator<Hit>() {
+            @Override
+            public int compare(Hit lhs, Hit rhs) {
+                final int lr = rank(lhs.item.name, folded);
+                final int rr = rank(rhs.item.name, folded);
+                if (lr != rr) {
+                    return lr < rr ? -1 : 1;
+                }
+                return RequestCache.ITEM_ORDER.compare(lhs.item, rhs.item);
+            }
+        }, paginationBundle, maxResults, callback);
+        final String driveQuery = "title contains '" + Helpers.escapeQuery(query) + "' and trashed=false and"
+                + DriveLibraryService.SONG_QUERY;
+        fanOut(q, new Source() {
+            @Override
+            public Feed local(String accountName) {
+                final List<RequestCache.Item> local = searchIndex.search(accountName, query, 0, MAX_PER_ACCOUNT);
+                return local != null ? new ListFeed(hits(accountName, local), q.order) : null;
+            }
+            @Override
+            public String remoteQuery() {
+                return driveQuery;
+            }
+            @Override
+            public int remoteLimit() {
+                return MAX_PER_ACCOUNT;
+            }
+        });
+    }
+
+    public void listSongs(int maxResults, Bundle paginationBundle, Result callback) {
+        if (resume(maxResults, paginationBundle, callback)) {
+            return;
+        }
+        final Query q = start(new Comparator<Hit>() {
+            @Override
+            public int compare(Hit lhs, Hit rhs) {
+                return RequestCache.ITEM_ORDER.compare(lhs.item, rhs.item);
+            }
+        }, paginationBundle, maxResults, callback);
+        fanOut(q, new Source() {
+            @Override
+            public Feed local(String accountName) {
+                return index.isReady(accountName) ? new IndexFeed(accountName) : null;
+            }
+            @Override
+            public String remoteQuery() {
+                return "trashed=false and" + DriveLibraryService.SONG_QUERY;
+            }
+            @Override
+            public int remoteLimit() {
+                return -1;
+            }
+        });
+    }
+
+    /**
+     * Lower is better: the whole title, its start, the start of a word in it, anywhere
+     */
+    static int rank(String title, String foldedQuery) {
+        final String t = title.toLowerCase(Locale.US);
+        if (t.equals(foldedQuery)) {
+            return 0;
+        } else if (t.startsWith(foldedQuery)) {
+            return 1;
+        }
+        int idx = t.indexOf(foldedQuery);
+        while (idx > 0) {
+            if (!Character.isLetterOrDigit(t.charAt(idx - 1))) {
+                return 2;
+            }
+            idx = t.indexOf(foldedQuery, idx + 1);
+        }
+        return 3;
+    }
+
+    interface Source {
+        /**
+         * @return the account's matches from the local index, null if it isn't ready
+         */
+        Feed local(String accountName);
+        String remoteQuery();
+        /**
+         * @return most songs to take from drive, -1 for all of them
+         */
+        int remoteLimit();
+    }
+
+    static class Hit {
+        final String accountName;
+        final RequestCache.Item item;
+        // md5/size, null if we don't know it
+        final String fingerprint;
+
+        Hit(String accountName, RequestCache.Item item, String fingerprint) {
+            this.accountName = accountName;
+            this.item = item;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /*
+     * One account's answer, in the query's order
+     */
+    static abstract class Feed {
+        /**
+         * @return the next hit, null once there are no more
+         */
+        abstract Hit peek();
+        /**
+         * Moves past the hit returned by peek()
+         */
+        abstract void pop();
+    }
+
+    static class ListFeed extends Feed {
+        final List<Hit> hits;
+        int pos;
+
+        ListFeed(List<Hit> hits, Comparator<Hit> order) {
+            this.hits = hits;
+            Collections.sort(hits, order);
+        }
+
+        @Override
+        Hit peek() {
+            return pos < hits.size() ? hits.get(pos) : null;
+        }
+
+        @Override
+        void pop() {
+            pos++;
+        }
+    }
+
+    /*
+     * An account's songs by title, read from the index as the merge gets to them.
+     * Batches carry on from the last song seen rather than an offset, so songs
+     * the sync adds or removes in between don't shift the listing.
+     */
+    class IndexFeed extends Feed {
+        final String accountName;
+        List<Hit> batch;
+        int pos;
+        boolean drained;
+
+        IndexFeed(String accountName) {
+            this.accountName = accountName;
+            load(null, null);
+        }
+
+        @Override
+        Hit peek() {
+            return pos < batch.size() ? batch.get(pos) : null;
+        }
+
+        @Override
+        void pop() {
+            final Hit last = batch.get(pos++);
+            if (pos == batch.size() && !drained) {
+                load(last.item.name, last.item.identity);
+            }
+        }
+
+        void load(String title, String id) {
+            try {
+                final List<RequestCache.Item> items = index.songsAfter(accountName, title, id, FEED_BATCH);
+                drained = items.size() < FEED_BATCH;
+                batch = hits(accountName, items);
+            } catch (RuntimeException e) {
+                // Called while merging for whoever asked, the listing just ends here
+                Timber.e(e, "load(%s) failed", accountName);
+                drained = true;
+                batch = Collections.emptyList();
+            }
+            pos = 0;
+        }
+    }
+
+    static class Waiter {
+        final int maxResults;
+        final Result callback;
+        // Results the client already had from a query that's since been let go
+        int skip;
+
+        Waiter(int maxResults, Result callback, int skip) {
+            this.maxResults = maxResults;
+            this.callback = callback;
+            this.skip = skip;
+        }
+    }
+
+    /*
+     * A page taken from the pool, served outside the lock
+     */
+    static class Page {
+        final Waiter waiter;
+        final List<Hit> hits;
+        // Results handed out up to and including this page
+        final int end;
+        final boolean more;
+        // Set instead of hits when every account failed
+        final IOException error;
+
+        Page(Waiter waiter, List<Hit> hits, int end, boolean more, IOException error) {
+            this.waiter = waiter;
+            this.hits = hits;
+            this.end = end;
+            this.more = more;
+            this.error = error;
+        }
+    }
+
+    class Query {
+        final long id;
+        final Comparator<Hit> order;
+        final List<String> accounts;
+
+        // guarded by this
+        // Merged from the feeds but not handed out yet, in order
+        final List<Hit> pool = new ArrayList<>();
+        // Feeds with hits left, by their next hit
+        final PriorityQueue<Feed> feeds;
+        final Set<String> seen = new HashSet<>();
+        final List<Waiter> waiters = new ArrayList<>(1);
+        int delivered;
+        int pending;
+        int failed;
+        IOException lastError;
+        long expires;
+
+        Query(long id, Comparator<Hit> order, List<String> accounts) {
+            this.id = id;
+            this.order = order;
+            this.accounts = accounts;
+            this.pending = accounts.size();
+            this.feeds = new PriorityQueue<>(Math.max(1, accounts.size()), new Comparator<Feed>() {
+                @Override
+                public int compare(Feed lhs, Feed rhs) {
+                    return Query.this.order.compare(lhs.peek(), rhs.peek());
+                }
+            });
+        }
+
+        void request(Waiter waiter) {
+            final List<Page> pages;
+            synchronized (this) {
+                waiters.add(waiter);
+                pages = takeReady();
+            }
+            serve(this, pages);
+        }
+
+        void answer(Feed feed) {
+            final List<Page> pages;
+            synchronized (this) {
+                if (feed.peek() != null) {
+                    feeds.add(feed);
+                }
+                pending--;
+                pages = takeReady();
+            }
+            serve(this, pages);
+        }
+
+        void fail(IOException e) {
+            synchronized (this) {
+                failed++;
+                lastError = e;
+            }
+            answer(new ListFeed(new ArrayList<Hit>(0), order));
+        }
+
+        /*
+         * Must hold lock. Merges the feeds into the pool till it holds count hits,
+         * returns false if they ran out first.
+         */
+        boolean fill(int count) {
+            while (pool.size() < count && !feeds.isEmpty()) {
+                final Feed feed = feeds.poll();
+                final Hit hit = feed.peek();
+                feed.pop();
+                if (feed.peek() != null) {
+                    feeds.add(feed);
+                }
+                // Same file in another account, first one in wins
+                if (hit.fingerprint != null && !seen.add(hit.fingerprint)) {
+                    continue;
+                }
+                pool.add(hit);
+            }
+            return pool.size() >= count;
+        }
+
+        /*
+         * Must hold lock. Anyone can have a page once an account has answered,
+         * a client resuming a lost query waits for every account so its place holds.
+         */
+        List<Page> takeReady() {
+            final List<Page> pages = new ArrayList<>(waiters.size());
+            while (!waiters.isEmpty()) {
+                final Waiter waiter = waiters.get(0);
+                if (pending > 0 && (waiter.skip > 0 || !fill(1))) {
+                    break;
+                }
+                waiters.remove(0);
+                // Skipped a batch at a time so the pool never holds more than a page or so
+                while (waiter.skip > 0 && fill(1)) {
+                    fill(Math.min(waiter.skip, FEED_BATCH));
+                    final int skip = Math.min(waiter.skip, pool.size());
+                    pool.subList(0, skip).clear();
+                    delivered += skip;
+                    waiter.skip -= skip;
+                }
+                waiter.skip = 0;
+                fill(waiter.maxResults);
+                final int count = Math.min(waiter.maxResults, pool.size());
+                final List<Hit> page = new ArrayList<>(pool.subList(0, count));
+                pool.subList(0, count).clear();
+                // Every account failed, nothing to show
+                final IOException error = pending == 0 && failed > 0 && failed == accounts.size()
+                        ? lastError : null;
+                delivered += count;
+                pages.add(new Page(waiter, page, delivered, fill(1) || pending > 0, error));
+            }
+            return pages;
+        }
+    }
+
+    /*
+     * Picks up where the client left off, if we still have their query
+     */
+    boolean resume(int maxResults, Bundle paginationBundle, Result callback) {
+        if (paginationBundle == null || !paginationBundle.containsKey("federation")) {
+            return false;
+        }
+        final Query q;
+        synchronized (queries) {
+            q = queries.get(paginationBundle.getLong("federation"));
+            if (q == null) {
+                return false;
+            }
+            q.expires = SystemClock.elapsedRealtime() + QUERY_TTL;
+        }
+        q.request(new Waiter(maxResults, callback, 0));
+        return true;
+    }
+
+    Query start(Comparator<Hit> order, Bundle paginationBundle, int maxResults, Result callback) {
+        final List<String> accounts = driveHelper.getAccounts();
+        final Query q;
+        synchronized (queries) {
+            expireQueries();
+            q = new Query(nextId++, order, accounts);
+            q.expires = SystemClock.elapsedRealtime() + QUERY_TTL;
+            queries.put(q.id, q);
+        }
+        final int skip = paginationBundle != null ? paginationBundle.getInt("startpos") : 0;
+        q.request(new Waiter(maxResults, callback, skip));
+        return q;
+    }
+
+    /*
+     * Must hold queries lock
+     */
+    void expireQueries() {
+        final long now = SystemClock.elapsedRealtime();
+        final List<Long> expired = new ArrayList<>();
+        for (Query q : queries.values()) {
+            if (q.expires <= now) {
+                expired.add(q.id);
+            }
+        }
+        for (Long id : expired) {
+            queries.remove(id);
+        }
+    }
+
+    void fanOut(final Query q, final Source source) {
+        for (final String accountName : q.accounts) {
+            final DriveHelper.Session session = driveHelper.getSession(accountName);
+            session.getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        q.answer(collect(session, accountName, source, q.order));
+                    } catch (IOException e) {
+                        Timber.w(e, "fanOut() %s failed", accountName);
+                        q.fail(e);
+                    } catch (RuntimeException e) {
+                        // the other accounts can still answer, as long as this one counts as done
+                        Timber.e(e, "fanOut() %s failed", accountName);
+                        q.fail(new IOException(e));
+                    }
+                }
+            }, PriorityExecutor.SEARCH);
+        }
+    }
+
+    /*
+     * The account's songs among items, with their fingerprints from the index
+     */
+    List<Hit> hits(String accountName, List<RequestCache.Item> items) {
+        final List<String> ids = new ArrayList<>(items.size());
+        for (RequestCache.Item item : items) {
+            if (!item.folder) {
+                ids.add(item.identity);
+            }
+        }
+        final Map<String, String> fingerprints = index.fingerprints(accountName, ids);
+        final List<Hit> hits = new ArrayList<>(ids.size());
+        for (RequestCache.Item item : items) {
+            if (!item.folder) {
+                hits.add(new Hit(accountName, item, fingerprints.get(item.identity)));
+            }
+        }
+        return hits;
+    }
+
+    Feed collect(DriveHelper.Session session, String accountName, Source source, Comparator<Hit> order)
+            throws IOException {
+        final Feed local = source.local(accountName);
+        if (local != null) {
+            return local;
+        }
+        // Not indexed yet, ask drive and get the index going for next time
+        syncEngine.requestSync(accountName);
+        final int limit = source.remoteLimit();
+        final List<Hit> hits = new ArrayList<>();
+        String pageToken = null;
+        do {
+            Drive.Files.List req = session.getDrive().files().list()
+                    .setQ(source.remoteQuery())
+                    .setFields(SEARCH_FIELDS)
+                    .setMaxResults(limit < 0 ? REMOTE_PAGE : Math.min(limit, REMOTE_PAGE));
+            if (!TextUtils.isEmpty(pageToken)) req.setPageToken(pageToken);
+            FileList resp = session.execute(req);
+            for (File f : resp.getItems()) {
+                final RequestCache.Item item = Helpers.buildItem(f);
+                if (item != null && !item.folder) {
+                    final String fingerprint = f.getMd5Checksum() != null && f.getFileSize() != null
+                            ? LibraryIndex.fingerprint(f.getMd5Checksum(), f.getFileSize()) : null;
+                    hits.add(new Hit(accountName, item, fingerprint));
+                }
+            }
+            pageToken = resp.getNextPageToken();
+        } while (!TextUtils.isEmpty(pageToken) && (limit < 0 || hits.size() < limit));
+        // Still whole, but only until the first crawl is done
+        return new ListFeed(limit < 0 || hits.size() <= limit ? hits : new ArrayList<Hit>(hits.subList(0, limit)),
+                order);
+    }
+
+    void serve(Query q, List<Page> pages) {
+        final Map<String, String> authTokens = new HashMap<>();
+        for (Page page : pages) {
+            final Result callback = page.waiter.callback;
+            if (page.error != null) {
+                try {
+                    callback.onError(new ParcelableException(NETWORK, page.error));
+                } catch (RemoteException ignored) {}
+                continue;
+            }
+            // Positions of each account's hits, so we fetch its token and tags once
+            final Map<String, List<Integer>> byAccount = new LinkedHashMap<>();
+            for (int ii=0; ii<page.hits.size(); ii++) {
+                final String accountName = page.hits.get(ii).accountName;
+                List<Integer> positions = byAccount.get(accountName);
+                if (positions == null) {
+                    positions = new ArrayList<>();
+                    byAccount.put(accountName, positions);
+                }
+                positions.add(ii);
+            }
+            final Bundle[] bundles = new Bundle[page.hits.size()];
+            for (Map.Entry<String, List<Integer>> e : byAccount.entrySet()) {
+                final String accountName = e.getKey();
+                if (!authTokens.containsKey(accountName)) {
+                    authTokens.put(accountName, authToken(accountName));
+                }
+                final List<String> ids = new ArrayList<>(e.getValue().size());
+                for (int pos : e.getValue()) {
+                    ids.add(page.hits.get(pos).item.identity);
+                }
+                final Map<String, TrackTags> accountTags = tags.get(accountName, ids);
+                for (int pos : e.getValue()) {
+                    final RequestCache.Item item = page.hits.get(pos).item;
+                    bundles[pos] = item.toBundle(songUris, accountName, authTokens.get(accountName),
+                            accountTags.get(item.identity));
+                }
+            }
+            Bundle token = null;
+            if (page.more) {
+                token = new Bundle(2);
+                token.putInt("startpos", page.end);
+                token.putLong("federation", q.id);
+            } else {
+                synchronized (queries) {
+                    queries.remove(q.id);
+                }
+            }
+            try {
+                callback.onNext(Arrays.asList(bundles), token);
+            } catch (RemoteException ignored) {}
+        }
+    }
+
+    /*
+     * Songs played through the proxy don't need one
+     */
+    String authToken(String accountName) {
+        if (!songUris.needsToken(accountName)) {
+            return null;
+        }
+        try {
+            return driveHelper.getSession(accountName).getAuthToken();
+        } catch (IOException|GoogleAuthException e) {
+            // Still worth listing, they just won't play till we're back online
+            Timber.w(e, "authToken(%s)", accountName);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.model.File;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+import org.opensilk.music.plugin.common.LibraryPreferences;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Holds the first few hundred KB of the songs the user is looking at, so the
+ * {@link StreamProxy} can answer play with bytes from disk while it connects
+ * to drive for the rest.
+ *
+ * Only accounts that stream through the proxy prefetch. A content uri of our
+ * own can't stand in for it: all a provider can hand the player for a file we
+ * don't have in full is a pipe, and the platform player needs to seek the
+ * descriptors it's given. Accounts on token uris would download heads nothing
+ * ever reads.
+ *
+ * Prefetches run as bulk work, only on the networks the user allows, and the
+ * directory is kept under a byte cap by deleting the least recently used.
+ *
+ * Created by drew on 12/7/14.
+ */
+@Singleton
+public class HeadCache {
+
+    public static final int HEAD_BYTES = 256 * 1024;
+    // Songs from the top of each page delivered
+    public static final int PREFETCH_COUNT = 4;
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    final Context context;
+    final LibraryIndex index;
+    final LibraryPreferences prefs;
+    final OfflineCache offlineCache;
+    final java.io.File dir;
+    final long maxBytes;
+
+    @Inject
+    public HeadCache(@ForApplication Context context, LibraryIndex index, LibraryPreferences prefs,
+                     OfflineCache offlineCache) {
+        this.context = context;
+        this.index = index;
+        this.prefs = prefs;
+        this.offlineCache = offlineCache;
+        this.dir = new java.io.File(context.getCacheDir(), "heads");
+        this.maxBytes = DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * @param version of the song as it is now, see {@link #version(File)}
+     * @return the start of the song, null if we don't have it
+     */
+    public java.io.File get(String accountName, String id, String version) {
+        if (version == null) {
+            return null;
+        }
+        final java.io.File f = fileFor(accountName, id, version);
+        if (!f.exists()) {
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    /**
+     * Fetches the start of the first songs of the page in the background, if the network allows
+     */
+    public void prefetch(final DriveHelper.Session session, final String accountName,
+                         final String folderId, final int startpos) {
+        if (!allowed(accountName)) {
+            return;
+        }
+        session.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!index.isReady(accountName)) {
+                    return;
+                }
+                final List<File> songs = index.songsIn(accountName, folderId, startpos, PREFETCH_COUNT);
+                try {
+                    for (File song : songs) {
+                        fetch(session, accountName, song);
+                    }
+                } catch (IOException e) {
+                    Timber.w("prefetch(%s) %s", folderId, e);
+                }
+                trimToSize();
+            }
+        }, PriorityExecutor.BULK);
+    }
+
+    void fetch(DriveHelper.Session session, String accountName, File song) throws IOException {
+        if (song.getDownloadUrl() == null || song.getFileSize() == null || song.getFileSize() == 0
+                || version(song) == null || offlineCache.cachedFile(accountName, song.getId()) != null) {
+            return;
+        }
+        final java.io.File f = fileFor(accountName, song.getId(), version(song));
+        if (f.exists()) {
+            return;
+        }
+        final RangeReader reader = new RangeReader(session.getDrive().getRequestFactory(),
+                song.getDownloadUrl(), song.getFileSize());
+        final byte[] head;
+        try {
+            head = reader.read(0, (int) Math.min(HEAD_BYTES, song.getFileSize()));
+        } catch (HttpResponseException e) {
+            // not worth failing the rest of the page over
+            Timber.w("fetch(%s) %s", song.getId(), e.getStatusMessage());
+            return;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        final java.io.File tmp = new java.io.File(dir, f.getName() + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(head);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /*
+     * Never on metered networks unless the user said so, and only the proxy
+     * plays from heads
+     */
+    boolean allowed(String accountName) {
+        final String policy = prefs.getHeadPrefetch(accountName);
+        if (!prefs.getStreamProxy(accountName) || LibraryPreferences.PREFETCH_NEVER.equals(policy)) {
+            return false;
+        }
+        final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return false;
+        }
+        return LibraryPreferences.PREFETCH_ALWAYS.equals(policy) || !isMetered(cm, info);
+    }
+
+    static boolean isMetered(ConnectivityManager cm, NetworkInfo info) {
+        if (Build.VERSION.SDK_INT >= 16) {
+            return cm.isActiveNetworkMetered();
+        }
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return what changes when the content does, the md5 or failing that the modified date,
+     *         null if we have neither
+     */
+    public static String version(File f) {
+        if (f.getMd5Checksum() != null) {
+            return f.getMd5Checksum();
+        }
+        return f.getModifiedDate() != null && f.getModifiedDate().getValue() != 0
+                ? String.valueOf(f.getModifiedDate().getValue()) : null;
+    }
+
+    // the version keeps us from splicing the start of an old edit onto a new one
+    java.io.File fileFor(String accountName, String id, String version) {
+        return new java.io.File(dir, ListingDiskCache.sha1(accountName + "/" + id) + "-" + version);
+    }
+
+    void trimToSize() {
+        final java.io.File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // newest first
+        Arrays.sort(files, new Comparator<java.io.File>() {
+            @Override
+            public int compare(java.io.File lhs, java.io.File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        long total = 0;
+        for (java.io.File f : files) {
+            total += f.length();
+            if (total > maxBytes) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Hedges single attempts of drive listings against their long tail. When an
+ * attempt has taken longer than the account's recent p95 we send it again on
+ * the account's executor, whichever answers first wins. Hedges are paid for
+ * from a budget shared by every account that only grows with the requests
+ * made, so they stay a few percent of the total.
+ *
+ * The p95 is of first attempts only, failed or not, hedges never feed it.
+ * Hedges are fresh calls made by the caller, who can also turn one down,
+ * requests aren't safe to run twice at once.
+ *
+ * Created by drew on 12/11/14.
+ */
+@Singleton
+public class Hedger {
+
+    // Hedges allowed per request made
+    public static final double BUDGET_RATIO = 0.03;
+    // Hedges that can be saved up for a slow spell
+    public static final double BUDGET_BURST = 5;
+    // Latencies kept per account
+    static final int SAMPLES = 200;
+    // Below this we don't know the account's p95 well enough to act on it
+    static final int MIN_SAMPLES = 20;
+    // Attempts we can race at once, the rest run on the caller unhedged
+    static final int MAX_RACING = 4;
+
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    public interface Factory<T> {
+        /**
+         * @return a fresh call repeating the attempt, null if it can't be made right now
+         */
+        Call<T> newCall() throws IOException;
+    }
+
+    /**
+     * Recent latencies of one account
+     */
+    static class Latencies {
+        final long[] samples = new long[SAMPLES];
+        int count;
+        int next;
+
+        synchronized void add(long ms) {
+            samples[next] = ms;
+            next = (next + 1) % SAMPLES;
+            if (count < SAMPLES) count++;
+        }
+
+        /**
+         * @return the 95th percentile, -1 if we haven't seen enough yet
+         */
+        synchronized long p95() {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(count * 0.95) - 1];
+        }
+    }
+
+    /*
+     * Queues itself when done so we can wait on whichever finishes first
+     */
+    static class Attempt<T> extends FutureTask<T> {
+        final BlockingQueue<Attempt<T>> finished;
+
+        Attempt(Callable<T> callable, BlockingQueue<Attempt<T>> finished) {
+            super(callable);
+            this.finished = finished;
+        }
+
+        @Override
+        protected void done() {
+            finished.add(this);
+        }
+    }
+
+    final Map<String, Latencies> latencies = new HashMap<>();
+    // Primaries of attempts we might hedge, the caller has to be free to take the hedge's answer.
+    // Made again if we're used after shutdown, we outlive the service.
+    ThreadPoolExecutor racing;
+
+    // guarded by this
+    double budget = BUDGET_BURST;
+    long requestCount;
+    long hedgeCount;
+    long hedgeWinCount;
+
+    @Inject
+    public Hedger() {
+    }
+
+    /**
+     * Runs one attempt of the call, and one from hedges on hedgeExecutor if it's slow for
+     * the account and we can afford it. Attempts we can't hedge run on the calling thread.
+     */
+    public <T> T execute(String accountName, final Call<T> call, Factory<T> hedges,
+                         Executor hedgeExecutor) throws IOException {
+        final Latencies stats = latenciesFor(accountName);
+        final long threshold = stats.p95();
+        final boolean affordable;
+        synchronized (this) {
+            requestCount++;
+            budget = Math.min(BUDGET_BURST, budget + BUDGET_RATIO);
+            affordable = budget >= 1;
+        }
+        if (threshold < 0 || !affordable) {
+            return timed(stats, call);
+        }
+        final BlockingQueue<Attempt<T>> finished = new LinkedBlockingQueue<>();
+        final Attempt<T> primary = new Attempt<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return timed(stats, call);
+            }
+        }, finished);
+        try {
+            racing().execute(primary);
+        } catch (RejectedExecutionException e) {
+            // all busy
+            return timed(stats, call);
+        }
+        Attempt<T> hedge = null;
+        try {
+            Attempt<T> done = finished.poll(threshold, TimeUnit.MILLISECONDS);
+            if (done == null && tryAcquire()) {
+                Call<T> repeat;
+                try {
+                    repeat = hedges.newCall();
+                } catch (IOException e) {
+                    // no reason to fail the primary over it
+                    Timber.w(e, "execute() %s unable to hedge", accountName);
+                    repeat = null;
+                }
+                if (repeat != null) {
+                    Timber.d("execute() %s slower than %dms, hedging", accountName, threshold);
+                    final Call<T> hedgeCall = repeat;
+                    hedge = new Attempt<>(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            return hedgeCall.call();
+                        }
+                    }, finished);
+                    try {
+                        hedgeExecutor.execute(hedge);
+                    } catch (RejectedExecutionException|IllegalStateException e) {
+                        hedge = null;
+                    }
+                } else {
+                    release();
+                }
+            }
+            if (done == null) {
+                done = finished.take();
+            }
+            T result;
+            try {
+                result = done.get();
+            } catch (ExecutionException e) {
+                if (hedge == null) {
+                    throw e;
+                }
+                // One failed, the other might still come through
+                Timber.w(e.getCause(), "execute() %s %s failed", accountName, done == hedge ? "hedge" : "primary");
+                done = finished.take();
+                result = done.get();
+            }
+            if (done == hedge) {
+                synchronized (this) {
+                    hedgeWinCount++;
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on " + accountName);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // A slow primary is left to finish so its latency is counted,
+            // a hedge still queued is dropped
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    /*
+     * Counts the attempt's latency whether it succeeds or not
+     */
+    <T> T timed(Latencies stats, Call<T> call) throws IOException {
+        final long start = now();
+        try {
+            return call.call();
+        } finally {
+            stats.add(now() - start);
+        }
+    }
+
+    synchronized boolean tryAcquire() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        hedgeCount++;
+        return true;
+    }
+
+    /*
+     * The hedge wasn't made after all
+     */
+    synchronized void release() {
+        budget += 1;
+        hedgeCount--;
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    Latencies latenciesFor(String accountName) {
+        synchronized (latencies) {
+            Latencies stats = latencies.get(accountName);
+            if (stats == null) {
+                stats = new Latencies();
+                latencies.put(accountName, stats);
+            }
+            return stats;
+        }
+    }
+
+    synchronized ThreadPoolExecutor racing() {
+        if (racing == null) {
+            racing = new ThreadPoolExecutor(0, MAX_RACING, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>());
+        }
+        return racing;
+    }
+
+    /**
+     * Lets the threads racing primaries go
+     */
+    public synchronized void shutdown() {
+        if (racing != null) {
+            racing.shutdown();
+            racing = null;
+        }
+    }
+
+    public synchronized long requestCount() {
+        return requestCount;
+    }
+
+    public synchronized long hedgeCount() {
+        return hedgeCount;
+    }
+
+    public synchronized long hedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+}
@@ -17,7 +17,9 @@
 
 package org.opensilk.music.plugin.drive.util;
 
+import android.content.ContentResolver;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import com.google.api.client.util.DateTime;
 import com.google.api.services.drive.model.File;
@@ -25,7 +27,9 @@ import com.google.api.services.drive.model.ParentReference;
 
 import org.opensilk.music.api.model.Folder;
 import org.opensilk.music.api.model.Song;
+import org.opensilk.music.plugin.drive.ArtworkProvider;
 import org.opensilk.music.plugin.drive.DriveApp;
+import org.opensilk.music.plugin.drive.DriveLibraryService;
 
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -39,14 +43,84 @@ import java.util.Locale;
  */
 public class Helpers {
 
-    public static final String FIELDS = "items/id,items/mimeType,items/parents,items/title,items/downloadUrl,items/modifiedDate";
+    // nextPageToken must be asked for or we'll never see past the first page
+    public static final String FIELDS = "etag,nextPageToken,items/id,items/mimeType,items/parents,items/title,items/downloadUrl,items/modifiedDate";
+    public static final String INDEX_FIELDS = "nextPageToken,items(id,mimeType,parents(id,isRoot),title,downloadUrl,modifiedDate,fileSize,md5Checksum)";
+    public static final String CHANGE_FIELDS = "items(deleted,fileId,file(id,mimeType,parents,title,downloadUrl,modifiedDate,fileSize,md5Checksum,"
+            + "explicitlyTrashed,labels/trashed)),largestChangeId,nextPageToken";
+    public static final String ARTWORK_FIELDS = "id,downloadUrl,fileSize,parents(id)";
+    public static final String STREAM_FIELDS = "id,downloadUrl,fileSize,mimeType,md5Checksum,modifiedDate";
+    public static final String IMAGE_FIELDS = "items(id,title,downloadUrl,fileSize)";
+
+    /*
+     * Cache keys are namespaced by account so the sync engine
+     * can find every listing belonging to it
+     */
+
+    public static String accountCacheKeyPrefix(String accountName) {
+        return accountName + "/";
+    }
+
+    public static String browseCacheKey(String accountName, String folderId) {
+        return accountCacheKeyPrefix(accountName) + "browse/" + folderId;
+    }
+
+    public static String songsCacheKey(String accountName, String folderId) {
+        return accountCacheKeyPrefix(accountName) + "songs/" + folderId;
+    }
+
+    public static String treeCacheKey(String accountName, String folderId) {
+        return accountCacheKeyPrefix(accountName) + "tree/" + folderId;
+    }
+
+    /*
+     * The folders a tree was walked through, kept under the tree's key so they go with it
+     */
+    public static String treeFoldersCacheKey(String accountName, String folderId) {
+        return treeCacheKey(accountName, folderId) + "/folders";
+    }
+
+    public static String searchCacheKey(String accountName, String query) {
+        return accountCacheKeyPrefix(accountName) + "search/" + query;
+    }
+
+    /**
+     * Escapes a literal for use inside single quotes in a drive query
+     */
+    public static String escapeQuery(String s) {
+        return s.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
+    public static boolean isFolder(String mime) {
+        return TextUtils.equals(DriveLibraryService.FOLDER_MIMETYPE, mime);
+    }
+
+    public static boolean isAudio(String mime) {
+        return mime != null && (mime.contains(DriveLibraryService.AUDIO_MIME_WILDCARD)
+                || TextUtils.equals(mime, DriveLibraryService.AUDIO_OGG_MIMETYPE)); //TODO more mimes?
+    }
+
+    /**
+     * @return cache item for the file or null if it isn't a folder or song
+     */
+    public static RequestCache.Item buildItem(File f) {
+        final String mime = f.getMimeType();
+        if (isFolder(mime)) {
+            return RequestCache.Item.folder(f.getId(), f.getTitle(), getParentId(f),
+                    formatDate(f.getModifiedDate().getValue()));
+        } else if (isAudio(mime)) {
+            // token is stamped on when served
+            return RequestCache.Item.song(f.getId(), f.getTitle(), mime, f.getDownloadUrl());
+        } else {
+            return null;
+        }
+    }
 
     public static Folder buildFolder(File f) {
-        final String id = f.getId();
-        final String title = f.getTitle();
-        List<ParentReference> parents = f.getParents();
-        final String parentId = parents.size() > 0 ? parents.get(0).getId() : null;
-        final String date = formatDate(f.getModifiedDate().getValue());
+        return buildFolder(f.getId(), f.getTitle(), getParentId(f), formatDate(f.getModifiedDate().getValue()));
+    }
+
+    public static Folder buildFolder(String id, String title, String parentId, String date) {
         return new Folder.Builder()
                 .setIdentity(id)
                 .setName(title)
@@ -56,18 +130,60 @@ public class Helpers {
     }
 
     public static Song buildSong(File f, String authToken) {
-        final String id = f.getId();
-        final String title = f.getTitle();
-        final String mimeType = f.getMimeType();
-        final Uri data = buildDownloadUri(f.getDownloadUrl(), authToken);
-        return new Song.Builder()
+        return buildSong(null, f.getId(), f.getTitle(), f.getMimeType(),
+                buildDataUri(f.getDownloadUrl(), authToken), null);
+    }
+
+    public static Song buildSong(String id, String title, String mimeType, String downloadUrl, String authToken) {
+        return buildSong(null, id, title, mimeType, buildDataUri(downloadUrl, authToken), null);
+    }
+
+    /**
+     * @param accountName owning the song, songs without one get no artwork
+     * @param data to play the song from, see {@link SongUris}
+     * @param tags read from the file, if we have them
+     */
+    public static Song buildSong(String accountName, String id, String title, String mimeType,
+                                 Uri data, TrackTags tags) {
+        final Song.Builder b = new Song.Builder()
                 .setIdentity(id)
                 .setName(title)
                 .setDataUri(data)
-                .setMimeType(mimeType)
+                .setMimeType(mimeType);
+        if (accountName != null) {
+            // Served as a thumbnail, never the full picture
+            b.setArtworkUri(buildArtworkUri(accountName, id));
+        }
+        if (tags != null) {
+            if (!TextUtils.isEmpty(tags.title)) b.setName(tags.title);
+            if (!TextUtils.isEmpty(tags.artist)) b.setArtistName(tags.artist);
+            if (!TextUtils.isEmpty(tags.album)) b.setAlbumName(tags.album);
+            if (tags.durationMs > 0) b.setDuration((int) (tags.durationMs / 1000));
+        }
+        return b.build();
+    }
+
+    static String getParentId(File f) {
+        List<ParentReference> parents = f.getParents();
+        return parents != null && parents.size() > 0 ? parents.get(0).getId() : null;
+    }
+
+    public static Uri buildArtworkUri(String accountName, String id) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(ArtworkProvider.AUTHORITY)
+                .appendPath(accountName)
+                .appendPath(id)
                 .build();
     }
 
+    /**
+     * @return uri to fetch the song from drive directly, carrying the token if we have one
+     */
+    public static Uri buildDataUri(String downloadUrl, String authToken) {
+        return authToken != null ? buildDownloadUri(downloadUrl, authToken) : Uri.parse(downloadUrl);
+    }
+
     public static Uri buildDownloadUri(String url, String authToken) {
         return Uri.parse(buildDownloadUriString(url, authToken));
     }
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+import org.opensilk.music.plugin.drive.DriveLibraryService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Local copy of the metadata of every folder and audio file in an account.
+ * Built by a full crawl then kept current by the {@link SyncEngine} applying
+ * the changes feed, so listing all songs and searching titles never need
+ * to go to drive, and work offline.
+ *
+ * Each account gets its own database.
+ *
+ * Created by drew on 11/28/14.
+ */
+@Singleton
+public class LibraryIndex {
+
+    static final int DB_VERSION = 3;
+
+    static final String FILES = "files";
+    static final String PARENTS = "parents";
+    static final String META = "meta";
+    static final String TAGS = "tags";
+    static final String OFFLINE = "offline";
+
+    static final String META_CRAWLED = "crawled";
+
+    static final String[] ITEM_COLUMNS = new String[] {
+            "id", "title", "folder", "mime", "modified", "url",
+            "(SELECT parent FROM parents WHERE parents.id=files.id LIMIT 1)",
+    };
+    // Same order as RequestCache.ITEM_ORDER
+    static final String ITEM_ORDER = "folder DESC, title";
+
+    static class IndexDatabase extends SQLiteOpenHelper {
+        IndexDatabase(Context context, String name) {
+            super(context, name, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + FILES + " (" +
+                    "id TEXT PRIMARY KEY, " +
+                    "title TEXT NOT NULL, " +
+                    "folder INTEGER NOT NULL, " +
+                    "mime TEXT, " +
+                    "modified INTEGER, " +
+                    "size INTEGER, " +
+                    "md5 TEXT, " +
+                    "url TEXT)");
+            db.execSQL("CREATE INDEX files_order ON " + FILES + " (folder, title)");
+            db.execSQL("CREATE TABLE " + PARENTS + " (" +
+                    "id TEXT NOT NULL, " +
+                    "parent TEXT NOT NULL, " +
+                    "PRIMARY KEY (id, parent))");
+            db.execSQL("CREATE INDEX parents_parent ON " + PARENTS + " (parent)");
+            db.execSQL("CREATE TABLE " + META + " (key TEXT PRIMARY KEY, value TEXT)");
+            createTags(db);
+            createOffline(db);
+        }
+
+        // Outlives recrawls, keyed by modified date so edited files are rescanned
+        void createTags(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TAGS + " (" +
+                    "id TEXT PRIMARY KEY, " +
+                    "modified INTEGER NOT NULL, " +
+                    "title TEXT, " +
+                    "artist TEXT, " +
+                    "album TEXT, " +
+                    "album_artist TEXT, " +
+                    "track INTEGER, " +
+                    "duration INTEGER)");
+        }
+
+        // Files downloaded for offline play, must outlive recrawls too
+        void createOffline(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + OFFLINE + " (" +
+                    "id TEXT PRIMARY KEY, " +
+                    "md5 TEXT, " +
+                    "size INTEGER NOT NULL, " +
+                    "used INTEGER NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 1 || oldVersion == 2) {
+                if (oldVersion == 1) {
+                    createTags(db);
+                }
+                createOffline(db);
+                return;
+            }
+            // Everything in here can be recrawled
+            db.execSQL("DROP TABLE IF EXISTS " + FILES);
+            db.execSQL("DROP TABLE IF EXISTS " + PARENTS);
+            db.execSQL("DROP TABLE IF EXISTS " + META);
+            db.execSQL("DROP TABLE IF EXISTS " + TAGS);
+            db.execSQL("DROP TABLE IF EXISTS " + OFFLINE);
+            onCreate(db);
+        }
+    }
+
+    final Context context;
+    final Map<String, IndexDatabase> databases = new HashMap<>();
+
+    @Inject
+    public LibraryIndex(@ForApplication Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @return true once the first crawl has finished
+     */
+    public boolean isReady(String accountName) {
+        return getMeta(accountName, META_CRAWLED) != null;
+    }
+
+    /**
+     * Replaces the index with a fresh listing of every folder and audio file.
+     * Blocks for as long as it takes, call from a background thread.
+     */
+    public void crawl(DriveHelper.Session session, String accountName) throws IOException {
+        final SQLiteDatabase db = getDatabase(accountName);
+        db.beginTransaction();
+        try {
+            db.delete(FILES, null, null);
+            db.delete(PARENTS, null, null);
+            db.delete(META, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        final long start = System.currentTimeMillis();
+        int count = 0;
+        String pageToken = null;
+        do {
+            Drive.Files.List req = session.getDrive().files().list()
+                    .setQ("trashed=false and" + DriveLibraryService.FOLDER_SONG_QUERY)
+                    .setFields(Helpers.INDEX_FIELDS)
+                    .setMaxResults(1000);
+            if (!TextUtils.isEmpty(pageToken)) req.setPageToken(pageToken);
+            FileList resp = session.execute(req);
+            // One transaction per page, so readers aren't held off for the whole crawl
+            db.beginTransaction();
+            try {
+                for (File f : resp.getItems()) {
+                    insert(db, f);
+                    count++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            pageToken = resp.getNextPageToken();
+        } while (!TextUtils.isEmpty(pageToken));
+        putMeta(accountName, META_CRAWLED, String.valueOf(System.currentTimeMillis()));
+        Timber.d("crawl(%s) indexed %d files in %dms", accountName, count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Adds or updates the file, removing it if it's no longer something we index
+     */
+    public void put(String accountName, File f) {
+        final SQLiteDatabase db = getDatabase(accountName);
+        db.beginTransaction();
+        try {
+            delete(db, f.getId());
+            if (Helpers.isFolder(f.getMimeType()) || Helpers.isAudio(f.getMimeType())) {
+                insert(db, f);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void remove(String accountName, String id) {
+        final SQLiteDatabase db = getDatabase(accountName);
+        db.beginTransaction();
+        try {
+            delete(db, id);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return every song, by title
+     */
+    public List<RequestCache.Item> songs(String accountName, int offset, int limit) {
+        return query(accountName, "folder=0", null, offset, limit);
+    }
+
+    /**
+     * @return up to limit songs that come after the given one by title then id,
+     *         from the first if title is null
+     */
+    public List<RequestCache.Item> songsAfter(String accountName, String title, String id, int limit) {
+        return readItems(getDatabase(accountName).query(FILES, ITEM_COLUMNS,
+                title == null ? "folder=0" : "folder=0 AND (title>? OR (title=? AND id>?))",
+                title == null ? null : new String[] { title, title, id },
+                null, null, "title, id", String.valueOf(limit)));
+    }
+
+    /**
+     * @return every folder and song
+     */
+    public List<RequestCache.Item> all(String accountName) {
+        return query(accountName, null, null, 0, -1);
+    }
+
+    /**
+     * @return id, download url, size, mime type, md5, modified date and parents of the file,
+     *         null if it isn't indexed
+     */
+    public File file(String accountName, String id) {
+        final SQLiteDatabase db = getDatabase(accountName);
+        final String[] args = new String[] { id };
+        Cursor c = db.query(FILES, new String[] {"url", "size", "mime", "md5", "modified"}, "id=?", args,
+                null, null, null);
+        final File f;
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            f = new File().setId(id).setDownloadUrl(c.getString(0)).setFileSize(c.getLong(1))
+                    .setMimeType(c.getString(2)).setMd5Checksum(c.getString(3))
+                    .setModifiedDate(new DateTime(c.getLong(4)));
+        } finally {
+            c.close();
+        }
+        c = db.query(PARENTS, new String[] {"parent"}, "id=? AND parent!=?",
+                new String[] { id, DriveLibraryService.DEFAULT_ROOT_FOLDER }, null, null, null);
+        try {
+            final List<ParentReference> parents = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                parents.add(new ParentReference().setId(c.getString(0)));
+            }
+            f.setParents(parents);
+        } finally {
+            c.close();
+        }
+        return f;
+    }
+
+    /**
+     * @return a page of the songs directly in the folder, by title, with id, download url, size,
+     *         md5 and modified date
+     */
+    public List<File> songsIn(String accountName, String folderId, int offset, int limit) {
+        final Cursor c = getDatabase(accountName).rawQuery("SELECT f.id, f.url, f.size, f.md5, f.modified FROM " + PARENTS + " p" +
+                " JOIN " + FILES + " f ON f.id=p.id WHERE p.parent=? AND f.folder=0 ORDER BY f.title" +
+                " LIMIT " + offset + "," + limit, new String[] { folderId });
+        try {
+            final List<File> songs = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                songs.add(new File().setId(c.getString(0)).setDownloadUrl(c.getString(1)).setFileSize(c.getLong(2))
+                        .setMd5Checksum(c.getString(3)).setModifiedDate(new DateTime(c.getLong(4))));
+            }
+            return songs;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return every song in the folders or below them, with id, download url, size and md5
+     */
+    public List<File> songsUnder(String accountName, Collection<String> folderIds) {
+        final SQLiteDatabase db = getDatabase(accountName);
+        final List<File> songs = new ArrayList<>();
+        final Set<String> seen = new HashSet<>(folderIds);
+        final LinkedList<String> queue = new LinkedList<>(folderIds);
+        while (!queue.isEmpty()) {
+            final Cursor c = db.rawQuery("SELECT f.id, f.folder, f.url, f.size, f.md5 FROM " + PARENTS + " p" +
+                    " JOIN " + FILES + " f ON f.id=p.id WHERE p.parent=? ORDER BY f.title",
+                    new String[] { queue.removeFirst() });
+            try {
+                while (c.moveToNext()) {
+                    final String id = c.getString(0);
+                    if (c.getInt(1) != 0) {
+                        // folders can have more than one parent
+                        if (seen.add(id)) {
+                            queue.add(id);
+                        }
+                    } else {
+                        songs.add(new File().setId(id).setDownloadUrl(c.getString(2))
+                                .setFileSize(c.getLong(3)).setMd5Checksum(c.getString(4)));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * @return md5 and size of the files, as md5/size keyed by id, for spotting copies
+     */
+    public Map<String, String> fingerprints(String accountName, List<String> ids) {
+        final SQLiteDatabase db = getDatabase(accountName);
+        final Map<String, String> fingerprints = new HashMap<>(ids.size());
+        // Stay under sqlite's limit on bound arguments
+        for (int start=0; start<ids.size(); start+=500) {
+            final List<String> chunk = ids.subList(start, Math.min(start + 500, ids.size()));
+            final StringBuilder in = new StringBuilder();
+            for (int ii=0; ii<chunk.size(); ii++) {
+                in.append(ii == 0 ? "?" : ",?");
+            }
+            final Cursor c = db.query(FILES, new String[] {"id", "md5", "size"},
+                    "md5 IS NOT NULL AND id IN (" + in + ")", chunk.toArray(new String[chunk.size()]),
+                    null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    fingerprints.put(c.getString(0), fingerprint(c.getString(1), c.getLong(2)));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return fingerprints;
+    }
+
+    public static String fingerprint(String md5, long size) {
+        return md5 + "/" + size;
+    }
+
+    List<RequestCache.Item> query(String accountName, String selection, String[] selectionArgs,
+                                  int offset, int limit) {
+        return readItems(getDatabase(accountName).query(FILES, ITEM_COLUMNS, selection, selectionArgs,
+                null, null, ITEM_ORDER, offset + "," + limit));
+    }
+
+    static List<RequestCache.Item> readItems(Cursor c) {
+        final List<RequestCache.Item> items = new ArrayList<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                items.add(readItem(c));
+            }
+        } finally {
+            c.close();
+        }
+        return items;
+    }
+
+    static RequestCache.Item readItem(Cursor c) {
+        final String id = c.getString(0);
+        final String title = c.getString(1);
+        if (c.getInt(2) != 0) {
+            return RequestCache.Item.folder(id, title, c.getString(6), Helpers.formatDate(c.getLong(4)));
+        } else {
+            return RequestCache.Item.song(id, title, c.getString(3), c.getString(5));
+        }
+    }
+
+    static void insert(SQLiteDatabase db, File f) {
+        ContentValues cv = new ContentValues(8);
+        cv.put("id", f.getId());
+        cv.put("title", f.getTitle());
+        cv.put("folder", Helpers.isFolder(f.getMimeType()) ? 1 : 0);
+        cv.put("mime", f.getMimeType());
+        cv.put("modified", f.getModifiedDate() != null ? f.getModifiedDate().getValue() : 0);
+        cv.put("size", f.getFileSize());
+        cv.put("md5", f.getMd5Checksum());
+        cv.put("url", f.getDownloadUrl());
+        db.insertWithOnConflict(FILES, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+        if (f.getParents() != null) {
+            for (ParentReference p : f.getParents()) {
+                ContentValues pcv = new ContentValues(2);
+                pcv.put("id", f.getId());
+                pcv.put("parent", p.getId());
+                db.insertWithOnConflict(PARENTS, null, pcv, SQLiteDatabase.CONFLICT_IGNORE);
+                if (Boolean.TRUE.equals(p.getIsRoot())) {
+                    // So the root can be looked up by its alias
+                    pcv.put("parent", DriveLibraryService.DEFAULT_ROOT_FOLDER);
+                    db.insertWithOnConflict(PARENTS, null, pcv, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+        }
+    }
+
+    static void delete(SQLiteDatabase db, String id) {
+        final String[] args = new String[] { id };
+        db.delete(FILES, "id=?", args);
+        db.delete(PARENTS, "id=?", args);
+    }
+
+    String getMeta(String accountName, String key) {
+        Cursor c = getDatabase(accountName).query(META, new String[] {"value"}, "key=?",
+                new String[] { key }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    void putMeta(String accountName, String key, String value) {
+        ContentValues cv = new ContentValues(2);
+        cv.put("key", key);
+        cv.put("value", value);
+        getDatabase(accountName).insertWithOnConflict(META, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    synchronized SQLiteDatabase getDatabase(String accountName) {
+        IndexDatabase helper = databases.get(accountName);
+        if (helper == null) {
+            helper = new IndexDatabase(context, "index-" + ListingDiskCache.sha1(accountName) + ".db");
+            databases.put(accountName, helper);
+        }
+        return helper.getWritableDatabase();
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cached listing stored column wise. A handful of parallel arrays cost far
+ * less than a Bundle per row, with its map, boxed values and its own copy of
+ * every mime type and parent id. Bundles are only built for the rows we hand out.
+ *
+ * Immutable, patching a listing builds a new one.
+ *
+ * Created by drew on 11/27/14.
+ */
+public class Listing {
+
+    final int size;
+    final String[] identities;
+    final String[] names;
+    final boolean[] folders;
+    final String[] parents;
+    final String[] dates;
+    final String[] mimeTypes;
+    final String[] downloadUrls;
+    // Rows we were given as opaque bundles, null if there aren't any
+    final Bundle[] bundles;
+    final long bytes;
+
+    Listing(String[] identities, String[] names, boolean[] folders, String[] parents, String[] dates,
+            String[] mimeTypes, String[] downloadUrls, Bundle[] bundles) {
+        this.size = identities.length;
+        this.identities = identities;
+        this.names = names;
+        this.folders = folders;
+        this.parents = parents;
+        this.dates = dates;
+        this.mimeTypes = mimeTypes;
+        this.downloadUrls = downloadUrls;
+        this.bundles = bundles;
+        this.bytes = estimateSize();
+    }
+
+    /**
+     * @param pool interns the columns that repeat across rows
+     */
+    public static Listing of(List<RequestCache.Item> items, StringPool pool) {
+        final int n = items.size();
+        final String[] identities = new String[n];
+        final String[] names = new String[n];
+        final boolean[] folders = new boolean[n];
+        final String[] parents = new String[n];
+        final String[] dates = new String[n];
+        final String[] mimeTypes = new String[n];
+        final String[] downloadUrls = new String[n];
+        Bundle[] bundles = null;
+        for (int ii=0; ii<n; ii++) {
+            final RequestCache.Item item = items.get(ii);
+            identities[ii] = item.identity;
+            names[ii] = item.name;
+            folders[ii] = item.folder;
+            parents[ii] = pool.intern(item.parentIdentity);
+            dates[ii] = pool.intern(item.date);
+            mimeTypes[ii] = pool.intern(item.mimeType);
+            downloadUrls[ii] = item.downloadUrl;
+            if (item.bundle != null) {
+                if (bundles == null) {
+                    bundles = new Bundle[n];
+                }
+                bundles[ii] = item.bundle;
+            }
+        }
+        return new Listing(identities, names, folders, parents, dates, mimeTypes, downloadUrls, bundles);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public RequestCache.Item item(int idx) {
+        return new RequestCache.Item(identities[idx], names[idx], folders[idx], parents[idx], dates[idx],
+                mimeTypes[idx], downloadUrls[idx], bundles != null ? bundles[idx] : null);
+    }
+
+    /**
+     * @return the rows as items, for patching
+     */
+    public List<RequestCache.Item> items() {
+        List<RequestCache.Item> items = new ArrayList<>(size);
+        for (int ii=0; ii<size; ii++) {
+            items.add(item(ii));
+        }
+        return items;
+    }
+
+    public int indexOf(String identity) {
+        for (int ii=0; ii<size; ii++) {
+            if (identity.equals(identities[ii])) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if any row in [start, end) is a song needing a token
+     */
+    public boolean needsToken(int start, int end) {
+        for (int ii=start; ii<end; ii++) {
+            if (!folders[ii] && (bundles == null || bundles[ii] == null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ids of the songs in [start, end)
+     */
+    public List<String> songIds(int start, int end) {
+        List<String> ids = new ArrayList<>(Math.max(0, end - start));
+        for (int ii=start; ii<end; ii++) {
+            if (!folders[ii] && identities[ii] != null) {
+                ids.add(identities[ii]);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Builds the bundles for rows [start, end)
+     *
+     * @param songUris picks the song data uris, may be null
+     * @param accountName owning the listing, for artwork uris
+     * @param tags by song id, may be null
+     */
+    public List<Bundle> slice(int start, int end, SongUris songUris, String accountName, String authToken,
+                              Map<String, TrackTags> tags) {
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        List<Bundle> bundles = new ArrayList<>(end - start);
+        for (int ii=start; ii<end; ii++) {
+            final TrackTags t = tags != null && !folders[ii] ? tags.get(identities[ii]) : null;
+            bundles.add(item(ii).toBundle(songUris, accountName, authToken, t));
+        }
+        return bundles;
+    }
+
+    /*
+     * Pooled strings are shared, we count each once per listing
+     * which is as close as we can get without tracking references.
+     */
+    long estimateSize() {
+        final Set<String> seen = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        long sz = 64 + 7 * (16 + 4L * size) + (16 + size);
+        for (int ii=0; ii<size; ii++) {
+            sz += RequestCache.sizeOf(identities[ii]);
+            sz += RequestCache.sizeOf(names[ii]);
+            sz += RequestCache.sizeOf(downloadUrls[ii]);
+            sz += sizeOfShared(seen, parents[ii]);
+            sz += sizeOfShared(seen, dates[ii]);
+            sz += sizeOfShared(seen, mimeTypes[ii]);
+            if (bundles != null) {
+                sz += RequestCache.sizeOf(bundles[ii]);
+            }
+        }
+        return sz;
+    }
+
+    static long sizeOfShared(Set<String> seen, String s) {
+        return s != null && seen.add(s) ? RequestCache.sizeOf(s) : 0;
+    }
+
+}
@@ -0,0 +1,670 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Persists the sorted listings held by the {@link RequestCache} so they
+ * survive the process being killed.
+ *
+ * Each listing is stored in its own file as a flat binary dump of its items.
+ * Files are written on a single background thread and the directory is kept
+ * under a byte cap by deleting the oldest snapshots.
+ *
+ * Snapshots are stamped with the invalidation generation they were written in,
+ * listings invalidated by prefix can't be found by listing the directory so
+ * instead the prefix is marked with a new generation and older snapshots under
+ * it are refused. The marks are persisted alongside the snapshots.
+ *
+ * Created by drew on 11/20/14.
+ */
+@Singleton
+public class ListingDiskCache {
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    // Song rows don't carry a token anymore, but a day old listing
+    // is more likely to mislead than help.
+    public static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    static final int MAGIC = 0x4f445243; // ODRC
+    static final int VERSION = 6;
+    static final int MARKS_MAGIC = 0x4f44524d; // ODRM
+
+    static final byte T_NULL = 0;
+    static final byte T_STRING = 1;
+    static final byte T_INT = 2;
+    static final byte T_LONG = 3;
+    static final byte T_BOOLEAN = 4;
+    static final byte T_DOUBLE = 5;
+    static final byte T_FLOAT = 6;
+    static final byte T_URI = 7;
+    static final byte T_BUNDLE = 8;
+
+    public static class Snapshot {
+        public final String cacheKey;
+        public final long timestamp;
+        public final long generation;
+        public final List<RequestCache.Item> items;
+        // may be null
+        public final ListingValidators validators;
+
+        Snapshot(String cacheKey, long timestamp, long generation, List<RequestCache.Item> items,
+                 ListingValidators validators) {
+            this.cacheKey = cacheKey;
+            this.timestamp = timestamp;
+            this.generation = generation;
+            this.items = items;
+            this.validators = validators;
+        }
+    }
+
+    static class Mark {
+        final long generation;
+        final long timestamp;
+
+        Mark(long generation, long timestamp) {
+            this.generation = generation;
+            this.timestamp = timestamp;
+        }
+    }
+
+    final File dir;
+    final File marksFile;
+    final long maxBytes;
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // guarded by MARKS, loaded on first use
+    final Map<String, Mark> MARKS = new HashMap<>();
+    boolean marksLoaded;
+    boolean marksDirty;
+    long generation;
+
+    @Inject
+    public ListingDiskCache(@ForApplication Context context) {
+        this(new File(context.getCacheDir(), "listings"), DEFAULT_MAX_BYTES);
+    }
+
+    ListingDiskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.marksFile = new File(dir.getPath() + ".marks");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Asynchronously writes the listing to disk, replacing any previous snapshot
+     */
+    public void write(final String cacheKey, final List<RequestCache.Item> items,
+                      final ListingValidators validators) {
+        // the items are as of now, not of whenever we get round to writing them
+        final long generation = generation();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSync(cacheKey, items, validators, generation);
+                trimToSize();
+            }
+        });
+    }
+
+    /**
+     * Refuses every snapshot under keyPrefix written before now, they are
+     * deleted as we come across them
+     */
+    public void invalidate(String keyPrefix) {
+        synchronized (MARKS) {
+            loadMarks();
+            MARKS.put(keyPrefix, new Mark(++generation, now()));
+            scheduleWriteMarks();
+        }
+    }
+
+    /**
+     * @return false if the listing was invalidated since the snapshot was written
+     */
+    public boolean isCurrent(Snapshot snapshot) {
+        synchronized (MARKS) {
+            loadMarks();
+            for (Map.Entry<String, Mark> e : MARKS.entrySet()) {
+                if (snapshot.generation < e.getValue().generation
+                        && snapshot.cacheKey.startsWith(e.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    long generation() {
+        synchronized (MARKS) {
+            loadMarks();
+            return generation;
+        }
+    }
+
+    /**
+     * Asynchronously marks the snapshot as fetched just now, drive told us it's unchanged
+     */
+    public void touch(final String cacheKey) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                touchSync(cacheKey);
+            }
+        });
+    }
+
+    /**
+     * @return the snapshot for cacheKey or null if there isn't a usable one
+     */
+    public Snapshot read(String cacheKey) {
+        File f = fileFor(cacheKey);
+        if (!f.exists()) {
+            return null;
+        }
+        Snapshot snapshot = readFile(f);
+        if (snapshot == null || !snapshot.cacheKey.equals(cacheKey)) {
+            return null;
+        }
+        if (!isCurrent(snapshot)) {
+            remove(cacheKey);
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return all usable snapshots, newest first
+     */
+    public List<Snapshot> readAll() {
+        File[] files = listFiles();
+        List<Snapshot> snapshots = new ArrayList<>(files.length);
+        for (File f : files) {
+            Snapshot snapshot = readFile(f);
+            if (snapshot == null) {
+                continue;
+            }
+            if (isCurrent(snapshot)) {
+                snapshots.add(snapshot);
+            } else {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        return snapshots;
+    }
+
+    public void remove(final String cacheKey) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                //noinspection ResultOfMethodCallIgnored
+                fileFor(cacheKey).delete();
+            }
+        });
+    }
+
+    public void clear() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (File f : listFiles()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+        });
+    }
+
+    void execute(Runnable r) {
+        executor.execute(r);
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /*
+     * Files sorted newest first
+     */
+    File[] listFiles() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        return files;
+    }
+
+    void trimToSize() {
+        long total = 0;
+        for (File f : listFiles()) {
+            total += f.length();
+            if (total > maxBytes) {
+                Timber.d("trimToSize() deleting %s", f.getName());
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+    void touchSync(String cacheKey) {
+        final File f = fileFor(cacheKey);
+        if (!f.exists()) {
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION || !cacheKey.equals(raf.readUTF())) {
+                return;
+            }
+            // the timestamp follows the key
+            raf.writeLong(now());
+            //noinspection ResultOfMethodCallIgnored
+            f.setLastModified(now());
+        } catch (IOException e) {
+            Timber.w(e, "touchSync(%s)", cacheKey);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    void writeSync(String cacheKey, List<RequestCache.Item> items, ListingValidators validators,
+                   long generation) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Timber.w("Unable to create %s", dir);
+            return;
+        }
+        File f = fileFor(cacheKey);
+        File tmp = new File(dir, f.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(cacheKey);
+            out.writeLong(now());
+            out.writeLong(generation);
+            out.writeInt(items.size());
+            for (RequestCache.Item item : items) {
+                writeItem(out, item);
+            }
+            if (validators != null) {
+                out.writeInt(validators.etags.size());
+                for (int ii=0; ii<validators.etags.size(); ii++) {
+                    writeValue(out, validators.pageTokens.get(ii));
+                    writeValue(out, validators.etags.get(ii));
+                }
+            } else {
+                out.writeInt(0);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "writeSync(%s)", cacheKey);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    Snapshot readFile(File f) {
+        if (f.getName().endsWith(".tmp")) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Bad header");
+            }
+            String cacheKey = in.readUTF();
+            long timestamp = in.readLong();
+            if (now() - timestamp > MAX_AGE) {
+                return null;
+            }
+            long generation = in.readLong();
+            int count = in.readInt();
+            List<RequestCache.Item> items = new ArrayList<>(count);
+            for (int ii=0; ii<count; ii++) {
+                items.add(readItem(in));
+            }
+            ListingValidators validators = null;
+            final int pages = in.readInt();
+            if (pages > 0) {
+                final List<String> pageTokens = new ArrayList<>(pages);
+                final List<String> etags = new ArrayList<>(pages);
+                for (int ii=0; ii<pages; ii++) {
+                    pageTokens.add(readString(in));
+                    etags.add(readString(in));
+                }
+                validators = new ListingValidators(pageTokens, etags);
+            }
+            return new Snapshot(cacheKey, timestamp, generation, Collections.unmodifiableList(items), validators);
+        } catch (IOException e) {
+            Timber.w(e, "readFile(%s)", f.getName());
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /*
+     * Must hold MARKS lock
+     */
+    void loadMarks() {
+        if (marksLoaded) {
+            return;
+        }
+        marksLoaded = true;
+        if (!marksFile.exists()) {
+            // without them we can't tell what's stale, so nothing is trusted
+            dropUnverifiable();
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(marksFile)));
+            if (in.readInt() != MARKS_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Bad header");
+            }
+            generation = in.readLong();
+            final int count = in.readInt();
+            for (int ii=0; ii<count; ii++) {
+                final String prefix = in.readUTF();
+                MARKS.put(prefix, new Mark(in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            Timber.w(e, "loadMarks()");
+            MARKS.clear();
+            generation = 0;
+            dropUnverifiable();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /*
+     * Must hold MARKS lock
+     */
+    void dropUnverifiable() {
+        for (File f : listFiles()) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+        // so the next process trusts what we write from here on
+        scheduleWriteMarks();
+    }
+
+    /*
+     * Must hold MARKS lock. Changes come in bursts, they all go out in one write
+     */
+    void scheduleWriteMarks() {
+        if (marksDirty) {
+            return;
+        }
+        marksDirty = true;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                writeMarks();
+            }
+        });
+    }
+
+    void writeMarks() {
+        final long generation;
+        final Map<String, Mark> marks;
+        synchronized (MARKS) {
+            marksDirty = false;
+            // anything written before the oldest ones is past MAX_AGE anyway
+            final Iterator<Map.Entry<String, Mark>> ii = MARKS.entrySet().iterator();
+            while (ii.hasNext()) {
+                if (now() - ii.next().getValue().timestamp > MAX_AGE) {
+                    ii.remove();
+                }
+            }
+            generation = this.generation;
+            marks = new HashMap<>(MARKS);
+        }
+        final File tmp = new File(marksFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MARKS_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(marks.size());
+            for (Map.Entry<String, Mark> e : marks.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().generation);
+                out.writeLong(e.getValue().timestamp);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(marksFile)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "writeMarks()");
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    File fileFor(String cacheKey) {
+        return new File(dir, sha1(cacheKey));
+    }
+
+    static void writeItem(DataOutputStream out, RequestCache.Item item) throws IOException {
+        out.writeBoolean(item.identity != null);
+        if (item.identity != null) {
+            out.writeUTF(item.identity);
+            out.writeUTF(item.name);
+            out.writeBoolean(item.folder);
+        }
+        writeValue(out, item.parentIdentity);
+        writeValue(out, item.date);
+        writeValue(out, item.mimeType);
+        writeValue(out, item.downloadUrl);
+        out.writeBoolean(item.bundle != null);
+        if (item.bundle != null) {
+            writeBundle(out, item.bundle);
+        }
+    }
+
+    static RequestCache.Item readItem(DataInputStream in) throws IOException {
+        String identity = null;
+        String name = null;
+        boolean folder = false;
+        if (in.readBoolean()) {
+            identity = in.readUTF();
+            name = in.readUTF();
+            folder = in.readBoolean();
+        }
+        String parentIdentity = readString(in);
+        String date = readString(in);
+        String mimeType = readString(in);
+        String downloadUrl = readString(in);
+        Bundle bundle = in.readBoolean() ? readBundle(in) : null;
+        return new RequestCache.Item(identity, name, folder, parentIdentity, date, mimeType, downloadUrl, bundle);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == T_NULL) {
+            return null;
+        } else if (type == T_STRING) {
+            return in.readUTF();
+        }
+        throw new IOException("Expected string got " + type);
+    }
+
+    static void writeBundle(DataOutputStream out, Bundle b) throws IOException {
+        out.writeInt(b.size());
+        for (String key : b.keySet()) {
+            out.writeUTF(key);
+            writeValue(out, b.get(key));
+        }
+    }
+
+    static void writeValue(DataOutputStream out, Object o) throws IOException {
+        if (o == null) {
+            out.writeByte(T_NULL);
+        } else if (o instanceof String) {
+            out.writeByte(T_STRING);
+            out.writeUTF((String) o);
+        } else if (o instanceof Integer) {
+            out.writeByte(T_INT);
+            out.writeInt((Integer) o);
+        } else if (o instanceof Long) {
+            out.writeByte(T_LONG);
+            out.writeLong((Long) o);
+        } else if (o instanceof Boolean) {
+            out.writeByte(T_BOOLEAN);
+            out.writeBoolean((Boolean) o);
+        } else if (o instanceof Double) {
+            out.writeByte(T_DOUBLE);
+            out.writeDouble((Double) o);
+        } else if (o instanceof Float) {
+            out.writeByte(T_FLOAT);
+            out.writeFloat((Float) o);
+        } else if (o instanceof Uri) {
+            out.writeByte(T_URI);
+            out.writeUTF(o.toString());
+        } else if (o instanceof Bundle) {
+            out.writeByte(T_BUNDLE);
+            writeBundle(out, (Bundle) o);
+        } else {
+            throw new IOException("Unsupported type " + o.getClass());
+        }
+    }
+
+    static Bundle readBundle(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Bundle b = new Bundle(size);
+        for (int ii=0; ii<size; ii++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            switch (type) {
+                case T_NULL:
+                    b.putString(key, null);
+                    break;
+                case T_STRING:
+                    b.putString(key, in.readUTF());
+                    break;
+                case T_INT:
+                    b.putInt(key, in.readInt());
+                    break;
+                case T_LONG:
+                    b.putLong(key, in.readLong());
+                    break;
+                case T_BOOLEAN:
+                    b.putBoolean(key, in.readBoolean());
+                    break;
+                case T_DOUBLE:
+                    b.putDouble(key, in.readDouble());
+                    break;
+                case T_FLOAT:
+                    b.putFloat(key, in.readFloat());
+                    break;
+                case T_URI:
+                    b.putParcelable(key, Uri.parse(in.readUTF()));
+                    break;
+                case T_BUNDLE:
+                    b.putBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IOException("Unknown type " + type);
+            }
+        }
+        return b;
+    }
+
+    static String sha1(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte d : digest) {
+                sb.append(Character.forDigit((d >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(d & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException|UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ETag drive gave each page of a listing, with the page token that asked
+ * for it. Replaying the pages with If-None-Match tells us whether the listing
+ * changed without downloading it again.
+ *
+ * Created by drew on 12/8/14.
+ */
+public class ListingValidators {
+
+    // Token each page was requested with, null for the first
+    public final List<String> pageTokens;
+    public final List<String> etags;
+
+    public ListingValidators(List<String> pageTokens, List<String> etags) {
+        this.pageTokens = Collections.unmodifiableList(pageTokens);
+        this.etags = Collections.unmodifiableList(etags);
+    }
+
+    /**
+     * @return true if every page has an etag to check
+     */
+    public boolean isComplete() {
+        if (etags.isEmpty()) {
+            return false;
+        }
+        for (String etag : etags) {
+            if (TextUtils.isEmpty(etag)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the pages as they're fetched, in order
+     */
+    public static class Builder {
+        final List<String> pageTokens = new ArrayList<>();
+        final List<String> etags = new ArrayList<>();
+
+        public synchronized void add(String pageToken, String etag) {
+            pageTokens.add(pageToken);
+            etags.add(etag);
+        }
+
+        public synchronized ListingValidators build() {
+            return new ListingValidators(new ArrayList<>(pageTokens), new ArrayList<>(etags));
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.model.File;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+import org.opensilk.music.plugin.common.LibraryPreferences;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the songs in the folders a user pinned on the device. Downloads run as
+ * bulk work one song at a time, on unmetered networks unless the user allows
+ * otherwise, and the account's files are kept under its
+ * byte budget by evicting the least recently used songs that are no longer
+ * pinned. A song counts as used whenever its offline uri is handed out or the
+ * proxy serves it. Pinned songs are never evicted, those that don't fit are
+ * skipped.
+ *
+ * What we hold is recorded in the library index, files are named after the
+ * md5 drive gave us so an edited song is fetched again.
+ *
+ * Created by drew on 12/6/14.
+ */
+@Singleton
+public class OfflineCache {
+
+    static final int BUFFER = 64 * 1024;
+
+    static class Entry {
+        final String id;
+        final String md5;
+        final long size;
+        final long used;
+
+        Entry(String id, String md5, long size, long used) {
+            this.id = id;
+            this.md5 = md5;
+            this.size = size;
+            this.used = used;
+        }
+    }
+
+    final Context context;
+    final LibraryIndex index;
+    final LibraryPreferences prefs;
+    final java.io.File dir;
+    // Only set if the player can read our files
+    final java.io.File shareableDir;
+    // Complete files by account/id, read when building songs
+    final ConcurrentHashMap<String, java.io.File> files = new ConcurrentHashMap<>();
+    final Set<String> running = Collections.synchronizedSet(new HashSet<String>());
+    final Set<String> loaded = Collections.synchronizedSet(new HashSet<String>());
+    // Uses not yet written to the index by account/id, songs are built by the page
+    final ConcurrentHashMap<String, Long> uses = new ConcurrentHashMap<>();
+
+    @Inject
+    public OfflineCache(@ForApplication Context context, LibraryIndex index, LibraryPreferences prefs) {
+        this.context = context;
+        this.index = index;
+        this.prefs = prefs;
+        // Orpheus can only play our files directly if they're on shared storage
+        final java.io.File external = context.getExternalFilesDir("offline");
+        if (external != null) {
+            this.dir = external;
+            this.shareableDir = external;
+        } else {
+            this.dir = new java.io.File(context.getFilesDir(), "offline");
+            this.shareableDir = null;
+        }
+    }
+
+    /**
+     * @return the downloaded song, null if we don't have it
+     */
+    public java.io.File cachedFile(String accountName, String id) {
+        final java.io.File f = files.get(accountName + "/" + id);
+        return f != null && f.exists() ? f : null;
+    }
+
+    /**
+     * @return a file uri for the song if we have it somewhere the player can read
+     */
+    public Uri buildOfflineUri(String accountName, String id) {
+        final java.io.File f = cachedFile(accountName, id);
+        if (f == null || shareableDir == null || !shareableDir.equals(f.getParentFile())) {
+            return null;
+        }
+        return Uri.fromFile(f);
+    }
+
+    /**
+     * Reads what we've downloaded for the account, so songs built after pick it up
+     */
+    public void load(String accountName) {
+        if (!loaded.add(accountName)) {
+            return;
+        }
+        final SQLiteDatabase db = index.getDatabase(accountName);
+        for (Entry e : entries(accountName)) {
+            final java.io.File f = fileFor(accountName, e.id, e.md5);
+            if (f.exists()) {
+                files.put(accountName + "/" + e.id, f);
+            } else {
+                // storage was cleared under us
+                db.delete(LibraryIndex.OFFLINE, "id=?", new String[] { e.id });
+            }
+        }
+    }
+
+    /**
+     * Marks the song as just used so it's the last unpinned song evicted,
+     * it's recorded the next time we sync
+     */
+    public void touch(String accountName, String id) {
+        uses.put(accountName + "/" + id, System.currentTimeMillis());
+    }
+
+    void flushUses(String accountName) {
+        final String prefix = accountName + "/";
+        final SQLiteDatabase db = index.getDatabase(accountName);
+        final ContentValues cv = new ContentValues(1);
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Long> e : uses.entrySet()) {
+                if (!e.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                cv.put("used", e.getValue());
+                db.update(LibraryIndex.OFFLINE, cv, "id=?", new String[] { e.getKey().substring(prefix.length()) });
+                // unless it was used again meanwhile
+                uses.remove(e.getKey(), e.getValue());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Brings the account's files in line with its pinned folders and budget, in the background
+     */
+    public void sync(DriveHelper.Session session, String accountName) {
+        if (!index.isReady(accountName)) {
+            // we find songs through the index, the sync after the crawl gets us going
+            return;
+        }
+        load(accountName);
+        if (running.add(accountName)) {
+            submit(session, accountName);
+        }
+    }
+
+    void submit(final DriveHelper.Session session, final String accountName) {
+        session.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean more = false;
+                try {
+                    more = syncOne(session, accountName);
+                } catch (IOException e) {
+                    // Probably offline, the next sync starts us again
+                    Timber.w(e, "sync(%s) giving up for now", accountName);
+                } finally {
+                    if (more) {
+                        // requeue so waiting work of any priority gets a turn
+                        submit(session, accountName);
+                    } else {
+                        running.remove(accountName);
+                    }
+                }
+            }
+        }, PriorityExecutor.BULK);
+    }
+
+    /**
+     * Evicts what it must and downloads the next missing song
+     *
+     * @return true if there's more to download
+     */
+    boolean syncOne(DriveHelper.Session session, String accountName) throws IOException {
+        final Set<String> pinned = prefs.getOfflineFolders(accountName);
+        final Map<String, File> wanted = new LinkedHashMap<>();
+        if (!pinned.isEmpty()) {
+            for (File f : index.songsUnder(accountName, pinned)) {
+                if (f.getDownloadUrl() != null && f.getFileSize() != null) {
+                    wanted.put(f.getId(), f);
+                }
+            }
+        }
+        flushUses(accountName);
+        // Oldest first
+        final List<Entry> evictable = new ArrayList<>();
+        long total = 0;
+        for (Entry e : entries(accountName)) {
+            final File want = wanted.get(e.id);
+            if (want != null && equal(want.getMd5Checksum(), e.md5)) {
+                wanted.remove(e.id);
+            } else {
+                evictable.add(e);
+            }
+            total += e.size;
+        }
+        final long budget = prefs.getOfflineBudget(accountName);
+        // The budget may have shrunk
+        while (total > budget && !evictable.isEmpty()) {
+            total -= evict(accountName, evictable);
+        }
+        if (wanted.isEmpty()) {
+            // unpinned songs stay till we need the room
+            return false;
+        }
+        long pinnedBytes = total;
+        for (Entry e : evictable) {
+            pinnedBytes -= e.size;
+        }
+        // the first that fits once we've made all the room we can, the rest may be smaller
+        File next = null;
+        for (File f : wanted.values()) {
+            if (pinnedBytes + f.getFileSize() <= budget) {
+                next = f;
+                break;
+            }
+        }
+        if (next == null) {
+            Timber.d("sync(%s) budget of %d bytes is full", accountName, budget);
+            return false;
+        }
+        while (total + next.getFileSize() > budget) {
+            total -= evict(accountName, evictable);
+        }
+        if (!allowed(accountName)) {
+            // the next sync on a network we may use picks up from here
+            Timber.d("sync(%s) waiting for an unmetered network", accountName);
+            return false;
+        }
+        download(session, accountName, next);
+        return wanted.size() > 1;
+    }
+
+    /*
+     * Never on metered networks unless the user said so
+     */
+    boolean allowed(String accountName) {
+        final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return false;
+        }
+        return prefs.getOfflineMetered(accountName) || !HeadCache.isMetered(cm, info);
+    }
+
+    long evict(String accountName, List<Entry> evictable) {
+        final Entry e = evictable.remove(0);
+        remove(accountName, e);
+        return e.size;
+    }
+
+    void download(DriveHelper.Session session, String accountName, File song) throws IOException {
+        final java.io.File target = fileFor(accountName, song.getId(), song.getMd5Checksum());
+        final java.io.File part = new java.io.File(dir, target.getName() + ".part");
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        final long size = song.getFileSize();
+        long have = part.length();
+        if (have > 0 && have < size) {
+            Timber.d("download(%s) resuming at %d", song.getId(), have);
+        } else {
+            have = 0;
+        }
+        final HttpRequest req = session.getDrive().getRequestFactory().buildGetRequest(new GenericUrl(song.getDownloadUrl()));
+        if (have > 0) {
+            req.getHeaders().setRange("bytes=" + have + "-");
+        }
+        final HttpResponse resp = req.execute();
+        try {
+            if (have > 0 && resp.getStatusCode() != 206) {
+                have = 0; // we got the whole thing
+            }
+            final InputStream in = resp.getContent();
+            final OutputStream out = new FileOutputStream(part, have > 0);
+            try {
+                final byte[] buf = new byte[BUFFER];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            resp.disconnect();
+        }
+        if (part.length() != size || (song.getMd5Checksum() != null && !song.getMd5Checksum().equals(md5(part)))) {
+            //noinspection ResultOfMethodCallIgnored
+            part.delete();
+            throw new IOException("Download of " + song.getId() + " was corrupt");
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Unable to rename " + part);
+        }
+        final ContentValues cv = new ContentValues(4);
+        cv.put("id", song.getId());
+        cv.put("md5", song.getMd5Checksum());
+        cv.put("size", size);
+        cv.put("used", System.currentTimeMillis());
+        index.getDatabase(accountName).insertWithOnConflict(LibraryIndex.OFFLINE, null, cv,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        files.put(accountName + "/" + song.getId(), target);
+        Timber.d("download(%s) %d bytes", song.getId(), size);
+    }
+
+    void remove(String accountName, Entry e) {
+        Timber.d("remove(%s) %d bytes", e.id, e.size);
+        files.remove(accountName + "/" + e.id);
+        //noinspection ResultOfMethodCallIgnored
+        fileFor(accountName, e.id, e.md5).delete();
+        index.getDatabase(accountName).delete(LibraryIndex.OFFLINE, "id=?", new String[] { e.id });
+    }
+
+    /**
+     * Deletes everything downloaded for the account
+     */
+    public void clear(String accountName) {
+        for (Entry e : entries(accountName)) {
+            remove(accountName, e);
+        }
+    }
+
+    /*
+     * Least recently used first
+     */
+    List<Entry> entries(String accountName) {
+        final Cursor c = index.getDatabase(accountName).query(LibraryIndex.OFFLINE,
+                new String[] {"id", "md5", "size", "used"}, null, null, null, null, "used");
+        try {
+            final List<Entry> entries = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                entries.add(new Entry(c.getString(0), c.getString(1), c.getLong(2), c.getLong(3)));
+            }
+            return entries;
+        } finally {
+            c.close();
+        }
+    }
+
+    java.io.File fileFor(String accountName, String id, String md5) {
+        return new java.io.File(dir, ListingDiskCache.sha1(accountName + "/" + id) + "-" + md5);
+    }
+
+    static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    static String md5(java.io.File f) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final InputStream in = new FileInputStream(f);
+        try {
+            final byte[] buf = new byte[BUFFER];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        final StringBuilder sb = new StringBuilder(32);
+        for (byte b : digest.digest()) {
+            sb.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Limits for speculative listing of child folders. Prefetches run as bulk work
+ * on the account's {@link PriorityExecutor} and each account may only spend so
+ * many listings in a given window.
+ *
+ * Created by drew on 11/24/14.
+ */
+@Singleton
+public class Prefetcher {
+
+    // Child folders prefetched per listing
+    public static final int MAX_CHILDREN = 4;
+    // How far below the listing the user opened we go
+    public static final int MAX_DEPTH = 1;
+    // Prefetched listings allowed per account per window
+    public static final int BUDGET = 40;
+    public static final long BUDGET_WINDOW = 10 * 60 * 1000;
+
+    static class Budget {
+        long windowStart;
+        int spent;
+    }
+
+    final Map<String, Budget> budgets = new HashMap<>();
+
+    @Inject
+    public Prefetcher() {
+    }
+
+    /**
+     * @return true if the account may prefetch another listing
+     */
+    public boolean tryAcquire(String accountName) {
+        synchronized (budgets) {
+            final long now = SystemClock.elapsedRealtime();
+            Budget budget = budgets.get(accountName);
+            if (budget == null) {
+                budget = new Budget();
+                budgets.put(accountName, budget);
+            }
+            if (now - budget.windowStart > BUDGET_WINDOW) {
+                budget.windowStart = now;
+                budget.spent = 0;
+            }
+            if (budget.spent >= BUDGET) {
+                return false;
+            }
+            budget.spent++;
+            return true;
+        }
+    }
+
+}
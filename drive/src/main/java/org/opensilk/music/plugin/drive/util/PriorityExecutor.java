@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+import timber.log.Timber;
+
+/**
+ * Runs the drive work of one account on a fixed number of threads. Queued work
+ * is taken interactive first, then search, then bulk, so a user opening a folder
+ * overtakes prefetches and full library walks queued before them.
+ *
+ * Bulk work can run long so it is never given every thread, one is always
+ * left for the other classes.
+ *
+ * Created by drew on 12/1/14.
+ */
+public class PriorityExecutor {
+
+    public static final int INTERACTIVE = 0;
+    public static final int SEARCH = 1;
+    public static final int BULK = 2;
+    static final int PRIORITIES = 3;
+
+    public static final int CONCURRENCY = 3;
+
+    static class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final int priority;
+        final long sequence;
+        final long enqueued = SystemClock.elapsedRealtime();
+
+        Task(Runnable runnable, int priority, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    final String name;
+    final int concurrency;
+    final int maxBulk;
+    final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    final AtomicLong sequence = new AtomicLong();
+    final Executor[] executors = new Executor[PRIORITIES];
+    final Scheduler[] schedulers = new Scheduler[PRIORITIES];
+
+    // guarded by this
+    final List<Thread> workers = new ArrayList<>();
+    // Bulk tasks taken while all bulk slots were busy, oldest first
+    final List<Task> parked = new ArrayList<>();
+    int runningBulk;
+    boolean shutdown;
+    final int[] depth = new int[PRIORITIES];
+    final long[] completed = new long[PRIORITIES];
+    final long[] totalWait = new long[PRIORITIES];
+    final long[] maxWait = new long[PRIORITIES];
+
+    public PriorityExecutor(String name) {
+        this(name, CONCURRENCY);
+    }
+
+    PriorityExecutor(String name, int concurrency) {
+        this.name = name;
+        this.concurrency = concurrency;
+        this.maxBulk = Math.max(1, concurrency - 1);
+        for (int ii=0; ii<PRIORITIES; ii++) {
+            final int priority = ii;
+            executors[ii] = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    submit(command, priority);
+                }
+            };
+            schedulers[ii] = Schedulers.from(executors[ii]);
+        }
+    }
+
+    public Executor executor(int priority) {
+        return executors[priority];
+    }
+
+    public Scheduler scheduler(int priority) {
+        return schedulers[priority];
+    }
+
+    public void submit(Runnable r, int priority) {
+        synchronized (this) {
+            if (shutdown) {
+                throw new IllegalStateException(name + " is shut down");
+            }
+            depth[priority]++;
+            if (workers.size() < concurrency) {
+                startWorker();
+            }
+        }
+        queue.add(new Task(r, priority, sequence.getAndIncrement()));
+    }
+
+    /**
+     * @return tasks of the priority waiting to run
+     */
+    public synchronized int queueDepth(int priority) {
+        return depth[priority];
+    }
+
+    /**
+     * @return mean time tasks of the priority waited to run, in ms
+     */
+    public synchronized long averageWait(int priority) {
+        return completed[priority] == 0 ? 0 : totalWait[priority] / completed[priority];
+    }
+
+    public synchronized long maxWait(int priority) {
+        return maxWait[priority];
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+
+    /*
+     * Must hold lock
+     */
+    void startWorker() {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    while (true) {
+                        final Task task = queue.take();
+                        if (!start(task)) {
+                            continue;
+                        }
+                        try {
+                            task.runnable.run();
+                        } catch (Throwable e) {
+                            Timber.e(e, "%s task failed", name);
+                        } finally {
+                            finish(task);
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // shutdown
+                }
+            }
+        }, name + "-" + workers.size());
+        workers.add(t);
+        t.start();
+    }
+
+    /*
+     * @return false if the task was parked for later
+     */
+    synchronized boolean start(Task task) {
+        if (task.priority == BULK) {
+            if (runningBulk >= maxBulk) {
+                parked.add(task);
+                return false;
+            }
+            runningBulk++;
+        }
+        final long wait = SystemClock.elapsedRealtime() - task.enqueued;
+        depth[task.priority]--;
+        completed[task.priority]++;
+        totalWait[task.priority] += wait;
+        maxWait[task.priority] = Math.max(maxWait[task.priority], wait);
+        if (wait > 1000) {
+            Timber.d("%s waited %dms for priority %d, depth=%d/%d/%d", name, wait, task.priority,
+                    depth[INTERACTIVE], depth[SEARCH], depth[BULK]);
+        }
+        return true;
+    }
+
+    synchronized void finish(Task task) {
+        if (task.priority == BULK) {
+            runningBulk--;
+            if (!parked.isEmpty()) {
+                queue.add(parked.remove(0));
+            }
+        }
+    }
+
+}
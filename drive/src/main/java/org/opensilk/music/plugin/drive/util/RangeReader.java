@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Random access to a drive file through HTTP Range requests. A read fetches
+ * exactly the bytes asked for, unless they fall inside the last range fetched.
+ * Parsers {@link #prefetch} a header or a tag once its length is known, so the
+ * reads within it cost a single request between them.
+ *
+ * Created by drew on 12/2/14.
+ */
+public class RangeReader {
+
+    final HttpRequestFactory requestFactory;
+    final String url;
+    final long length;
+
+    byte[] buffer = new byte[0];
+    long bufferStart;
+    long bytesFetched;
+    int requests;
+
+    /**
+     * @param length of the file, reads past it fail with EOFException
+     */
+    public RangeReader(HttpRequestFactory requestFactory, String url, long length) {
+        this.requestFactory = requestFactory;
+        this.url = url;
+        this.length = length;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long bytesFetched() {
+        return bytesFetched;
+    }
+
+    public int requests() {
+        return requests;
+    }
+
+    /**
+     * @return len bytes starting at offset
+     */
+    public byte[] read(long offset, int len) throws IOException {
+        if (offset < 0 || len < 0 || offset + len > length) {
+            throw new EOFException("read " + offset + "+" + len + " past " + length);
+        }
+        if (len == 0) {
+            return new byte[0];
+        }
+        if (!buffered(offset, len)) {
+            buffer = fetch(offset, len);
+            bufferStart = offset;
+        }
+        final byte[] out = new byte[len];
+        System.arraycopy(buffer, (int) (offset - bufferStart), out, 0, len);
+        return out;
+    }
+
+    /**
+     * Fetches len bytes at offset, or up to the end of the file, in one request
+     * for the reads that follow. Does nothing if we already have them.
+     */
+    public void prefetch(long offset, int len) throws IOException {
+        if (offset < 0 || offset >= length) {
+            return;
+        }
+        final int fetch = (int) Math.min(len, length - offset);
+        if (fetch > 0 && !buffered(offset, fetch)) {
+            buffer = fetch(offset, fetch);
+            bufferStart = offset;
+        }
+    }
+
+    boolean buffered(long offset, int len) {
+        return offset >= bufferStart && offset + len <= bufferStart + buffer.length;
+    }
+
+    /**
+     * @return the last len bytes of the file, or all of it if shorter
+     */
+    public byte[] readTail(int len) throws IOException {
+        final long offset = Math.max(0, length - len);
+        return read(offset, (int) (length - offset));
+    }
+
+    byte[] fetch(long offset, int len) throws IOException {
+        final HttpRequest req = requestFactory.buildGetRequest(new GenericUrl(url));
+        req.getHeaders().setRange("bytes=" + offset + "-" + (offset + len - 1));
+        final HttpResponse resp = req.execute();
+        try {
+            if (resp.getStatusCode() != 206) {
+                // Never pull the whole file because the server ignored us
+                throw new IOException("Range not honoured, status " + resp.getStatusCode());
+            }
+            final byte[] data = new byte[len];
+            final InputStream in = resp.getContent();
+            int read = 0;
+            while (read < len) {
+                int n = in.read(data, read, len - read);
+                if (n < 0) {
+                    throw new EOFException("Short range response " + read + "/" + len);
+                }
+                read += n;
+            }
+            requests++;
+            bytesFetched += len;
+            return data;
+        } finally {
+            resp.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by the requests of one account. The rate backs off
+ * when drive tells us we're going too fast and creeps back up as requests
+ * succeed, so bursts of browsing and prefetching slow down instead of failing.
+ *
+ * Created by drew on 11/30/14.
+ */
+public class RateLimiter {
+
+    // Drive allows 10 requests/sec/user, stay a bit under
+    public static final double MAX_RATE = 8;
+    public static final double MIN_RATE = 0.5;
+    public static final double BURST = 16;
+    // Added to the rate for every success
+    static final double RECOVERY = 0.05;
+
+    final double maxRate;
+    final double burst;
+
+    // guarded by this
+    double rate;
+    double tokens;
+    long lastRefill;
+
+    public RateLimiter() {
+        this(MAX_RATE, BURST);
+    }
+
+    RateLimiter(double maxRate, double burst) {
+        this.maxRate = maxRate;
+        this.burst = burst;
+        this.rate = maxRate;
+        this.tokens = burst;
+        this.lastRefill = now();
+    }
+
+    /**
+     * Blocks until we're allowed to make a request
+     */
+    public void acquire() throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            refill();
+            tokens -= 1;
+            // Negative tokens are debt, we wait for it to be paid off
+            wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000);
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * @return false if we'd have to wait, for requests we can do without
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + RECOVERY);
+    }
+
+    /**
+     * Drive said slow down, halve our rate and drain the bucket
+     */
+    public synchronized void onThrottled() {
+        refill();
+        rate = Math.max(MIN_RATE, rate / 2);
+        tokens = Math.min(tokens, 0);
+    }
+
+    public synchronized double rate() {
+        return rate;
+    }
+
+    void refill() {
+        final long now = now();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000);
+        lastRefill = now;
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+}
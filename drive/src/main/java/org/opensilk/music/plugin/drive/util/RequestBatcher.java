@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Groups requests made at about the same time into a single drive batch request,
+ * so walking a tree or refreshing several folders shares one https round trip.
+ *
+ * Callers block in {@link #execute(AbstractGoogleJsonClientRequest)} like they would
+ * on the request itself. A request made while nothing else is queued or running
+ * goes out directly. Otherwise it is held for a short window, and whatever showed
+ * up in that time is sent as one batch from the first caller's thread, so the
+ * scheduler only keeps time. A request left alone in its window runs directly.
+ *
+ * Created by drew on 11/26/14.
+ */
+public class RequestBatcher {
+
+    public static final long WINDOW_MS = 20;
+    // Drive won't take more than this in one batch
+    static final int MAX_BATCH = 100;
+
+    static class Pending<T> {
+        final AbstractGoogleJsonClientRequest<T> request;
+        final CountDownLatch latch = new CountDownLatch(1);
+        // set when we're to send the batch for everyone in it
+        List<Pending<?>> lead;
+        boolean answered;
+        boolean runAlone;
+        T result;
+        IOException error;
+
+        Pending(AbstractGoogleJsonClientRequest<T> request) {
+            this.request = request;
+        }
+
+        void queue(BatchRequest batch) throws IOException {
+            request.queue(batch, new JsonBatchCallback<T>() {
+                @Override
+                public void onSuccess(T t, HttpHeaders responseHeaders) {
+                    result = t;
+                    answer();
+                }
+
+                @Override
+                public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                    error = new GoogleJsonResponseException(
+                            new HttpResponseException.Builder(e.getCode(), e.getMessage(), responseHeaders), e);
+                    answer();
+                }
+            });
+        }
+
+        void fail(IOException e) {
+            error = e;
+            answer();
+        }
+
+        void runAlone() {
+            runAlone = true;
+            answer();
+        }
+
+        void lead(List<Pending<?>> batched) {
+            lead = batched;
+            latch.countDown();
+        }
+
+        void answer() {
+            answered = true;
+            latch.countDown();
+        }
+
+        /**
+         * @return the batch we have to send, null if our answer is in
+         */
+        List<Pending<?>> await() throws IOException {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return lead;
+        }
+
+        T get() throws IOException {
+            if (runAlone) {
+                return request.execute();
+            } else if (error != null) {
+                throw error;
+            }
+            return result;
+        }
+    }
+
+    final Drive drive;
+    final ScheduledExecutorService executor;
+
+    // guarded by this
+    List<Pending<?>> queue = new ArrayList<>();
+    int running;
+
+    public RequestBatcher(Drive drive, ScheduledExecutorService executor) {
+        this.drive = drive;
+        this.executor = executor;
+    }
+
+    /**
+     * Executes the request as part of a batch, blocking until its response is in
+     */
+    public <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+        if (request.getRequestHeaders().getIfNoneMatch() != null) {
+            // A 304 has no body for the batch response parser to chew on
+            return request.execute();
+        }
+        final Pending<T> pending = new Pending<>(request);
+        final boolean direct;
+        synchronized (this) {
+            direct = queue.isEmpty() && running == 0;
+            if (direct) {
+                // Nothing to batch with, don't make it wait
+                running++;
+            } else {
+                queue.add(pending);
+                if (queue.size() == 1) {
+                    executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, WINDOW_MS, TimeUnit.MILLISECONDS);
+                } else if (queue.size() >= MAX_BATCH) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    });
+                }
+            }
+        }
+        if (direct) {
+            try {
+                return request.execute();
+            } finally {
+                synchronized (this) {
+                    running--;
+                }
+            }
+        }
+        final List<Pending<?>> batched = pending.await();
+        if (batched != null) {
+            send(batched);
+        }
+        return pending.get();
+    }
+
+    /*
+     * Hands what's queued to its first caller to send
+     */
+    void flush() {
+        final List<Pending<?>> batched;
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                // already flushed when it filled up
+                return;
+            }
+            batched = queue;
+            queue = new ArrayList<>();
+            running += batched.size();
+        }
+        if (batched.size() == 1) {
+            done(batched);
+            batched.get(0).runAlone();
+            return;
+        }
+        batched.get(0).lead(batched);
+    }
+
+    void send(List<Pending<?>> batched) {
+        Timber.d("send() batching %d requests", batched.size());
+        try {
+            final BatchRequest batch = drive.batch();
+            for (Pending<?> p : batched) {
+                p.queue(batch);
+            }
+            batch.execute();
+        } catch (IOException e) {
+            for (Pending<?> p : batched) {
+                if (!p.answered) {
+                    p.fail(e);
+                }
+            }
+        } finally {
+            done(batched);
+            // anyone not answered by the batch gets to try on their own
+            for (Pending<?> p : batched) {
+                if (!p.answered) {
+                    p.runAlone();
+                }
+            }
+        }
+    }
+
+    synchronized void done(List<Pending<?>> batched) {
+        running -= batched.size();
+    }
+
+}
@@ -17,12 +17,20 @@
 
 package org.opensilk.music.plugin.drive.util;
 
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.google.android.gms.auth.GoogleAuthException;
 
 import org.opensilk.music.api.callback.Result;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,50 +46,705 @@ import timber.log.Timber;
 @Singleton
 public class RequestCache {
 
-    final Map<String, List<Bundle>> CACHE = Collections.synchronizedMap(new LinkedHashMap<String, List<Bundle>>());
+    // Approximate heap we allow the cached listings to occupy
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    // How long a listing is served before we go back to drive
+    public static final long DEFAULT_TTL = 30 * 60 * 1000;
+    // How old a listing served stale can get before we revalidate it
+    public static final long REVALIDATE_AFTER = 60 * 1000;
+    // How long a paging client can sit on a page before its snapshot is let go
+    public static final long LEASE_TTL = 10 * 60 * 1000;
+    // Listings pinned for paging clients, on top of the byte cap
+    public static final int MAX_LEASES = 8;
 
-    @Inject
+    /**
+     * A row of a cached listing. The identity and name are kept beside the
+     * Bundle so listings can be patched in place when drive reports a change.
+     *
+     * Folders and songs only hold their fields, the Bundle is built when the row
+     * is served, see {@link #toBundle(SongUris, String, String, TrackTags)}. Song uris need the current access
+     * token so couldn't be built up front anyway.
+     */
+    public static class Item {
+        public final String identity;
+        public final String name;
+        public final boolean folder;
+        public final String parentIdentity;
+        public final String date;
+        public final String mimeType;
+        public final String downloadUrl;
+        // Only set for rows handed to us as bundles
+        public final Bundle bundle;
+
+        public Item(String identity, String name, boolean folder, Bundle bundle) {
+            this(identity, name, folder, null, null, null, null, bundle);
+        }
+
+        Item(String identity, String name, boolean folder, String parentIdentity, String date,
+             String mimeType, String downloadUrl, Bundle bundle) {
+            this.identity = identity;
+            this.name = name;
+            this.folder = folder;
+            this.parentIdentity = parentIdentity;
+            this.date = date;
+            this.mimeType = mimeType;
+            this.downloadUrl = downloadUrl;
+            this.bundle = bundle;
+        }
+
+        public static Item folder(String identity, String name, String parentIdentity, String date) {
+            return new Item(identity, name, true, parentIdentity, date, null, null, null);
+        }
+
+        public static Item song(String identity, String name, String mimeType, String downloadUrl) {
+            return new Item(identity, name, false, null, null, mimeType, downloadUrl, null);
+        }
+
+        public Bundle toBundle(String authToken) {
+            return toBundle(null, null, authToken, null);
+        }
+
+        /**
+         * @param songUris picks the song's data uri, null to always use drive's
+         * @param accountName owning the item, for the artwork uri
+         * @param tags for songs, may be null
+         */
+        public Bundle toBundle(SongUris songUris, String accountName, String authToken, TrackTags tags) {
+            if (bundle != null) {
+                return bundle;
+            } else if (folder) {
+                return Helpers.buildFolder(identity, name, parentIdentity, date).toBundle();
+            } else {
+                final Uri data = songUris != null
+                        ? songUris.dataUri(accountName, identity, downloadUrl, authToken)
+                        : Helpers.buildDataUri(downloadUrl, authToken);
+                return Helpers.buildSong(accountName, identity, name, mimeType, data, tags).toBundle();
+            }
+        }
+    }
+
+    /**
+     * Folders first, then songs, each by name. This is the order listings are cached in.
+     */
+    public static final Comparator<Item> ITEM_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item lhs, Item rhs) {
+            if (lhs.folder != rhs.folder) {
+                return lhs.folder ? -1 : 1;
+            }
+            return lhs.name.compareTo(rhs.name);
+        }
+    };
+
+    static class Entry {
+        // Changes whenever the listing does, handed out with the pages
+        final long snapshot;
+        final Listing listing;
+        final long size;
+        final long created;
+        final long expires;
+        final ListingValidators validators;
+
+        Entry(long snapshot, Listing listing, long size, long created, long expires, ListingValidators validators) {
+            this.snapshot = snapshot;
+            this.listing = listing;
+            this.size = size;
+            this.created = created;
+            this.expires = expires;
+            this.validators = validators;
+        }
+    }
+
+    /*
+     * Keeps a snapshot alive while a client pages through it, whatever
+     * happens to the cached listing meanwhile
+     */
+    static class Lease {
+        final String cacheKey;
+        final Entry entry;
+        final long expires;
+
+        Lease(String cacheKey, Entry entry, long expires) {
+            this.cacheKey = cacheKey;
+            this.entry = entry;
+            this.expires = expires;
+        }
+    }
+
+    // Access ordered, so iteration starts at the least recently used entry
+    final LinkedHashMap<String, Entry> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by CACHE, also access ordered so the idlest lease goes first
+    final LinkedHashMap<Long, Lease> LEASES = new LinkedHashMap<Long, Lease>(MAX_LEASES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Lease> eldest) {
+            return size() > MAX_LEASES;
+        }
+    };
+
+    final long maxBytes;
+    final long ttl;
+
+    final ListingDiskCache disk;
+    final StringPool pool = new StringPool();
+    final TagStore tags;
+    final SongUris songUris;
+
+    long size;
+    // Seeded from the clock so tokens from a previous process don't match
+    long nextSnapshot = System.currentTimeMillis();
+    long hitCount;
+    long missCount;
+    long diskHitCount;
+    long evictionCount;
+
+    /**
+     * Memory only cache
+     */
     public RequestCache() {
+        this(null, DEFAULT_MAX_BYTES, DEFAULT_TTL);
+    }
+
+    @Inject
+    public RequestCache(ListingDiskCache disk, TagStore tags, SongUris songUris) {
+        this(disk, tags, songUris, DEFAULT_MAX_BYTES, DEFAULT_TTL);
+    }
 
+    RequestCache(ListingDiskCache disk, long maxBytes, long ttl) {
+        this(disk, null, null, maxBytes, ttl);
     }
 
+    RequestCache(ListingDiskCache disk, TagStore tags, SongUris songUris, long maxBytes, long ttl) {
+        this.disk = disk;
+        this.tags = tags;
+        this.songUris = songUris;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Caches bundles that can't be patched by the sync engine
+     */
     public void put(String cacheKey, List<Bundle> bundles) {
-        CACHE.put(cacheKey, bundles);
+        putItems(cacheKey, wrap(bundles));
+    }
+
+    /**
+     * @param items sorted by {@link #ITEM_ORDER}
+     */
+    public void putItems(String cacheKey, List<Item> items) {
+        putItems(cacheKey, items, null);
+    }
+
+    /**
+     * @param validators etags of the pages the items came from, may be null
+     * @return the snapshot id of the new listing
+     */
+    public long putItems(String cacheKey, List<Item> items, ListingValidators validators) {
+        final long snapshot = insert(cacheKey, Listing.of(items, pool), now(), ttl, validators);
+        if (disk != null) {
+            disk.write(cacheKey, items, validators);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the etags the cached listing was fetched with, null if it has none
+     */
+    public ListingValidators getValidators(String cacheKey) {
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(cacheKey);
+            return entry != null ? entry.validators : null;
+        }
+    }
+
+    /**
+     * Drive says the listing is unchanged, serve it for another ttl as is
+     *
+     * @return false if it was evicted meanwhile
+     */
+    public boolean extend(String cacheKey) {
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(cacheKey);
+            if (entry == null) {
+                return false;
+            }
+            final long created = now();
+            // same listing, clients paging through it keep their place
+            CACHE.put(cacheKey, new Entry(entry.snapshot, entry.listing, entry.size, created, created + ttl, entry.validators));
+        }
+        if (disk != null) {
+            disk.touch(cacheKey);
+        }
+        return true;
     }
 
     public boolean get(String cacheKey, int startpos, int maxResults, Result callback) {
+        return get(cacheKey, startpos, maxResults, false, null, callback);
+    }
+
+    public boolean get(String cacheKey, int startpos, int maxResults,
+                       DriveHelper.Session session, Result callback) {
+        return get(cacheKey, startpos, maxResults, false, session, callback);
+    }
+
+    /**
+     * @param allowStale serve the listing even if it has expired, the caller is
+     *                   then expected to revalidate it, see {@link #needsRevalidation(String)}
+     * @param session supplies the access token stamped onto song uris, if we can't get
+     *                one we report a miss and let the fetch deal with the auth error.
+     */
+    public boolean get(String cacheKey, int startpos, int maxResults, boolean allowStale,
+                       DriveHelper.Session session, Result callback) {
+        Entry entry;
         synchronized (CACHE) {
-            if (CACHE.containsKey(cacheKey)) {
-                Timber.d("get() hit=%s", cacheKey);
-                List<Bundle> list = CACHE.get(cacheKey);
-                int start = startpos < list.size() ? startpos : list.size();
-                int end = startpos+maxResults < list.size() ? startpos+maxResults : list.size();
-                Timber.d("get() cachesize=%d, start=%d, end=%d, startPos=%d maxResults=%d",
-                        list.size(), start, end, startpos, maxResults);
-                final List<Bundle> results;
-                if (start < end) {
-                    results = list.subList(start, end);
-                } else {
-                    results = Collections.emptyList();
+            entry = lookup(cacheKey, allowStale);
+        }
+        if (entry == null && disk != null) {
+            entry = loadFromDisk(cacheKey, allowStale);
+        }
+        if (entry == null) {
+            synchronized (CACHE) {
+                missCount++;
+            }
+            return false;
+        }
+        return serve(cacheKey, entry, startpos, maxResults, session, callback);
+    }
+
+    /**
+     * Serves the page from the snapshot the client started paging through, the
+     * first time they come back it is pinned if it is still the cached listing
+     *
+     * @param snapshot id from the pagination bundle
+     * @return false if the snapshot is gone, the caller should fall back to {@link #get}
+     */
+    public boolean getLeased(String cacheKey, long snapshot, int startpos, int maxResults,
+                       DriveHelper.Session session, Result callback) {
+        final Entry entry;
+        synchronized (CACHE) {
+            final Lease lease = LEASES.get(snapshot);
+            if (lease != null && !lease.cacheKey.equals(cacheKey)) {
+                return false;
+            }
+            if (lease != null && lease.expires > now()) {
+                entry = lease.entry;
+            } else {
+                LEASES.remove(snapshot);
+                entry = lookup(cacheKey, false);
+                if (entry == null || entry.snapshot != snapshot) {
+                    return false;
                 }
-                final Bundle token;
-                if (end < list.size()) {
-                    token = new Bundle(1);
-                    token.putInt("startpos", end);
-                } else {
-                    token = null;
+            }
+        }
+        Timber.d("getLeased() snapshot=%d of %s", snapshot, cacheKey);
+        return serve(cacheKey, entry, startpos, maxResults, session, callback);
+    }
+
+    boolean serve(String cacheKey, Entry entry, int startpos, int maxResults,
+                  DriveHelper.Session session, Result callback) {
+        Listing list = entry.listing;
+        int start = startpos < list.size() ? startpos : list.size();
+        int end = startpos+maxResults < list.size() ? startpos+maxResults : list.size();
+        Timber.d("get() cachesize=%d, start=%d, end=%d, startPos=%d maxResults=%d",
+                list.size(), start, end, startpos, maxResults);
+        final String accountName = session != null ? session.getCredential().getSelectedAccountName() : null;
+        String authToken = null;
+        // songs played through the proxy don't carry one
+        if (session != null && (songUris == null || songUris.needsToken(accountName))
+                && list.needsToken(start, end)) {
+            try {
+                authToken = session.getAuthToken();
+            } catch (IOException|GoogleAuthException e) {
+                Timber.w(e, "get() no token for %s", cacheKey);
+                synchronized (CACHE) {
+                    missCount++;
                 }
-                try {
-                    callback.onNext(results, token);
-                } catch (RemoteException ignored) {}
-                return true;
+                return false;
             }
-            return false;
+        }
+        synchronized (CACHE) {
+            hitCount++;
+            // Clients that come back for more keep this snapshot even if the
+            // listing changes, most never do so first pages don't pin it
+            if (end < list.size()) {
+                if (startpos > 0) {
+                    renewLease(cacheKey, entry);
+                }
+            } else {
+                LEASES.remove(entry.snapshot);
+            }
+        }
+        Timber.d("get() hit=%s", cacheKey);
+        Map<String, TrackTags> sliceTags = null;
+        if (tags != null && accountName != null) {
+            sliceTags = tags.get(accountName, list.songIds(start, end));
+        }
+        // only the rows we hand out are turned into bundles
+        final List<Bundle> results = list.slice(start, end, songUris, accountName, authToken, sliceTags);
+        final Bundle token;
+        if (end < list.size()) {
+            token = new Bundle(2);
+            token.putInt("startpos", end);
+            token.putLong("snapshot", entry.snapshot);
+        } else {
+            token = null;
+        }
+        try {
+            callback.onNext(results, token);
+        } catch (RemoteException ignored) {}
+        return true;
+    }
+
+    /**
+     * @return the rows of the unexpired listing, null if it isn't cached
+     */
+    public List<Item> peek(String cacheKey) {
+        Entry entry;
+        synchronized (CACHE) {
+            entry = lookup(cacheKey, false);
+        }
+        if (entry == null && disk != null) {
+            entry = loadFromDisk(cacheKey, false);
+        }
+        return entry != null ? entry.listing.items() : null;
+    }
+
+    /**
+     * @return true if an unexpired listing is held in memory
+     */
+    public boolean contains(String cacheKey) {
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(cacheKey);
+            return entry != null && entry.expires > now();
         }
     }
 
+    /**
+     * @return true if the listing is cached and was fetched more than {@link #REVALIDATE_AFTER} ago
+     */
+    public boolean needsRevalidation(String cacheKey) {
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(cacheKey);
+            return entry != null && now() - entry.created > REVALIDATE_AFTER;
+        }
+    }
+
+    /**
+     * Removes the item from every cached listing whose key starts with keyPrefix
+     */
+    public void removeItem(String keyPrefix, String identity) {
+        synchronized (CACHE) {
+            // we can't patch what's only on disk, and patched listings are written after this
+            if (disk != null) {
+                disk.invalidate(keyPrefix);
+            }
+            for (String cacheKey : keysWithPrefix(keyPrefix)) {
+                Entry entry = CACHE.get(cacheKey);
+                int idx = entry.listing.indexOf(identity);
+                if (idx >= 0) {
+                    List<Item> items = entry.listing.items();
+                    items.remove(idx);
+                    replace(cacheKey, entry, items);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the item to the listing at cacheKey, in sorted position, replacing
+     * any previous version of it. Does nothing if the listing isn't cached.
+     */
+    public void insertItem(String cacheKey, Item item) {
+        synchronized (CACHE) {
+            Entry entry = CACHE.get(cacheKey);
+            if (entry == null) {
+                // nor is it coming back from disk without the item
+                if (disk != null) {
+                    disk.remove(cacheKey);
+                }
+                return;
+            }
+            List<Item> items = new ArrayList<>(entry.listing.size() + 1);
+            for (Item i : entry.listing.items()) {
+                if (!item.identity.equals(i.identity)) {
+                    items.add(i);
+                }
+            }
+            int idx = Collections.binarySearch(items, item, ITEM_ORDER);
+            items.add(idx < 0 ? -(idx + 1) : idx, item);
+            replace(cacheKey, entry, items);
+        }
+    }
+
+    /**
+     * Drops every listing whose key starts with keyPrefix
+     */
+    public void invalidate(String keyPrefix) {
+        synchronized (CACHE) {
+            for (String cacheKey : keysWithPrefix(keyPrefix)) {
+                remove(cacheKey);
+            }
+            // including those we only have on disk
+            if (disk != null) {
+                disk.invalidate(keyPrefix);
+            }
+        }
+    }
+
+    /**
+     * Populates the memory cache with the snapshots persisted by a previous process,
+     * newest first until we fill up. Runs in the background.
+     */
+    public void warmUp() {
+        if (disk == null) {
+            return;
+        }
+        disk.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ListingDiskCache.Snapshot snapshot : disk.readAll()) {
+                    final Listing listing = Listing.of(snapshot.items, pool);
+                    synchronized (CACHE) {
+                        if (size + sizeOf(snapshot.cacheKey, listing) > maxBytes) {
+                            break;
+                        }
+                        // the first sync may have got to it since we read it
+                        if (!CACHE.containsKey(snapshot.cacheKey) && disk.isCurrent(snapshot)) {
+                            insert(snapshot.cacheKey, listing, now() - age(snapshot), ttl, snapshot.validators);
+                        }
+                    }
+                }
+                Timber.d("warmUp() loaded %d bytes", size());
+            }
+        });
+    }
+
     public void clear() {
-        CACHE.clear();
+        synchronized (CACHE) {
+            CACHE.clear();
+            LEASES.clear();
+            size = 0;
+        }
+        if (disk != null) {
+            disk.clear();
+        }
+    }
+
+    public long size() {
+        synchronized (CACHE) {
+            return size;
+        }
+    }
+
+    public long maxSize() {
+        return maxBytes;
+    }
+
+    public long hitCount() {
+        synchronized (CACHE) {
+            return hitCount;
+        }
+    }
+
+    public long missCount() {
+        synchronized (CACHE) {
+            return missCount;
+        }
+    }
+
+    public long diskHitCount() {
+        synchronized (CACHE) {
+            return diskHitCount;
+        }
+    }
+
+    public long evictionCount() {
+        synchronized (CACHE) {
+            return evictionCount;
+        }
+    }
+
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    void insert(String cacheKey, List<Item> items, long created, long lifetime) {
+        insert(cacheKey, Listing.of(items, pool), created, lifetime, null);
+    }
+
+    long insert(String cacheKey, Listing listing, long created, long lifetime, ListingValidators validators) {
+        final long entrySize = sizeOf(cacheKey, listing);
+        synchronized (CACHE) {
+            final long snapshot = nextSnapshot++;
+            Entry previous = CACHE.put(cacheKey, new Entry(snapshot, listing, entrySize, created, created + lifetime, validators));
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entrySize;
+            trimToSize(cacheKey);
+            return snapshot;
+        }
+    }
+
+    /*
+     * Must hold CACHE lock
+     */
+    void renewLease(String cacheKey, Entry entry) {
+        LEASES.put(entry.snapshot, new Lease(cacheKey, entry, now() + LEASE_TTL));
+    }
+
+    /*
+     * Must hold CACHE lock. Swaps in the patched items keeping the original expiry,
+     * entries are immutable once handed out so readers never see a partial update.
+     */
+    void replace(String cacheKey, Entry entry, List<Item> items) {
+        final Listing listing = Listing.of(items, pool);
+        final long entrySize = sizeOf(cacheKey, listing);
+        // the etags no longer match, so the next revalidation refetches,
+        // anyone paging through the old rows keeps them through their lease
+        CACHE.put(cacheKey, new Entry(nextSnapshot++, listing, entrySize, entry.created, entry.expires, entry.validators));
+        size += entrySize - entry.size;
+        if (disk != null) {
+            disk.write(cacheKey, items, entry.validators);
+        }
+    }
+
+    /*
+     * Must hold CACHE lock
+     */
+    Entry lookup(String cacheKey, boolean allowStale) {
+        Entry entry = CACHE.get(cacheKey);
+        if (entry != null && !allowStale && entry.expires <= now()) {
+            Timber.d("lookup() expired=%s", cacheKey);
+            remove(cacheKey);
+            evictionCount++;
+            entry = null;
+        }
+        return entry;
+    }
+
+    /*
+     * Must hold CACHE lock
+     */
+    List<String> keysWithPrefix(String keyPrefix) {
+        List<String> keys = new ArrayList<>();
+        for (String cacheKey : CACHE.keySet()) {
+            if (cacheKey.startsWith(keyPrefix)) {
+                keys.add(cacheKey);
+            }
+        }
+        return keys;
+    }
+
+    Entry loadFromDisk(String cacheKey, boolean allowStale) {
+        ListingDiskCache.Snapshot snapshot = disk.read(cacheKey);
+        if (snapshot == null) {
+            return null;
+        }
+        if (!allowStale && age(snapshot) >= ttl) {
+            return null;
+        }
+        synchronized (CACHE) {
+            // a change may have come in since we read it
+            if (!disk.isCurrent(snapshot)) {
+                return null;
+            }
+            Timber.d("loadFromDisk() hit=%s", cacheKey);
+            insert(snapshot);
+            diskHitCount++;
+            return CACHE.get(cacheKey);
+        }
+    }
+
+    /*
+     * Snapshots age in wall time, map it onto our clock
+     */
+    void insert(ListingDiskCache.Snapshot snapshot) {
+        insert(snapshot.cacheKey, Listing.of(snapshot.items, pool), now() - age(snapshot), ttl, snapshot.validators);
+    }
+
+    static long age(ListingDiskCache.Snapshot snapshot) {
+        return Math.max(0, System.currentTimeMillis() - snapshot.timestamp);
+    }
+
+    /*
+     * Must hold CACHE lock
+     */
+    void remove(String cacheKey) {
+        Entry entry = CACHE.remove(cacheKey);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    /*
+     * Must hold CACHE lock. Drops the least recently used entries until we
+     * are under the byte cap. The newest entry is never dropped, an oversized
+     * listing would otherwise be refetched for every page we hand out.
+     */
+    void trimToSize(String newestKey) {
+        Iterator<Map.Entry<String, Entry>> ii = CACHE.entrySet().iterator();
+        while (size > maxBytes && ii.hasNext()) {
+            Map.Entry<String, Entry> e = ii.next();
+            if (e.getKey().equals(newestKey)) {
+                continue;
+            }
+            Timber.d("trimToSize() evicting=%s", e.getKey());
+            size -= e.getValue().size;
+            ii.remove();
+            evictionCount++;
+        }
+    }
+
+    static List<Item> wrap(List<Bundle> bundles) {
+        List<Item> items = new ArrayList<>(bundles.size());
+        for (Bundle b : bundles) {
+            items.add(new Item(null, null, false, b));
+        }
+        return items;
+    }
+
+    static long sizeOf(String cacheKey, List<Item> items) {
+        return sizeOf(cacheKey, Listing.of(items, new StringPool()));
+    }
+
+    static long sizeOf(String cacheKey, Listing listing) {
+        return sizeOf(cacheKey) + 32 + listing.bytes;
+    }
+
+    /**
+     * Rough estimate of the heap held by the bundle, we only need to be in the
+     * right ballpark to keep the cache from growing without bound.
+     */
+    static long sizeOf(Bundle b) {
+        if (b == null) {
+            return 0;
+        }
+        long sz = 64;
+        for (String key : b.keySet()) {
+            sz += 32 + sizeOf(key) + sizeOfValue(b.get(key));
+        }
+        return sz;
+    }
+
+    static long sizeOfValue(Object o) {
+        if (o == null) {
+            return 0;
+        } else if (o instanceof String) {
+            return sizeOf((String) o);
+        } else if (o instanceof Bundle) {
+            return sizeOf((Bundle) o);
+        } else if (o instanceof Uri) {
+            return 32 + sizeOf(o.toString());
+        } else if (o instanceof Number || o instanceof Boolean) {
+            return 16;
+        } else {
+            return 64;
+        }
+    }
+
+    static long sizeOf(String s) {
+        return s == null ? 0 : 40 + 2 * s.length();
     }
 
 }
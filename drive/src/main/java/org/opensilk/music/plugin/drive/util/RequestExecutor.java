@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import timber.log.Timber;
+
+/**
+ * Runs requests for one account through its {@link RateLimiter} and {@link RequestBatcher},
+ * retrying the failures drive expects us to retry: rate limiting and server errors.
+ * Retries back off exponentially with full jitter, or as long as drive's Retry-After says.
+ * Single attempts at listings may be hedged by the {@link Hedger}, never the wait between them.
+ *
+ * Created by drew on 11/30/14.
+ */
+public class RequestExecutor {
+
+    public static final int MAX_ATTEMPTS = 5;
+    static final long BASE_DELAY = 500;
+    static final long MAX_DELAY = 32 * 1000;
+
+    final RequestBatcher batcher;
+    final RateLimiter limiter;
+    final Hedger hedger;
+    final String accountName;
+    final Executor hedgeExecutor;
+    final Random random = new Random();
+
+    public RequestExecutor(RequestBatcher batcher, RateLimiter limiter) {
+        this(batcher, limiter, null, null, null);
+    }
+
+    /**
+     * @param hedgeExecutor runs the hedges of the account's attempts
+     */
+    public RequestExecutor(RequestBatcher batcher, RateLimiter limiter, Hedger hedger,
+                           String accountName, Executor hedgeExecutor) {
+        this.batcher = batcher;
+        this.limiter = limiter;
+        this.hedger = hedger;
+        this.accountName = accountName;
+        this.hedgeExecutor = hedgeExecutor;
+    }
+
+    public <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+        for (int attempt=1; ; attempt++) {
+            limiter.acquire();
+            try {
+                final T result = attempt(request);
+                limiter.onSuccess();
+                return result;
+            } catch (InterruptedIOException e) {
+                if (!(e instanceof SocketTimeoutException)) {
+                    throw e;
+                }
+                if (attempt >= MAX_ATTEMPTS) throw e;
+                sleep(backoff(attempt));
+            } catch (HttpResponseException e) {
+                if (attempt >= MAX_ATTEMPTS || !isRetryable(e)) throw e;
+                if (isRateLimited(e)) {
+                    limiter.onThrottled();
+                }
+                long delay = retryAfter(e);
+                if (delay < 0) {
+                    delay = backoff(attempt);
+                }
+                Timber.w("execute() %d %s, retrying in %dms", e.getStatusCode(), e.getStatusMessage(), delay);
+                sleep(delay);
+            }
+        }
+    }
+
+    <T> T attempt(final AbstractGoogleJsonClientRequest<T> request) throws IOException {
+        // listings are idempotent and what the user waits on
+        if (hedger == null || !(request instanceof Drive.Files.List)) {
+            return batcher.execute(request);
+        }
+        return hedger.execute(accountName, new Hedger.Call<T>() {
+            @Override
+            public T call() throws IOException {
+                return batcher.execute(request);
+            }
+        }, new Hedger.Factory<T>() {
+            @Override
+            public Hedger.Call<T> newCall() throws IOException {
+                // a hedge is a request like any other, and one we can do without
+                if (!limiter.tryAcquire()) {
+                    return null;
+                }
+                final AbstractGoogleJsonClientRequest<T> hedge = copy(request);
+                return new Hedger.Call<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return batcher.execute(hedge);
+                    }
+                };
+            }
+        }, hedgeExecutor);
+    }
+
+    /*
+     * Requests keep the status of their last response, so the primary and
+     * its hedge can't share one
+     */
+    @SuppressWarnings("unchecked")
+    static <T> AbstractGoogleJsonClientRequest<T> copy(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+        final Drive.Files.List list = (Drive.Files.List) request;
+        final Drive.Files.List copy = ((Drive) list.getAbstractGoogleClient()).files().list();
+        // the query parameters, q, fields, pageToken and the like
+        for (Map.Entry<String, Object> e : list.entrySet()) {
+            copy.set(e.getKey(), e.getValue());
+        }
+        copy.setRequestHeaders(list.getRequestHeaders().clone());
+        return (AbstractGoogleJsonClientRequest<T>) copy;
+    }
+
+    /**
+     * Full jitter, a random delay up to the exponential cap
+     */
+    long backoff(int attempt) {
+        final long cap = Math.min(MAX_DELAY, BASE_DELAY << (attempt - 1));
+        return (long) (random.nextDouble() * cap);
+    }
+
+    static boolean isRetryable(HttpResponseException e) {
+        final int code = e.getStatusCode();
+        return code == 429 || code >= 500 || isRateLimited(e);
+    }
+
+    static boolean isRateLimited(HttpResponseException e) {
+        if (e.getStatusCode() == 429) {
+            return true;
+        }
+        if (e.getStatusCode() != 403 || !(e instanceof GoogleJsonResponseException)) {
+            return false;
+        }
+        final GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+        if (details == null || details.getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo info : details.getErrors()) {
+            if ("rateLimitExceeded".equals(info.getReason())
+                    || "userRateLimitExceeded".equals(info.getReason())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return delay in ms asked for by the Retry-After header, or -1 if there isn't one
+     */
+    static long retryAfter(HttpResponseException e) {
+        final String value = e.getHeaders() != null ? e.getHeaders().getRetryAfter() : null;
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.min(MAX_DELAY, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ignored) { }
+        try {
+            final long when = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US)
+                    .parse(value).getTime();
+            return Math.min(MAX_DELAY, Math.max(0, when - System.currentTimeMillis()));
+        } catch (ParseException ignored) { }
+        return -1;
+    }
+
+    static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+}
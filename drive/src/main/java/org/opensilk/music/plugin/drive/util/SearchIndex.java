@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * In memory title search over the {@link LibraryIndex}, fast enough to run on
+ * every keystroke. Titles are broken into trigrams, a query looks up the
+ * rarest of its trigrams and checks the few candidates that has.
+ *
+ * Type ahead mostly extends the last query, when it does we only need to
+ * filter the last results instead of starting over.
+ *
+ * Created by drew on 11/29/14.
+ */
+@Singleton
+public class SearchIndex {
+
+    /**
+     * Immutable index of one account's titles, rows sorted by {@link RequestCache#ITEM_ORDER}
+     */
+    static class Snapshot {
+        final RequestCache.Item[] items;
+        final String[] folded;
+        final Map<Long, int[]> trigrams;
+
+        Snapshot(RequestCache.Item[] items, String[] folded, Map<Long, int[]> trigrams) {
+            this.items = items;
+            this.folded = folded;
+            this.trigrams = trigrams;
+        }
+
+        static Snapshot build(List<RequestCache.Item> rows) {
+            final List<RequestCache.Item> sorted = new ArrayList<>(rows);
+            Collections.sort(sorted, RequestCache.ITEM_ORDER);
+            final int n = sorted.size();
+            final RequestCache.Item[] items = sorted.toArray(new RequestCache.Item[n]);
+            final String[] folded = new String[n];
+            final Map<Long, IntList> postings = new HashMap<>();
+            final Set<Long> seen = new HashSet<>();
+            for (int ii=0; ii<n; ii++) {
+                folded[ii] = fold(items[ii].name);
+                seen.clear();
+                final String s = folded[ii];
+                for (int jj=0; jj+3<=s.length(); jj++) {
+                    final Long t = trigram(s, jj);
+                    if (seen.add(t)) {
+                        IntList list = postings.get(t);
+                        if (list == null) {
+                            list = new IntList();
+                            postings.put(t, list);
+                        }
+                        list.add(ii);
+                    }
+                }
+            }
+            final Map<Long, int[]> trigrams = new HashMap<>(postings.size());
+            for (Map.Entry<Long, IntList> e : postings.entrySet()) {
+                trigrams.put(e.getKey(), e.getValue().toArray());
+            }
+            return new Snapshot(items, folded, trigrams);
+        }
+
+        /**
+         * @return positions of the rows whose titles contain the folded query, ascending
+         */
+        int[] search(String query) {
+            if (query.length() < 3) {
+                return filter(null, query);
+            }
+            int[] rarest = null;
+            for (int jj=0; jj+3<=query.length(); jj++) {
+                final int[] list = trigrams.get(trigram(query, jj));
+                if (list == null) {
+                    return new int[0];
+                }
+                if (rarest == null || list.length < rarest.length) {
+                    rarest = list;
+                }
+            }
+            return filter(rarest, query);
+        }
+
+        /**
+         * @param candidates positions to check, null for all of them
+         */
+        int[] filter(int[] candidates, String query) {
+            final int count = candidates != null ? candidates.length : folded.length;
+            final IntList matches = new IntList();
+            for (int ii=0; ii<count; ii++) {
+                final int pos = candidates != null ? candidates[ii] : ii;
+                if (folded[pos].contains(query)) {
+                    matches.add(pos);
+                }
+            }
+            return matches.toArray();
+        }
+    }
+
+    /*
+     * Per account state, the snapshot and the last query we answered from it
+     */
+    static class Engine {
+        volatile Snapshot snapshot;
+
+        // guarded by this
+        Snapshot lastSnapshot;
+        String lastQuery;
+        int[] lastResult;
+
+        synchronized int[] search(Snapshot s, String query) {
+            final int[] result;
+            if (s == lastSnapshot && lastQuery != null && query.contains(lastQuery)) {
+                // Anything containing the new query contains the last one
+                result = query.equals(lastQuery) ? lastResult : s.filter(lastResult, query);
+            } else {
+                result = s.search(query);
+            }
+            lastSnapshot = s;
+            lastQuery = query;
+            lastResult = result;
+            return result;
+        }
+    }
+
+    final LibraryIndex index;
+    final ConcurrentHashMap<String, Engine> engines = new ConcurrentHashMap<>();
+    final Set<String> building = Collections.synchronizedSet(new HashSet<String>());
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Inject
+    public SearchIndex(LibraryIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return page of the rows matching query or null if the account isn't loaded yet,
+     *         the caller should then search remotely.
+     */
+    public List<RequestCache.Item> search(String accountName, String query, int offset, int limit) {
+        final Engine engine = engines.get(accountName);
+        final Snapshot s = engine != null ? engine.snapshot : null;
+        if (s == null) {
+            if (index.isReady(accountName)) {
+                rebuild(accountName);
+            }
+            return null;
+        }
+        final long start = System.nanoTime();
+        final int[] result = engine.search(s, fold(query));
+        final int end = Math.min(result.length, offset + limit);
+        final List<RequestCache.Item> items = new ArrayList<>(Math.max(0, end - offset));
+        for (int ii=offset; ii<end; ii++) {
+            items.add(s.items[result[ii]]);
+        }
+        Timber.v("search(%s) %d matches in %dus", query, result.length, (System.nanoTime() - start) / 1000);
+        return items;
+    }
+
+    /**
+     * Reloads the account from the library index in the background, the
+     * previous snapshot keeps answering until we're done.
+     */
+    public void rebuild(final String accountName) {
+        if (!building.add(accountName)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long start = System.currentTimeMillis();
+                    final Snapshot s = Snapshot.build(index.all(accountName));
+                    Engine engine = engines.get(accountName);
+                    if (engine == null) {
+                        engine = new Engine();
+                        Engine prev = engines.putIfAbsent(accountName, engine);
+                        if (prev != null) engine = prev;
+                    }
+                    engine.snapshot = s;
+                    Timber.d("rebuild(%s) %d titles, %d trigrams in %dms", accountName,
+                            s.items.length, s.trigrams.size(), System.currentTimeMillis() - start);
+                } finally {
+                    building.remove(accountName);
+                }
+            }
+        });
+    }
+
+    static String fold(String s) {
+        return s == null ? "" : s.toLowerCase(Locale.US);
+    }
+
+    static Long trigram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+    }
+
+    /*
+     * Growable int array, saves boxing every posting
+     */
+    static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.net.Uri;
+
+import com.google.api.services.drive.model.File;
+
+import org.opensilk.music.api.model.Song;
+import org.opensilk.music.plugin.common.LibraryPreferences;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Picks where songs are played from: our offline copy if the player can
+ * read it, the stream proxy if the account opted in, else drive directly
+ * with the access token on the uri.
+ *
+ * Token uris stay the default even though they expire after an hour or so.
+ * That only hurts songs queued for that long. Proxy uris stop working as soon
+ * as Android kills our process, and nothing brings it back while the player
+ * holds them, so that cost is only taken on by users who ask for it.
+ *
+ * Created by drew on 12/12/14.
+ */
+@Singleton
+public class SongUris {
+
+    final OfflineCache offlineCache;
+    final StreamProxy streamProxy;
+    final LibraryPreferences prefs;
+
+    @Inject
+    public SongUris(OfflineCache offlineCache, StreamProxy streamProxy, LibraryPreferences prefs) {
+        this.offlineCache = offlineCache;
+        this.streamProxy = streamProxy;
+        this.prefs = prefs;
+    }
+
+    /**
+     * Starts the proxy the first time an account that wants it builds songs
+     *
+     * @return true if the account's songs play through the proxy
+     */
+    public boolean usesProxy(String accountName) {
+        if (accountName == null || !prefs.getStreamProxy(accountName)) {
+            return false;
+        }
+        streamProxy.start();
+        return streamProxy.isRunning();
+    }
+
+    /**
+     * @return true if the account's songs need the access token on their uris
+     */
+    public boolean needsToken(String accountName) {
+        return !usesProxy(accountName);
+    }
+
+    /**
+     * @param accountName owning the song, null to always go to drive
+     * @param authToken for songs played from drive, may be null
+     */
+    public Uri dataUri(String accountName, String id, String downloadUrl, String authToken) {
+        Uri data = null;
+        if (accountName != null) {
+            data = offlineCache.buildOfflineUri(accountName, id);
+            if (data != null) {
+                // the player reads it straight from disk, this is all we see of it
+                offlineCache.touch(accountName, id);
+            } else if (usesProxy(accountName)) {
+                data = streamProxy.buildStreamUri(accountName, id);
+            }
+        }
+        return data != null ? data : Helpers.buildDataUri(downloadUrl, authToken);
+    }
+
+    public Song buildSong(String accountName, File f, String authToken) {
+        return Helpers.buildSong(accountName, f.getId(), f.getTitle(), f.getMimeType(),
+                dataUri(accountName, f.getId(), f.getDownloadUrl(), authToken), null);
+    }
+
+}
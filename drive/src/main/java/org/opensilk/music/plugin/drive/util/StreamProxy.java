@@ -0,0 +1,684 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.model.File;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Loopback http server songs are played through, at
+ * http://127.0.0.1:port/secret/account/fileId
+ *
+ * Each request is turned into a ranged request to drive, made through the
+ * account's authorized request factory so the token is always fresh and
+ * connections are reused by the platform's keep alive pool. The response is
+ * read ahead into a bounded buffer while the player drains it, so a slow
+ * radio doesn't stall playback on every read.
+ *
+ * Uris pointing here only work while our process is alive, so it is opt in
+ * per account and only started once such an account builds songs, see
+ * {@link SongUris}. The port and secret are kept across restarts so uris
+ * handed out before the process died work again once we're back up.
+ *
+ * Created by drew on 12/5/14.
+ */
+@Singleton
+public class StreamProxy {
+
+    public static final int MAX_CLIENTS = 4;
+    // read ahead is CHUNKS * CHUNK bytes per stream
+    static final int CHUNK = 32 * 1024;
+    static final int CHUNKS = 32;
+    static final int SOCKET_TIMEOUT = 30 * 1000;
+    // a player that stops reading gets cut off after this, so it can't hold a client thread
+    static final int WRITE_TIMEOUT = SOCKET_TIMEOUT;
+    static final int WATCHDOG_INTERVAL = 5 * 1000;
+    static final int MAX_HEADER_LINES = 64;
+
+    static final String PREFS_NAME = "drive_proxy";
+
+    static class Source {
+        final String url;
+        final long size;
+        final String mimeType;
+        final String version;
+
+        Source(String url, long size, String mimeType, String version) {
+            this.url = url;
+            this.size = size;
+            this.mimeType = mimeType;
+            this.version = version;
+        }
+    }
+
+    final Context context;
+    final DriveHelper driveHelper;
+    final LibraryIndex index;
+    final OfflineCache offlineCache;
+    final HeadCache headCache;
+    final LruCache<String, Source> sources = new LruCache<>(256);
+    final ExecutorService clients = Executors.newFixedThreadPool(MAX_CLIENTS);
+    // one per client at most
+    final ExecutorService upstream = Executors.newCachedThreadPool();
+    final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    final Set<WriteWatch> watches = Collections.newSetFromMap(new ConcurrentHashMap<WriteWatch, Boolean>());
+
+    ServerSocket serverSocket;
+    String secret;
+    // null while we aren't serving
+    volatile String baseUrl;
+
+    @Inject
+    public StreamProxy(@ForApplication Context context, DriveHelper driveHelper, LibraryIndex index,
+                       OfflineCache offlineCache, HeadCache headCache) {
+        this.context = context;
+        this.driveHelper = driveHelper;
+        this.index = index;
+        this.offlineCache = offlineCache;
+        this.headCache = headCache;
+    }
+
+    public boolean isRunning() {
+        return baseUrl != null;
+    }
+
+    /**
+     * @return uri to play the song through the proxy, null if it isn't running
+     */
+    public Uri buildStreamUri(String accountName, String id) {
+        final String base = baseUrl;
+        if (base == null) {
+            return null;
+        }
+        return Uri.parse(base).buildUpon().appendPath(accountName).appendPath(id).build();
+    }
+
+    /**
+     * Starts listening if we aren't already
+     */
+    public synchronized void start() {
+        if (serverSocket != null) {
+            return;
+        }
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        secret = prefs.getString("secret", null);
+        if (secret == null) {
+            final byte[] b = new byte[16];
+            new SecureRandom().nextBytes(b);
+            final StringBuilder sb = new StringBuilder(32);
+            for (byte x : b) {
+                sb.append(String.format(Locale.US, "%02x", x & 0xff));
+            }
+            secret = sb.toString();
+        }
+        try {
+            final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+            try {
+                serverSocket = new ServerSocket(prefs.getInt("port", 0), MAX_CLIENTS * 2, loopback);
+            } catch (BindException e) {
+                // someone took our old port
+                serverSocket = new ServerSocket(0, MAX_CLIENTS * 2, loopback);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "start() unable to listen, songs will stream directly");
+            serverSocket = null;
+            return;
+        }
+        final int port = serverSocket.getLocalPort();
+        prefs.edit().putString("secret", secret).putInt("port", port).apply();
+        baseUrl = "http://127.0.0.1:" + port + "/" + secret;
+        final ServerSocket socket = serverSocket;
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(socket);
+            }
+        }, "DriveStreamProxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeStuck();
+            }
+        }, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+        Timber.d("start() listening on %d", port);
+    }
+
+    void accept(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                clients.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        WriteWatch watch = null;
+                        try {
+                            // reads time out on their own, writes are watched
+                            client.setSoTimeout(SOCKET_TIMEOUT);
+                            watch = new WriteWatch(client);
+                            watches.add(watch);
+                            serve(client, watch);
+                        } catch (IOException e) {
+                            // player went away, seeks do this all the time
+                            Timber.v("serve() %s", e);
+                        } finally {
+                            if (watch != null) {
+                                watches.remove(watch);
+                            }
+                            closeQuietly(client);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Timber.w(e, "accept()");
+                }
+            }
+        }
+    }
+
+    /*
+     * Closing the socket unblocks the write, the client thread then sees an IOException
+     */
+    void closeStuck() {
+        final long now = System.currentTimeMillis();
+        for (WriteWatch watch : watches) {
+            if (watch.isStuck(now)) {
+                Timber.d("closeStuck() player stopped reading");
+                closeQuietly(watch.socket);
+            }
+        }
+    }
+
+    /*
+     * Remembers when the write in progress started, socket timeouts only bound reads
+     */
+    static class WriteWatch extends FilterOutputStream {
+        final Socket socket;
+        volatile long writingSince;
+
+        WriteWatch(Socket socket) throws IOException {
+            super(socket.getOutputStream());
+            this.socket = socket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                out.write(b);
+            } finally {
+                writingSince = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+            } finally {
+                writingSince = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                out.flush();
+            } finally {
+                writingSince = 0;
+            }
+        }
+
+        boolean isStuck(long now) {
+            final long since = writingSince;
+            return since != 0 && now - since > WRITE_TIMEOUT;
+        }
+    }
+
+    /*
+     * One request per connection, players open a new one to seek anyway
+     */
+    void serve(Socket client, OutputStream clientOut) throws IOException {
+        final InputStream in = new BufferedInputStream(client.getInputStream());
+        final OutputStream out = new BufferedOutputStream(clientOut, CHUNK);
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        String range = null;
+        for (int ii=0; ii<MAX_HEADER_LINES; ii++) {
+            final String line = readLine(in);
+            if (line == null || line.isEmpty()) {
+                break;
+            }
+            final int colon = line.indexOf(':');
+            if (colon > 0 && "range".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                range = line.substring(colon + 1).trim();
+            }
+        }
+        final String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            writeStatus(out, 400, "Bad Request", null);
+            return;
+        }
+        final boolean headOnly = "HEAD".equals(parts[0]);
+        if (!headOnly && !"GET".equals(parts[0])) {
+            writeStatus(out, 405, "Method Not Allowed", null);
+            return;
+        }
+        final List<String> segments = Uri.parse(parts[1]).getPathSegments();
+        if (segments.size() != 3 || !segments.get(0).equals(secret)) {
+            writeStatus(out, 404, "Not Found", null);
+            return;
+        }
+        final String accountName = segments.get(1);
+        final String id = segments.get(2);
+        final DriveHelper.Session session = driveHelper.getSession(accountName);
+        // Pinned songs are served from disk, offline or not
+        final java.io.File local = offlineCache.cachedFile(accountName, id);
+        Source source = local != null ? localSource(accountName, id, local) : resolve(session, accountName, id, false);
+        if (source == null) {
+            writeStatus(out, 404, "Not Found", null);
+            return;
+        }
+
+        long start = 0;
+        long end = source.size - 1;
+        final boolean partial = range != null;
+        if (partial) {
+            final long[] r = parseRange(range, source.size);
+            if (r == null) {
+                writeStatus(out, 416, "Requested Range Not Satisfiable",
+                        "Content-Range: bytes */" + source.size + "\r\n");
+                return;
+            }
+            start = r[0];
+            end = r[1];
+        }
+        final long length = end - start + 1;
+        final StringBuilder headers = new StringBuilder(256);
+        headers.append("Content-Type: ").append(source.mimeType).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n");
+        if (partial) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(source.size).append("\r\n");
+        }
+        if (headOnly || length == 0) {
+            writeStatus(out, partial ? 206 : 200, partial ? "Partial Content" : "OK", headers.toString());
+            return;
+        }
+
+        if (local != null) {
+            writeStatus(out, partial ? 206 : 200, partial ? "Partial Content" : "OK", headers.toString());
+            offlineCache.touch(accountName, id);
+            copyLocal(local, start, length, out);
+            return;
+        }
+
+        final String key = accountName + "/" + id;
+        final java.io.File head = headCache.get(accountName, id, source.version);
+        if (head != null && start < head.length()) {
+            serveHead(session, key, out, headers.toString(), partial, head, source, start, end);
+            return;
+        }
+
+        HttpResponse resp = buildRequest(session, source, start, end).execute();
+        if (isAuthError(resp.getStatusCode())) {
+            // the download url went stale, ask drive for a fresh one and try once more
+            Timber.d("serve(%s) drive said %d, refreshing", id, resp.getStatusCode());
+            resp.disconnect();
+            final Source stale = source;
+            source = resolve(session, accountName, id, true);
+            if (source == null || source.size != stale.size
+                    || (stale.version != null && !stale.version.equals(source.version))) {
+                // the song changed under the player, it has to start over
+                writeStatus(out, 502, "Bad Gateway", null);
+                return;
+            }
+            resp = buildRequest(session, source, start, end).execute();
+        }
+        if (resp.getStatusCode() != 206 && !(resp.getStatusCode() == 200 && start == 0)) {
+            Timber.w("serve(%s) drive said %d", id, resp.getStatusCode());
+            resp.disconnect();
+            if (isStale(resp.getStatusCode())) {
+                sources.remove(key);
+            }
+            writeStatus(out, 502, "Bad Gateway", null);
+            return;
+        }
+        writeStatus(out, partial ? 206 : 200, partial ? "Partial Content" : "OK", headers.toString());
+        final ReadAhead readAhead = new ReadAhead(key, resp, length);
+        upstream.execute(readAhead);
+        readAhead.drainTo(out);
+    }
+
+    /*
+     * Answers from the prefetched start of the song, connecting to drive for
+     * the rest while the player reads it
+     */
+    void serveHead(DriveHelper.Session session, String key, OutputStream out, String headers, boolean partial,
+                   java.io.File head, Source source, long start, long end) throws IOException {
+        final long length = end - start + 1;
+        final long fromHead = Math.min(head.length() - start, length);
+        ReadAhead rest = null;
+        if (fromHead < length) {
+            rest = new ReadAhead(key, buildRequest(session, source, start + fromHead, end), length - fromHead);
+            upstream.execute(rest);
+        }
+        writeStatus(out, partial ? 206 : 200, partial ? "Partial Content" : "OK", headers);
+        try {
+            copyLocal(head, start, fromHead, out);
+        } catch (IOException e) {
+            if (rest != null) {
+                rest.cancelled = true;
+            }
+            throw e;
+        }
+        if (rest != null) {
+            rest.drainTo(out);
+        }
+    }
+
+    static HttpRequest buildRequest(DriveHelper.Session session, Source source, long start, long end) throws IOException {
+        final HttpRequest req = session.getDrive().getRequestFactory().buildGetRequest(new GenericUrl(source.url));
+        req.getHeaders().setRange("bytes=" + start + "-" + end);
+        req.setThrowExceptionOnExecuteError(false);
+        return req;
+    }
+
+    static boolean isAuthError(int status) {
+        return status == 401 || status == 403;
+    }
+
+    /*
+     * The download url we have won't work again
+     */
+    static boolean isStale(int status) {
+        return isAuthError(status) || status == 404 || status == 410;
+    }
+
+    /*
+     * Reads ahead of the player on another thread, stopping when it gets too far ahead
+     */
+    class ReadAhead implements Runnable {
+        final String key;
+        final HttpRequest request;
+        final long length;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CHUNKS);
+        HttpResponse resp;
+        volatile boolean cancelled;
+        volatile boolean finished;
+        volatile IOException error;
+
+        ReadAhead(String key, HttpResponse resp, long length) {
+            this.key = key;
+            this.request = null;
+            this.resp = resp;
+            this.length = length;
+        }
+
+        /**
+         * @param request made on our thread, it must come back partial
+         */
+        ReadAhead(String key, HttpRequest request, long length) {
+            this.key = key;
+            this.request = request;
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (resp == null) {
+                    resp = request.execute();
+                    if (resp.getStatusCode() != 206) {
+                        if (isStale(resp.getStatusCode())) {
+                            // the player's retry fetches a fresh url
+                            sources.remove(key);
+                        }
+                        throw new IOException("Drive said " + resp.getStatusCode());
+                    }
+                }
+                final InputStream in = resp.getContent();
+                long remaining = length;
+                while (remaining > 0 && !cancelled) {
+                    final byte[] buf = new byte[(int) Math.min(CHUNK, remaining)];
+                    int read = 0;
+                    while (read < buf.length) {
+                        int n = in.read(buf, read, buf.length - read);
+                        if (n < 0) {
+                            throw new IOException("Drive closed at " + (length - remaining + read) + "/" + length);
+                        }
+                        read += n;
+                    }
+                    remaining -= read;
+                    while (!cancelled && !queue.offer(buf, 1, TimeUnit.SECONDS)) {
+                        // player is paused or slow, wait for it
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException();
+            } finally {
+                finished = true;
+                try {
+                    if (resp != null) {
+                        resp.disconnect();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void drainTo(OutputStream out) throws IOException {
+            long written = 0;
+            long idleSince = System.currentTimeMillis();
+            try {
+                while (written < length) {
+                    final byte[] buf = queue.poll(1, TimeUnit.SECONDS);
+                    if (buf == null) {
+                        if (finished && queue.isEmpty()) {
+                            throw error != null ? error : new IOException("Short read at " + written);
+                        } else if (System.currentTimeMillis() - idleSince > SOCKET_TIMEOUT) {
+                            throw new IOException("Stalled at " + written);
+                        }
+                        continue;
+                    }
+                    out.write(buf);
+                    written += buf.length;
+                    idleSince = System.currentTimeMillis();
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                cancelled = true;
+                queue.clear();
+            }
+        }
+    }
+
+    Source localSource(String accountName, String id, java.io.File local) {
+        final File f = index.file(accountName, id);
+        final String mime = f != null && f.getMimeType() != null ? f.getMimeType() : "application/octet-stream";
+        return new Source(null, local.length(), mime, null);
+    }
+
+    static void copyLocal(java.io.File local, long start, long length, OutputStream out) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(local, "r");
+        try {
+            raf.seek(start);
+            final byte[] buf = new byte[CHUNK];
+            long remaining = length;
+            while (remaining > 0) {
+                final int n = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Offline file shrank under us");
+                }
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+            out.flush();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param fresh skip what we know and ask drive, the url we had was refused
+     */
+    Source resolve(DriveHelper.Session session, String accountName, String id, boolean fresh) throws IOException {
+        final String key = accountName + "/" + id;
+        Source source = fresh ? null : sources.get(key);
+        if (source != null) {
+            return source;
+        }
+        File f = fresh ? null : index.file(accountName, id);
+        if (f == null || f.getMimeType() == null) {
+            f = session.execute(session.getDrive().files().get(id).setFields(Helpers.STREAM_FIELDS));
+        }
+        if (f.getDownloadUrl() == null || f.getFileSize() == null) {
+            sources.remove(key);
+            return null;
+        }
+        source = new Source(f.getDownloadUrl(), f.getFileSize(), f.getMimeType(), HeadCache.version(f));
+        sources.put(key, source);
+        return source;
+    }
+
+    /**
+     * @return first and last byte of a single range, null if it can't be satisfied
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // the last n bytes
+                final long n = Long.parseLong(last);
+                if (n <= 0) return null;
+                start = Math.max(0, size - n);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if (start >= size || start > end) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static void writeStatus(OutputStream out, int code, String reason, String headers) throws IOException {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+        if (headers != null) {
+            sb.append(headers);
+        } else {
+            sb.append("Content-Length: 0\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                final int len = sb.length();
+                return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+            } else if (sb.length() > 8192) {
+                throw new IOException("Header too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
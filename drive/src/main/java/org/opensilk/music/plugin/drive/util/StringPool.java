@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Interns the strings repeated across cached rows, mime types, parent ids and dates,
+ * so every listing holding them shares one copy. Weakly held so the strings of
+ * evicted listings can still be collected.
+ *
+ * Created by drew on 11/27/14.
+ */
+public class StringPool {
+
+    final WeakHashMap<String, WeakReference<String>> pool = new WeakHashMap<>();
+
+    public synchronized String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        WeakReference<String> ref = pool.get(s);
+        String pooled = ref != null ? ref.get() : null;
+        if (pooled == null) {
+            pool.put(s, new WeakReference<>(s));
+            return s;
+        }
+        return pooled;
+    }
+
+    public synchronized int size() {
+        return pool.size();
+    }
+
+}
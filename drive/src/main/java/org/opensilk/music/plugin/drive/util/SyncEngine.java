@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.About;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+import org.opensilk.common.dagger.qualifier.ForApplication;
+import org.opensilk.music.plugin.drive.DriveLibraryService;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the listings in the {@link RequestCache} fresh by following the drive
+ * changes feed. We remember the next change id for each account and on every
+ * sync apply whatever happened since to the cached listings, so a few small
+ * requests replace relisting every folder.
+ *
+ * The first crawl of an account runs as bulk work on its own executor, this
+ * thread only follows the changes feeds.
+ *
+ * Created by drew on 11/22/14.
+ */
+@Singleton
+public class SyncEngine {
+
+    // Don't hit the changes feed more often than this
+    public static final long MIN_INTERVAL = 60 * 1000;
+
+    static final String PREFS_NAME = "drive_changes";
+
+    final Context context;
+    final DriveHelper driveHelper;
+    final RequestCache cache;
+    final LibraryIndex index;
+    final SearchIndex searchIndex;
+    final TagScanner tagScanner;
+    final OfflineCache offlineCache;
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final Map<String, Long> lastSync = new HashMap<>();
+    final Set<String> crawling = Collections.synchronizedSet(new HashSet<String>());
+
+    @Inject
+    public SyncEngine(@ForApplication Context context, DriveHelper driveHelper,
+                      RequestCache cache, LibraryIndex index, SearchIndex searchIndex,
+                      TagScanner tagScanner, OfflineCache offlineCache) {
+        this.context = context;
+        this.driveHelper = driveHelper;
+        this.cache = cache;
+        this.index = index;
+        this.searchIndex = searchIndex;
+        this.tagScanner = tagScanner;
+        this.offlineCache = offlineCache;
+    }
+
+    /**
+     * Syncs the account in the background, unless we did so recently
+     */
+    public void requestSync(final String accountName) {
+        requestSync(accountName, false);
+    }
+
+    /**
+     * @param force even if we did so recently
+     */
+    void requestSync(final String accountName, boolean force) {
+        synchronized (lastSync) {
+            final long now = SystemClock.elapsedRealtime();
+            final Long last = lastSync.get(accountName);
+            if (!force && last != null && now - last < MIN_INTERVAL) {
+                return;
+            }
+            lastSync.put(accountName, now);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync(accountName);
+                } catch (IOException|GoogleAuthException e) {
+                    Timber.w(e, "sync(%s)", accountName);
+                }
+            }
+        });
+    }
+
+    void sync(String accountName) throws IOException, GoogleAuthException {
+        if (crawling.contains(accountName)) {
+            // its index is busy till the crawl is done, which syncs again
+            return;
+        }
+        final DriveHelper.Session session = driveHelper.getSession(accountName);
+        final Drive drive = session.getDrive();
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        final long startChangeId = prefs.getLong(accountName, -1);
+        if (startChangeId < 0) {
+            // First time around, anything cached before now is left to expire.
+            About about = session.execute(drive.about().get().setFields("largestChangeId"));
+            prefs.edit().putLong(accountName, about.getLargestChangeId() + 1).apply();
+        }
+        if (!index.isReady(accountName)) {
+            crawl(session, accountName);
+            return;
+        }
+        if (startChangeId < 0) {
+            startBackgroundWork(session, accountName);
+            return;
+        }
+
+        long largestChangeId = startChangeId - 1;
+        int applied = 0;
+        String pageToken = null;
+        do {
+            Drive.Changes.List req = drive.changes().list()
+                    .setStartChangeId(startChangeId)
+                    .setIncludeDeleted(true)
+                    .setIncludeSubscribed(true)
+                    .setFields(Helpers.CHANGE_FIELDS)
+                    .setMaxResults(1000);
+            if (!TextUtils.isEmpty(pageToken)) req.setPageToken(pageToken);
+            ChangeList resp = session.execute(req);
+            for (Change change : resp.getItems()) {
+                apply(accountName, change);
+                applied++;
+            }
+            if (resp.getLargestChangeId() != null) {
+                largestChangeId = resp.getLargestChangeId();
+            }
+            pageToken = resp.getNextPageToken();
+        } while (!TextUtils.isEmpty(pageToken));
+
+        if (applied > 0) {
+            // Search results can't be patched without rerunning the query
+            cache.invalidate(Helpers.searchCacheKey(accountName, ""));
+            // Nor can folder trees, a change anywhere below may belong in them
+            cache.invalidate(Helpers.treeCacheKey(accountName, ""));
+            searchIndex.rebuild(accountName);
+        }
+        Timber.d("sync(%s) applied %d changes", accountName, applied);
+        prefs.edit().putLong(accountName, largestChangeId + 1).apply();
+        startBackgroundWork(session, accountName);
+    }
+
+    /*
+     * Walks the whole account in the background then syncs again, to apply
+     * anything that changed since the change id we kept before starting
+     */
+    void crawl(final DriveHelper.Session session, final String accountName) {
+        if (!crawling.add(accountName)) {
+            return;
+        }
+        session.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    index.crawl(session, accountName);
+                    searchIndex.rebuild(accountName);
+                } catch (IOException e) {
+                    Timber.w(e, "crawl(%s)", accountName);
+                    return;
+                } finally {
+                    crawling.remove(accountName);
+                }
+                requestSync(accountName, true);
+            }
+        }, PriorityExecutor.BULK);
+    }
+
+    /*
+     * Picks up new or edited songs, or work that stopped early last time
+     */
+    void startBackgroundWork(DriveHelper.Session session, String accountName) {
+        tagScanner.scan(session, accountName);
+        offlineCache.sync(session, accountName);
+    }
+
+    void apply(String accountName, Change change) {
+        // Whatever happened to the file it's no longer where we had it
+        cache.removeItem(Helpers.accountCacheKeyPrefix(accountName), change.getFileId());
+        final File file = change.getFile();
+        if (Boolean.TRUE.equals(change.getDeleted()) || file == null || isTrashed(file)) {
+            index.remove(accountName, change.getFileId());
+            return;
+        }
+        index.put(accountName, file);
+        if (file.getParents() == null) {
+            return;
+        }
+        final RequestCache.Item item = Helpers.buildItem(file);
+        if (item == null) {
+            return;
+        }
+        for (ParentReference parent : file.getParents()) {
+            insert(accountName, parent.getId(), item);
+            if (Boolean.TRUE.equals(parent.getIsRoot())) {
+                // We list the root by its alias
+                insert(accountName, DriveLibraryService.DEFAULT_ROOT_FOLDER, item);
+            }
+        }
+    }
+
+    void insert(String accountName, String folderId, RequestCache.Item item) {
+        cache.insertItem(Helpers.browseCacheKey(accountName, folderId), item);
+        if (!item.folder) {
+            cache.insertItem(Helpers.songsCacheKey(accountName, folderId), item);
+        }
+    }
+
+    static boolean isTrashed(File file) {
+        return Boolean.TRUE.equals(file.getExplicitlyTrashed())
+                || (file.getLabels() != null && Boolean.TRUE.equals(file.getLabels().getTrashed()));
+    }
+
+}
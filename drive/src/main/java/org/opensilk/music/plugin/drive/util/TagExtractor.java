@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reads the tags and duration of a track with ranged reads. Only the
+ * headers are fetched, sized to what they declare, embedded pictures and
+ * audio data are skipped over, so a track costs a few KB however large it is.
+ *
+ * Handles ID3v2 (with the first MPEG frame for duration), FLAC, Ogg Vorbis/Opus
+ * and MP4. The format is sniffed, drive's mime types aren't trusted.
+ *
+ * Created by drew on 12/2/14.
+ */
+public class TagExtractor {
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final Charset UTF_16 = Charset.forName("UTF-16");
+    static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    // Bigger text frames or comment packets than this are not worth fetching
+    static final int MAX_FIELD = 64 * 1024;
+    // Guards against looping on corrupt files
+    static final int MAX_BOXES = 512;
+    // fLaC, a block header and STREAMINFO. Covers the ID3 header and whatever we sniff too
+    static final int HEAD = 4 + 4 + 34;
+
+    /**
+     * @return the tags, {@link TrackTags#NONE} if the format isn't one we know
+     */
+    public static TrackTags extract(RangeReader r) throws IOException {
+        if (r.length() < 12) {
+            return TrackTags.NONE;
+        }
+        r.prefetch(0, HEAD);
+        final byte[] magic = r.read(0, 12);
+        if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+            return readId3(r);
+        } else if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C') {
+            return readFlac(r, 0);
+        } else if (magic[0] == 'O' && magic[1] == 'g' && magic[2] == 'g' && magic[3] == 'S') {
+            return readOgg(r);
+        } else if (magic[4] == 'f' && magic[5] == 't' && magic[6] == 'y' && magic[7] == 'p') {
+            return readMp4(r);
+        } else if ((magic[0] & 0xff) == 0xff && (magic[1] & 0xe0) == 0xe0) {
+            // Untagged mp3
+            TrackTags.Builder b = new TrackTags.Builder();
+            b.durationMs = mpegDuration(r, 0);
+            return b.build();
+        }
+        return TrackTags.NONE;
+    }
+
+    /*
+     * ID3v2
+     */
+
+    static TrackTags readId3(RangeReader r) throws IOException {
+        final byte[] h = r.read(0, 10);
+        final int version = h[3];
+        final int flags = h[5] & 0xff;
+        long tagEnd = 10 + syncsafe(h, 6);
+        if ((flags & 0x10) != 0) {
+            tagEnd += 10; // footer
+        }
+        // The frames in one go, unless pictures make it more than we'd read of them
+        if (tagEnd <= MAX_FIELD) {
+            r.prefetch(10, (int) (tagEnd - 10));
+        }
+        final TrackTags.Builder b = new TrackTags.Builder();
+        long tlen = 0;
+        long pos = 10;
+        if ((flags & 0x40) != 0 && version >= 3) {
+            final byte[] ext = r.read(pos, 4);
+            pos += version == 4 ? syncsafe(ext, 0) : 4 + int32(ext, 0);
+        }
+        final int headerLen = version == 2 ? 6 : 10;
+        for (int ii=0; ii<MAX_BOXES && pos + headerLen <= tagEnd; ii++) {
+            final byte[] fh = r.read(pos, headerLen);
+            if (fh[0] == 0) {
+                break; // padding
+            }
+            final String id;
+            final long size;
+            if (version == 2) {
+                id = new String(fh, 0, 3, ISO_8859_1);
+                size = ((fh[3] & 0xff) << 16) | ((fh[4] & 0xff) << 8) | (fh[5] & 0xff);
+            } else {
+                id = new String(fh, 0, 4, ISO_8859_1);
+                size = version == 4 ? syncsafe(fh, 4) : int32(fh, 4);
+            }
+            pos += headerLen;
+            if (size <= 0 || pos + size > tagEnd) {
+                break;
+            }
+            final String key = id3Key(id);
+            if (key != null && size <= MAX_FIELD) {
+                final String value = id3Text(r.read(pos, (int) size));
+                if ("TLEN".equals(key)) {
+                    try {
+                        tlen = Long.parseLong(value.trim());
+                    } catch (NumberFormatException ignored) { }
+                } else {
+                    b.put(key, value);
+                }
+            }
+            pos += size;
+        }
+        b.durationMs = tlen > 0 ? tlen : mpegDuration(r, tagEnd);
+        return b.build();
+    }
+
+    static String id3Key(String id) {
+        switch (id) {
+            case "TIT2": case "TT2": return "TITLE";
+            case "TPE1": case "TP1": return "ARTIST";
+            case "TALB": case "TAL": return "ALBUM";
+            case "TPE2": case "TP2": return "ALBUMARTIST";
+            case "TRCK": case "TRK": return "TRACKNUMBER";
+            case "TLEN": case "TLE": return "TLEN";
+            default: return null;
+        }
+    }
+
+    static String id3Text(byte[] data) {
+        if (data.length < 1) {
+            return null;
+        }
+        final Charset cs;
+        switch (data[0]) {
+            case 1: cs = UTF_16; break;
+            case 2: cs = UTF_16BE; break;
+            case 3: cs = UTF_8; break;
+            default: cs = ISO_8859_1; break;
+        }
+        String s = new String(data, 1, data.length - 1, cs);
+        // v2.4 separates multiple values with nulls, we take the first
+        int nul = s.indexOf('\0');
+        if (nul >= 0) {
+            s = s.substring(0, nul);
+        }
+        return s.trim();
+    }
+
+    /*
+     * MPEG audio, layer III only
+     */
+
+    static final int[] BITRATE_V1 = { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0 };
+    static final int[] BITRATE_V2 = { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0 };
+    static final int[][] SAMPLE_RATES = {
+            { 11025, 12000, 8000 }, // 2.5
+            { 0, 0, 0 },
+            { 22050, 24000, 16000 }, // 2
+            { 44100, 48000, 32000 }, // 1
+    };
+
+    /**
+     * @return duration from the Xing/VBRI header of the first frame, or estimated from
+     *         its bitrate if there isn't one. 0 if we can't find a frame.
+     */
+    static long mpegDuration(RangeReader r, long audioStart) throws IOException {
+        if (audioStart >= r.length()) {
+            return 0;
+        }
+        final byte[] buf = r.read(audioStart, (int) Math.min(4096, r.length() - audioStart));
+        for (int ii=0; ii+4<=buf.length; ii++) {
+            if ((buf[ii] & 0xff) != 0xff || (buf[ii+1] & 0xe0) != 0xe0) {
+                continue;
+            }
+            final int version = (buf[ii+1] >> 3) & 0x3;
+            final int layer = (buf[ii+1] >> 1) & 0x3;
+            final int bitrateIdx = (buf[ii+2] >> 4) & 0xf;
+            final int rateIdx = (buf[ii+2] >> 2) & 0x3;
+            final int channelMode = (buf[ii+3] >> 6) & 0x3;
+            if (version == 1 || layer != 1 || rateIdx == 3 || bitrateIdx == 0 || bitrateIdx == 15) {
+                continue; // not a layer III header
+            }
+            final boolean v1 = version == 3;
+            final int sampleRate = SAMPLE_RATES[version][rateIdx];
+            final int samplesPerFrame = v1 ? 1152 : 576;
+            final int bitrate = (v1 ? BITRATE_V1 : BITRATE_V2)[bitrateIdx] * 1000;
+            final int sideInfo = v1 ? (channelMode == 3 ? 17 : 32) : (channelMode == 3 ? 9 : 17);
+            final int xing = ii + 4 + sideInfo;
+            if (xing + 12 <= buf.length && (matches(buf, xing, "Xing") || matches(buf, xing, "Info"))) {
+                if ((buf[xing+7] & 0x1) != 0) {
+                    final long frames = int32(buf, xing + 8);
+                    return frames * samplesPerFrame * 1000 / sampleRate;
+                }
+            }
+            final int vbri = ii + 4 + 32;
+            if (vbri + 18 <= buf.length && matches(buf, vbri, "VBRI")) {
+                final long frames = int32(buf, vbri + 14);
+                return frames * samplesPerFrame * 1000 / sampleRate;
+            }
+            // Assume constant bitrate
+            return (r.length() - audioStart - ii) * 8 * 1000 / bitrate;
+        }
+        return 0;
+    }
+
+    /*
+     * FLAC
+     */
+
+    static TrackTags readFlac(RangeReader r, long start) throws IOException {
+        final TrackTags.Builder b = new TrackTags.Builder();
+        long pos = start + 4;
+        for (int ii=0; ii<MAX_BOXES; ii++) {
+            final byte[] h = r.read(pos, 4);
+            final boolean last = (h[0] & 0x80) != 0;
+            final int type = h[0] & 0x7f;
+            final int len = ((h[1] & 0xff) << 16) | ((h[2] & 0xff) << 8) | (h[3] & 0xff);
+            pos += 4;
+            if (type == 0 && len >= 18) {
+                final byte[] si = r.read(pos, 18);
+                final int sampleRate = ((si[10] & 0xff) << 12) | ((si[11] & 0xff) << 4) | ((si[12] & 0xff) >> 4);
+                final long total = ((long) (si[13] & 0x0f) << 32) | int32(si, 14);
+                if (sampleRate > 0) {
+                    b.durationMs = total * 1000 / sampleRate;
+                }
+            } else if (type == 4 && len <= MAX_FIELD) {
+                readVorbisComment(r.read(pos, len), 0, b);
+                break; // STREAMINFO always comes first
+            }
+            if (last) {
+                break;
+            }
+            pos += len; // skips pictures without fetching them
+        }
+        return b.build();
+    }
+
+    static void readVorbisComment(byte[] d, int off, TrackTags.Builder b) {
+        if (off + 4 > d.length) return;
+        int pos = off;
+        final long vendorLen = int32le(d, pos);
+        if (vendorLen > d.length) return;
+        pos += 4 + vendorLen;
+        if (pos + 4 > d.length) return;
+        final long count = int32le(d, pos);
+        pos += 4;
+        for (long ii=0; ii<count && pos + 4 <= d.length; ii++) {
+            final long len = int32le(d, pos);
+            pos += 4;
+            if (len < 0 || pos + len > d.length) return;
+            final String comment = new String(d, pos, (int) len, UTF_8);
+            pos += len;
+            final int eq = comment.indexOf('=');
+            if (eq > 0) {
+                b.put(comment.substring(0, eq).toUpperCase(Locale.US), comment.substring(eq + 1));
+            }
+        }
+    }
+
+    /*
+     * Ogg Vorbis and Opus
+     */
+
+    static TrackTags readOgg(RangeReader r) throws IOException {
+        final TrackTags.Builder b = new TrackTags.Builder();
+        final long[] pos = new long[] { 0 };
+        final byte[] id = readOggPacket(r, pos);
+        if (id == null) {
+            return TrackTags.NONE;
+        }
+        final long sampleRate;
+        final boolean opus;
+        if (id.length >= 16 && id[0] == 1 && matches(id, 1, "vorbis")) {
+            sampleRate = int32le(id, 12);
+            opus = false;
+        } else if (id.length >= 19 && matches(id, 0, "OpusHead")) {
+            sampleRate = 48000; // granule positions are always 48k
+            opus = true;
+        } else {
+            return TrackTags.NONE;
+        }
+        final byte[] comment = readOggPacket(r, pos);
+        if (comment != null) {
+            if (!opus && comment.length > 7 && comment[0] == 3 && matches(comment, 1, "vorbis")) {
+                readVorbisComment(comment, 7, b);
+            } else if (opus && matches(comment, 0, "OpusTags")) {
+                readVorbisComment(comment, 8, b);
+            }
+        }
+        // The last page's granule position is the sample count
+        final byte[] tail = r.readTail(16 * 1024);
+        for (int ii=tail.length-14; ii>=0; ii--) {
+            if (matches(tail, ii, "OggS")) {
+                final long granule = int32le(tail, ii + 6) | (int32le(tail, ii + 10) << 32);
+                if (granule > 0 && sampleRate > 0) {
+                    b.durationMs = granule * 1000 / sampleRate;
+                }
+                break;
+            }
+        }
+        return b.build();
+    }
+
+    /*
+     * Reassembles the packet starting at pos[0], leaving pos[0] at the next page
+     * once the packet ends on a page boundary. Packets spanning pages are joined.
+     */
+    static byte[] readOggPacket(RangeReader r, long[] pos) throws IOException {
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        for (int page=0; page<MAX_BOXES; page++) {
+            final byte[] h = r.read(pos[0], 27);
+            if (!matches(h, 0, "OggS")) {
+                return null;
+            }
+            final int segments = h[26] & 0xff;
+            final byte[] table = r.read(pos[0] + 27, segments);
+            long data = pos[0] + 27 + segments;
+            int total = 0;
+            for (int ii=0; ii<segments; ii++) {
+                total += table[ii] & 0xff;
+            }
+            pos[0] = data + total;
+            // We only read the first packets, assume they start pages
+            int len = 0;
+            boolean complete = false;
+            for (int ii=0; ii<segments; ii++) {
+                final int seg = table[ii] & 0xff;
+                len += seg;
+                if (seg < 255) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (packet.size() + len > MAX_FIELD) {
+                return null;
+            }
+            packet.write(r.read(data, len), 0, len);
+            if (complete) {
+                return packet.toByteArray();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * MP4, walks the boxes reading only their headers till we find what we want
+     */
+
+    static TrackTags readMp4(RangeReader r) throws IOException {
+        final TrackTags.Builder b = new TrackTags.Builder();
+        final long[] moov = findBox(r, 0, r.length(), "moov");
+        if (moov == null) {
+            return TrackTags.NONE;
+        }
+        final long[] mvhd = findBox(r, moov[0], moov[1], "mvhd");
+        if (mvhd != null) {
+            final byte[] d = r.read(mvhd[0], (int) Math.min(32, mvhd[1] - mvhd[0]));
+            final long timescale;
+            final long duration;
+            if (d[0] == 1 && d.length >= 32) {
+                timescale = int32(d, 20);
+                duration = (int32(d, 24) << 32) | int32(d, 28);
+            } else if (d.length >= 20) {
+                timescale = int32(d, 12);
+                duration = int32(d, 16);
+            } else {
+                timescale = 0;
+                duration = 0;
+            }
+            if (timescale > 0) {
+                b.durationMs = duration * 1000 / timescale;
+            }
+        }
+        final long[] udta = findBox(r, moov[0], moov[1], "udta");
+        final long[] meta = udta != null ? findBox(r, udta[0], udta[1], "meta") : null;
+        // meta is a full box, its children follow version and flags
+        final long[] ilst = meta != null ? findBox(r, meta[0] + 4, meta[1], "ilst") : null;
+        if (ilst != null) {
+            long pos = ilst[0];
+            for (int ii=0; ii<MAX_BOXES && pos + 8 <= ilst[1]; ii++) {
+                final byte[] h = r.read(pos, 8);
+                final long size = int32(h, 0);
+                if (size < 8) break;
+                final String key = mp4Key(h);
+                if (key != null && size <= MAX_FIELD) {
+                    final long[] data = findBox(r, pos + 8, pos + size, "data");
+                    if (data != null && data[1] - data[0] > 8) {
+                        // type and locale, then the value
+                        final byte[] v = r.read(data[0] + 8, (int) (data[1] - data[0] - 8));
+                        if ("TRACKNUMBER".equals(key)) {
+                            if (v.length >= 4) {
+                                b.track = ((v[2] & 0xff) << 8) | (v[3] & 0xff);
+                            }
+                        } else {
+                            b.put(key, new String(v, UTF_8));
+                        }
+                    }
+                }
+                pos += size;
+            }
+        }
+        return b.build();
+    }
+
+    static String mp4Key(byte[] h) {
+        if ((h[4] & 0xff) == 0xa9) {
+            if (matches(h, 5, "nam")) return "TITLE";
+            if (matches(h, 5, "ART")) return "ARTIST";
+            if (matches(h, 5, "alb")) return "ALBUM";
+        } else if (matches(h, 4, "aART")) {
+            return "ALBUMARTIST";
+        } else if (matches(h, 4, "trkn")) {
+            return "TRACKNUMBER";
+        }
+        return null;
+    }
+
+    /**
+     * @return start and end of the payload of the first box of type in [start, end), or null
+     */
+    static long[] findBox(RangeReader r, long start, long end, String type) throws IOException {
+        long pos = start;
+        for (int ii=0; ii<MAX_BOXES && pos + 8 <= end; ii++) {
+            final byte[] h = r.read(pos, 8);
+            long size = int32(h, 0);
+            int headerLen = 8;
+            if (size == 1) {
+                if (pos + 16 > end) return null;
+                final byte[] large = r.read(pos + 8, 8);
+                size = (int32(large, 0) << 32) | int32(large, 4);
+                headerLen = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < headerLen || pos + size > end) {
+                return null;
+            }
+            if (matches(h, 4, type)) {
+                return new long[] { pos + headerLen, pos + size };
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    /*
+     * Byte helpers
+     */
+
+    static boolean matches(byte[] b, int off, String s) {
+        if (off < 0 || off + s.length() > b.length) {
+            return false;
+        }
+        for (int ii=0; ii<s.length(); ii++) {
+            if (b[off + ii] != (byte) s.charAt(ii)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long syncsafe(byte[] b, int off) {
+        return ((b[off] & 0x7f) << 21) | ((b[off+1] & 0x7f) << 14) | ((b[off+2] & 0x7f) << 7) | (b[off+3] & 0x7f);
+    }
+
+    static long int32(byte[] b, int off) {
+        return ((long) (b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16) | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+    }
+
+    static long int32le(byte[] b, int off) {
+        return ((long) (b[off+3] & 0xff) << 24) | ((b[off+2] & 0xff) << 16) | ((b[off+1] & 0xff) << 8) | (b[off] & 0xff);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Works through the songs in the {@link LibraryIndex} reading their tags with
+ * the {@link TagExtractor}. Runs as bulk work, a batch at a time, so it gives
+ * way to anything the user is waiting on.
+ *
+ * Created by drew on 12/2/14.
+ */
+@Singleton
+public class TagScanner {
+
+    static final int BATCH = 25;
+
+    final TagStore store;
+    final Set<String> running = Collections.synchronizedSet(new HashSet<String>());
+
+    @Inject
+    public TagScanner(TagStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Scans any songs we don't have tags for, in the background
+     */
+    public void scan(DriveHelper.Session session, String accountName) {
+        if (running.add(accountName)) {
+            submit(session, accountName);
+        }
+    }
+
+    void submit(final DriveHelper.Session session, final String accountName) {
+        session.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean more = false;
+                try {
+                    more = scanBatch(session, accountName);
+                } finally {
+                    if (more) {
+                        // requeue so waiting work of any priority gets a turn
+                        submit(session, accountName);
+                    } else {
+                        running.remove(accountName);
+                    }
+                }
+            }
+        }, PriorityExecutor.BULK);
+    }
+
+    /**
+     * @return true if there may be more to scan
+     */
+    boolean scanBatch(DriveHelper.Session session, String accountName) {
+        final List<TagStore.Pending> pending = store.pending(accountName, BATCH);
+        if (pending.isEmpty()) {
+            return false;
+        }
+        final HttpRequestFactory factory = session.getDrive().getRequestFactory();
+        long bytes = 0;
+        for (TagStore.Pending p : pending) {
+            final RangeReader reader = new RangeReader(factory, p.url, p.size);
+            TrackTags tags;
+            try {
+                tags = TagExtractor.extract(reader);
+            } catch (EOFException|RuntimeException e) {
+                // Truncated or mangled, don't try it again till it changes
+                Timber.w("scanBatch() unreadable %s: %s", p.id, e);
+                tags = TrackTags.NONE;
+            } catch (HttpResponseException e) {
+                final int code = e.getStatusCode();
+                if (code >= 500 || code == 401 || code == 403 || code == 429) {
+                    Timber.w("scanBatch() giving up for now: %s", e.getStatusMessage());
+                    return false;
+                }
+                tags = TrackTags.NONE;
+            } catch (IOException e) {
+                // Probably offline, the next sync starts us again
+                Timber.w(e, "scanBatch() giving up for now");
+                return false;
+            }
+            bytes += reader.bytesFetched();
+            store.put(accountName, p.id, p.modified, tags);
+        }
+        Timber.d("scanBatch(%s) %d songs, %d bytes", accountName, pending.size(), bytes);
+        return true;
+    }
+
+}
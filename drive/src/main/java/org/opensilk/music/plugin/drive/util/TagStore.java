@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Persists the tags read by the {@link TagScanner} beside the {@link LibraryIndex},
+ * with the recently served ones kept in memory.
+ *
+ * Created by drew on 12/2/14.
+ */
+@Singleton
+public class TagStore {
+
+    static final int MEMORY_ENTRIES = 2048;
+    // Keeps us well under sqlite's bound argument limit
+    static final int QUERY_CHUNK = 200;
+
+    static final String[] COLUMNS = new String[] {
+            "id", "title", "artist", "album", "album_artist", "track", "duration",
+    };
+
+    /**
+     * A song we have no tags for, or whose file changed since we read them
+     */
+    public static class Pending {
+        public final String id;
+        public final String url;
+        public final long size;
+        public final long modified;
+
+        Pending(String id, String url, long size, long modified) {
+            this.id = id;
+            this.url = url;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    final LibraryIndex index;
+    // Holds TrackTags.NONE for songs known to have no tags
+    final LruCache<String, TrackTags> memory = new LruCache<>(MEMORY_ENTRIES);
+
+    @Inject
+    public TagStore(LibraryIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return tags for those of the songs we have them for
+     */
+    public Map<String, TrackTags> get(String accountName, Collection<String> ids) {
+        final Map<String, TrackTags> found = new HashMap<>(ids.size());
+        final List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            final TrackTags tags = memory.get(key(accountName, id));
+            if (tags == null) {
+                missing.add(id);
+            } else if (tags != TrackTags.NONE) {
+                found.put(id, tags);
+            }
+        }
+        for (int start=0; start<missing.size(); start+=QUERY_CHUNK) {
+            final List<String> chunk = missing.subList(start, Math.min(missing.size(), start + QUERY_CHUNK));
+            final Map<String, TrackTags> loaded = load(accountName, chunk);
+            for (String id : chunk) {
+                final TrackTags tags = loaded.get(id);
+                memory.put(key(accountName, id), tags != null ? tags : TrackTags.NONE);
+                if (tags != null) {
+                    found.put(id, tags);
+                }
+            }
+        }
+        return found;
+    }
+
+    public void put(String accountName, String id, long modified, TrackTags tags) {
+        final ContentValues cv = new ContentValues(8);
+        cv.put("id", id);
+        cv.put("modified", modified);
+        cv.put("title", tags.title);
+        cv.put("artist", tags.artist);
+        cv.put("album", tags.album);
+        cv.put("album_artist", tags.albumArtist);
+        cv.put("track", tags.track);
+        cv.put("duration", tags.durationMs);
+        index.getDatabase(accountName).insertWithOnConflict(LibraryIndex.TAGS, null, cv,
+                SQLiteDatabase.CONFLICT_REPLACE);
+        memory.put(key(accountName, id), tags.isEmpty() ? TrackTags.NONE : tags);
+    }
+
+    /**
+     * @return songs in the index that need scanning
+     */
+    public List<Pending> pending(String accountName, int limit) {
+        final Cursor c = index.getDatabase(accountName).rawQuery(
+                "SELECT f.id, f.url, f.size, f.modified FROM " + LibraryIndex.FILES + " f" +
+                " LEFT JOIN " + LibraryIndex.TAGS + " t ON t.id=f.id" +
+                " WHERE f.folder=0 AND f.url IS NOT NULL AND (t.id IS NULL OR t.modified!=f.modified)" +
+                " LIMIT " + limit, null);
+        final List<Pending> pending = new ArrayList<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                pending.add(new Pending(c.getString(0), c.getString(1), c.getLong(2), c.getLong(3)));
+            }
+        } finally {
+            c.close();
+        }
+        return pending;
+    }
+
+    Map<String, TrackTags> load(String accountName, List<String> ids) {
+        final StringBuilder selection = new StringBuilder("id IN (");
+        for (int ii=0; ii<ids.size(); ii++) {
+            selection.append(ii == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+        final Cursor c = index.getDatabase(accountName).query(LibraryIndex.TAGS, COLUMNS, selection.toString(),
+                ids.toArray(new String[ids.size()]), null, null, null);
+        final Map<String, TrackTags> loaded = new HashMap<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                final TrackTags tags = new TrackTags(c.getString(1), c.getString(2), c.getString(3),
+                        c.getString(4), c.getInt(5), c.getLong(6));
+                if (!tags.isEmpty()) {
+                    loaded.put(c.getString(0), tags);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return loaded;
+    }
+
+    static String key(String accountName, String id) {
+        return accountName + "/" + id;
+    }
+
+}
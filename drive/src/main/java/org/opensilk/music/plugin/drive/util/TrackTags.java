@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.text.TextUtils;
+
+/**
+ * What we could read from a track's own tags. Any field may be missing.
+ *
+ * Created by drew on 12/2/14.
+ */
+public class TrackTags {
+
+    public static final TrackTags NONE = new TrackTags(null, null, null, null, 0, 0);
+
+    public final String title;
+    public final String artist;
+    public final String album;
+    public final String albumArtist;
+    public final int track;
+    public final long durationMs;
+
+    public TrackTags(String title, String artist, String album, String albumArtist, int track, long durationMs) {
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.albumArtist = albumArtist;
+        this.track = track;
+        this.durationMs = durationMs;
+    }
+
+    public boolean isEmpty() {
+        return TextUtils.isEmpty(title) && TextUtils.isEmpty(artist) && TextUtils.isEmpty(album)
+                && durationMs <= 0;
+    }
+
+    static class Builder {
+        String title;
+        String artist;
+        String album;
+        String albumArtist;
+        int track;
+        long durationMs;
+
+        /*
+         * Vorbis comment style keys, first value wins
+         */
+        void put(String key, String value) {
+            if (TextUtils.isEmpty(value)) {
+                return;
+            }
+            switch (key) {
+                case "TITLE":
+                    if (title == null) title = value;
+                    break;
+                case "ARTIST":
+                    if (artist == null) artist = value;
+                    break;
+                case "ALBUM":
+                    if (album == null) album = value;
+                    break;
+                case "ALBUMARTIST":
+                    if (albumArtist == null) albumArtist = value;
+                    break;
+                case "TRACKNUMBER":
+                    if (track == 0) track = parseTrack(value);
+                    break;
+            }
+        }
+
+        TrackTags build() {
+            return new TrackTags(title, artist, album, albumArtist, track, durationMs);
+        }
+    }
+
+    /*
+     * Handles the 3/12 form
+     */
+    static int parseTrack(String value) {
+        int slash = value.indexOf('/');
+        try {
+            return Integer.parseInt((slash >= 0 ? value.substring(0, slash) : value).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2014 OpenSilk Productions LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.opensilk.music.plugin.drive.util;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import org.opensilk.music.api.callback.Result;
+import org.opensilk.music.api.exception.ParcelableException;
+import org.opensilk.music.plugin.drive.DriveLibraryService;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+import static org.opensilk.music.api.exception.ParcelableException.NETWORK;
+
+/**
+ * Lists every song under a folder. Subfolders are listed a few at a time on the
+ * account's {@link PriorityExecutor} and pages are handed out as soon as the
+ * songs in them are settled, so the client doesn't wait on the whole tree.
+ *
+ * Songs come in a stable order: a folder's own songs by name, then each of its
+ * subfolders' in turn, by folder name. Folder listings already in the
+ * {@link RequestCache} are used as is, and so are the trees of subfolders
+ * listed before, as long as none of their folders is already in this walk.
+ * Whatever we fetch is cached for browsing too.
+ *
+ * Created by drew on 12/9/14.
+ */
+@Singleton
+public class TreeLister {
+
+    // Folders listed at once, leaves the executor a thread for everything else
+    public static final int MAX_PARALLEL = PriorityExecutor.CONCURRENCY - 1;
+
+    final RequestCache cache;
+    final TagStore tags;
+    final SongUris songUris;
+
+    final Map<String, Walk> walks = new ConcurrentHashMap<>();
+
+    @Inject
+    public TreeLister(RequestCache cache, TagStore tags, SongUris songUris) {
+        this.cache = cache;
+        this.tags = tags;
+        this.songUris = songUris;
+    }
+
+    /**
+     * Answers with the page once its songs are known, from the cache if we've walked the tree lately
+     */
+    public void list(DriveHelper.Session session, String accountName, String folderId,
+                     int startpos, int maxResults, Result callback) {
+        final String cacheKey = Helpers.treeCacheKey(accountName, folderId);
+        final Waiter waiter = new Waiter(startpos, maxResults, callback);
+        while (true) {
+            Walk walk = walks.get(cacheKey);
+            if (walk != null) {
+                if (walk.addWaiter(waiter)) {
+                    return;
+                }
+                // It finished while we were looking, its songs are in the cache now
+                walks.remove(cacheKey, walk);
+            }
+            if (cache.get(cacheKey, startpos, maxResults, session, callback)) {
+                return;
+            }
+            walk = new Walk(session, accountName, folderId, cacheKey);
+            if (walks.putIfAbsent(cacheKey, walk) == null) {
+                walk.addWaiter(waiter);
+                Timber.d("list() walking %s", cacheKey);
+                walk.schedule();
+                return;
+            }
+        }
+    }
+
+    static class Waiter {
+        final int startpos;
+        final int maxResults;
+        final Result callback;
+
+        Waiter(int startpos, int maxResults, Result callback) {
+            this.startpos = startpos;
+            this.maxResults = maxResults;
+            this.callback = callback;
+        }
+    }
+
+    static class Node {
+        final String folderId;
+        final List<Node> children = new ArrayList<>();
+        List<RequestCache.Item> songs;
+        boolean listed;
+
+        Node(String folderId) {
+            this.folderId = folderId;
+        }
+    }
+
+    /*
+     * A page cut from the settled songs, served outside the lock
+     */
+    static class Page {
+        final Waiter waiter;
+        final List<RequestCache.Item> items;
+        final int end;
+        final boolean more;
+        final long snapshot;
+
+        Page(Waiter waiter, List<RequestCache.Item> items, int end, boolean more, long snapshot) {
+            this.waiter = waiter;
+            this.items = items;
+            this.end = end;
+            this.more = more;
+            this.snapshot = snapshot;
+        }
+    }
+
+    class Walk {
+        final DriveHelper.Session session;
+        final String accountName;
+        final String cacheKey;
+        final Node root;
+
+        // guarded by this
+        // Nodes whose songs are still to be appended, top is next
+        final Deque<Node> order = new ArrayDeque<>();
+        // Folders waiting to be listed, those nearest the front of order first
+        final Deque<Node> queue = new ArrayDeque<>();
+        final Set<String> seen = new HashSet<>();
+        final List<RequestCache.Item> songs = new ArrayList<>();
+        final List<Waiter> waiters = new ArrayList<>(2);
+        int running;
+        boolean done;
+        long snapshot = -1;
+
+        Walk(DriveHelper.Session session, String accountName, String folderId, String cacheKey) {
+            this.session = session;
+            this.accountName = accountName;
+            this.cacheKey = cacheKey;
+            this.root = new Node(folderId);
+            order.push(root);
+            queue.add(root);
+            seen.add(folderId);
+        }
+
+        synchronized boolean addWaiter(Waiter waiter) {
+            if (done) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        void schedule() {
+            final List<Node> next = new ArrayList<>(MAX_PARALLEL);
+            synchronized (this) {
+                while (!done && running < MAX_PARALLEL && !queue.isEmpty()) {
+                    next.add(queue.poll());
+                    running++;
+                }
+            }
+            for (final Node node : next) {
+                session.getExecutor().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            visit(node);
+                        } catch (Throwable t) {
+                            // Nothing else would ever finish the walk, its waiters would hang
+                            fail(new IOException(t));
+                        }
+                    }
+                }, PriorityExecutor.INTERACTIVE);
+            }
+        }
+
+        void visit(Node node) {
+            if (node != root) {
+                // Walked this part of the tree before, take it whole
+                final List<RequestCache.Item> subtree = cache.peek(Helpers.treeCacheKey(accountName, node.folderId));
+                final List<RequestCache.Item> folders = subtree != null
+                        ? cache.peek(Helpers.treeFoldersCacheKey(accountName, node.folderId)) : null;
+                if (folders != null && claim(node, folders)) {
+                    complete(node, subtree, Collections.<String>emptyList());
+                    return;
+                }
+            }
+            final String browseKey = Helpers.browseCacheKey(accountName, node.folderId);
+            List<RequestCache.Item> items = cache.peek(browseKey);
+            if (items == null) {
+                try {
+                    items = fetch(browseKey, node.folderId);
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+            }
+            final List<RequestCache.Item> folderSongs = new ArrayList<>(items.size());
+            final List<String> folderIds = new ArrayList<>();
+            for (RequestCache.Item item : items) {
+                if (item.folder) {
+                    folderIds.add(item.identity);
+                } else {
+                    folderSongs.add(item);
+                }
+            }
+            complete(node, folderSongs, folderIds);
+        }
+
+        /*
+         * Marks the folders of a cached subtree as seen, unless this walk already
+         * has one of them. Its songs would be listed twice then, so it's walked instead.
+         */
+        synchronized boolean claim(Node node, List<RequestCache.Item> folders) {
+            for (RequestCache.Item folder : folders) {
+                if (!folder.identity.equals(node.folderId) && seen.contains(folder.identity)) {
+                    return false;
+                }
+            }
+            for (RequestCache.Item folder : folders) {
+                seen.add(folder.identity);
+            }
+            return true;
+        }
+
+        /*
+         * Lists the folder like a browse would and caches it for one
+         */
+        List<RequestCache.Item> fetch(String browseKey, String folderId) throws IOException {
+            final String q = DriveLibraryService.browseQuery(folderId);
+            final ListingValidators.Builder validators = new ListingValidators.Builder();
+            final List<RequestCache.Item> items = new ArrayList<>();
+            String pageToken = null;
+            do {
+                FileList resp = session.execute(DriveLibraryService.listRequest(session, q, pageToken));
+                validators.add(pageToken, resp.getEtag());
+                for (File f : resp.getItems()) {
+                    RequestCache.Item item = Helpers.buildItem(f);
+                    if (item != null) {
+                        items.add(item);
+                    }
+                }
+                pageToken = resp.getNextPageToken();
+            } while (!TextUtils.isEmpty(pageToken));
+            Collections.sort(items, RequestCache.ITEM_ORDER);
+            cache.putItems(browseKey, items, validators.build());
+            return items;
+        }
+
+        void complete(Node node, List<RequestCache.Item> nodeSongs, List<String> childIds) {
+            final List<Page> pages;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                running--;
+                node.songs = nodeSongs;
+                // pushed in reverse so they're listed in order
+                for (int ii=childIds.size()-1; ii>=0; ii--) {
+                    // Folders can have more than one parent, only walk them once
+                    if (seen.add(childIds.get(ii))) {
+                        final Node child = new Node(childIds.get(ii));
+                        node.children.add(0, child);
+                        queue.addFirst(child);
+                    }
+                }
+                node.listed = true;
+                advance();
+                if (order.isEmpty()) {
+                    done = true;
+                    final List<RequestCache.Item> folders = new ArrayList<>(seen.size());
+                    for (String folderId : seen) {
+                        folders.add(RequestCache.Item.folder(folderId, folderId, null, null));
+                    }
+                    // A tree is only reused along with the folders it went through
+                    cache.putItems(Helpers.treeFoldersCacheKey(accountName, root.folderId), folders, null);
+                    snapshot = cache.putItems(cacheKey, songs, null);
+                    walks.remove(cacheKey, this);
+                    Timber.d("complete() walked %s, %d songs", cacheKey, songs.size());
+                }
+                pages = takeReady();
+            }
+            serve(pages);
+            schedule();
+        }
+
+        /*
+         * Must hold lock. Appends the songs of every settled node at the front of the order
+         */
+        void advance() {
+            while (!order.isEmpty() && order.peek().listed) {
+                final Node node = order.pop();
+                songs.addAll(node.songs);
+                node.songs = null;
+                for (int ii=node.children.size()-1; ii>=0; ii--) {
+                    order.push(node.children.get(ii));
+                }
+            }
+        }
+
+        /*
+         * Must hold lock. Cuts the pages we can answer now, one more song than
+         * asked must be settled to know whether there's another page.
+         */
+        List<Page> takeReady() {
+            final List<Page> pages = new ArrayList<>();
+            final Iterator<Waiter> ii = waiters.iterator();
+            while (ii.hasNext()) {
+                final Waiter waiter = ii.next();
+                if (!done && songs.size() <= waiter.startpos + waiter.maxResults) {
+                    continue;
+                }
+                ii.remove();
+                final int start = Math.min(waiter.startpos, songs.size());
+                final int end = Math.min(start + waiter.maxResults, songs.size());
+                pages.add(new Page(waiter, new ArrayList<>(songs.subList(start, end)), end,
+                        end < songs.size(), snapshot));
+            }
+            return pages;
+        }
+
+        void serve(List<Page> pages) {
+            if (pages.isEmpty()) {
+                return;
+            }
+            String authToken = null;
+            if (songUris.needsToken(accountName)) {
+                try {
+                    authToken = session.getAuthToken();
+                } catch (IOException|GoogleAuthException e) {
+                    // Still worth listing, they just won't play till we're back online
+                    Timber.w(e, "serve() no token");
+                }
+            }
+            for (Page page : pages) {
+                final List<String> ids = new ArrayList<>(page.items.size());
+                for (RequestCache.Item item : page.items) {
+                    ids.add(item.identity);
+                }
+                final Map<String, TrackTags> pageTags = tags.get(accountName, ids);
+                final List<Bundle> bundles = new ArrayList<>(page.items.size());
+                for (RequestCache.Item item : page.items) {
+                    bundles.add(item.toBundle(songUris, accountName, authToken, pageTags.get(item.identity)));
+                }
+                Bundle token = null;
+                if (page.more) {
+                    token = new Bundle(2);
+                    token.putInt("startpos", page.end);
+                    // pinned once they come back for it, if there is anything to pin
+                    if (page.snapshot >= 0) {
+                        token.putLong("snapshot", page.snapshot);
+                    }
+                }
+                try {
+                    page.waiter.callback.onNext(bundles, token);
+                } catch (RemoteException ignored) {}
+            }
+        }
+
+        void fail(IOException e) {
+            Timber.w(e, "fail() walking %s", cacheKey);
+            final List<Waiter> failed;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                failed = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            walks.remove(cacheKey, this);
+            for (Waiter waiter : failed) {
+                try {
+                    waiter.callback.onError(new ParcelableException(NETWORK, e));
+                } catch (RemoteException ignored) {}
+            }
+        }
+    }
+
+}